@@ -0,0 +1,282 @@
+package com.github.aboodRS.collaborative_markdown_editor_server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * BinaryProtocol translates the text messages of the editor into compact
+ * binary frames and back. A frame is a versioned envelope: the protocol
+ * version, a type tag, the version or sequence number the message carries as
+ * a varint, and the payload. Operations are stored as varints instead of
+ * decimal text, and compressed snapshots as raw deflate bytes instead of Base64.
+ * A batch holds complete frames, each prefixed with its length as a varint.
+ *
+ * Both sides keep working with the text form, so clients that speak text and
+ * clients that speak binary can share a session during the migration.
+ */
+public final class BinaryProtocol {
+    public static final String SUBPROTOCOL = "markdown-binary.v1"; // Requested by clients that want binary frames
+    private static final int VERSION = 1;
+
+    // Type tags; index = tag, value = prefix of the text message
+    private static final String[] PREFIXES = { null, "setPassword", "join", "engine", "op", "ack", "doc", "docz",
+            "crdt", "crdtseen", "crdtdoc", "crdtdocz", "crdtgc", "SYSTEM", "batch" };
+    private static final int TEXT = 0; // Any other message, stored as UTF-8 text
+    private static final int OP = 4;
+    private static final int ACK = 5;
+    private static final int DOC = 6;
+    private static final int DOCZ = 7;
+    private static final int CRDT = 8;
+    private static final int CRDT_SEEN = 9;
+    private static final int CRDT_DOC = 10;
+    private static final int CRDT_DOCZ = 11;
+    private static final int BATCH = 14;
+
+    // Operation component tags, stored in the low bits of the component varint
+    private static final int RETAIN = 0;
+    private static final int DELETE = 1;
+    private static final int INSERT = 2;
+
+    private BinaryProtocol() {
+    }
+
+    // Encodes a text message as a binary frame
+    public static byte[] encode(String message) {
+        int colon = message.indexOf(':');
+        int type = colon < 0 ? TEXT : typeOf(message.substring(0, colon));
+        if (type != TEXT) {
+            try {
+                if (type == BATCH) {
+                    List<byte[]> frames = new ArrayList<>();
+                    for (String part : MessageBatch.split(message)) {
+                        frames.add(encode(part));
+                    }
+                    return encodeBatch(frames);
+                }
+                return encode(type, message.substring(colon + 1));
+            } catch (IllegalArgumentException e) {
+                // Not in the expected format, send it unchanged
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(message.length() + 3);
+        writeHeader(out, TEXT, 0);
+        writeText(out, message);
+        return out.toByteArray();
+    }
+
+    private static byte[] encode(int type, String body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length() + 8);
+        if (type == ACK || type == CRDT_SEEN) {
+            writeHeader(out, type, parseSequence(body));
+        } else if (type == OP || type == DOC || type == DOCZ || type == CRDT || type == CRDT_DOC || type == CRDT_DOCZ) {
+            int colon = body.indexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Missing sequence number");
+            }
+            writeHeader(out, type, parseSequence(body.substring(0, colon)));
+            String payload = body.substring(colon + 1);
+            if (type == OP) {
+                writeOperation(out, payload);
+            } else if (type == DOCZ || type == CRDT_DOCZ) {
+                out.writeBytes(Base64.getDecoder().decode(payload));
+            } else {
+                writeText(out, payload);
+            }
+        } else {
+            writeHeader(out, type, 0);
+            writeText(out, body);
+        }
+        return out.toByteArray();
+    }
+
+    // Packs already encoded frames into one batch frame
+    public static byte[] encodeBatch(List<byte[]> frames) {
+        int length = 3;
+        for (byte[] frame : frames) {
+            length += frame.length + 3;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+        writeHeader(out, BATCH, frames.size());
+        for (byte[] frame : frames) {
+            writeVarint(out, frame.length);
+            out.writeBytes(frame);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * This method decodes a binary frame into the text message it stands
+     * for. It throws an IllegalArgumentException if the frame is malformed or
+     * uses another protocol version.
+     */
+    public static String decode(ByteBuffer frame) {
+        ByteBuffer in = frame.duplicate();
+        try {
+            int version = in.get() & 0xff;
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported protocol version " + version);
+            }
+            int type = in.get() & 0xff;
+            long sequence = readVarint(in);
+            if (type >= PREFIXES.length) {
+                throw new IllegalArgumentException("Unknown frame type " + type);
+            }
+            if (type == TEXT) {
+                return readText(in);
+            } else if (type == BATCH) {
+                List<String> messages = new ArrayList<>();
+                while (in.hasRemaining()) {
+                    long length = readVarint(in);
+                    if (length > in.remaining()) {
+                        throw new IllegalArgumentException("Truncated batch");
+                    }
+                    ByteBuffer part = in.slice();
+                    part.limit((int) length);
+                    messages.add(decode(part));
+                    in.position(in.position() + (int) length);
+                }
+                return MessageBatch.join(messages);
+            }
+            StringBuilder message = new StringBuilder(in.remaining() + 16).append(PREFIXES[type]).append(':');
+            if (type == ACK || type == CRDT_SEEN) {
+                return message.append(sequence).toString();
+            } else if (type == OP || type == DOC || type == DOCZ || type == CRDT || type == CRDT_DOC || type == CRDT_DOCZ) {
+                message.append(sequence).append(':');
+                if (type == OP) {
+                    readOperation(in, message);
+                } else if (type == DOCZ || type == CRDT_DOCZ) {
+                    byte[] deflated = new byte[in.remaining()];
+                    in.get(deflated);
+                    message.append(Base64.getEncoder().encodeToString(deflated));
+                } else {
+                    message.append(readText(in));
+                }
+                return message.toString();
+            }
+            return message.append(readText(in)).toString();
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated frame");
+        }
+    }
+
+    private static int typeOf(String prefix) {
+        for (int type = 1; type < PREFIXES.length; type++) {
+            if (PREFIXES[type].equals(prefix)) {
+                return type;
+            }
+        }
+        return TEXT;
+    }
+
+    private static long parseSequence(String sequence) {
+        long value = Long.parseLong(sequence); // NumberFormatException is an IllegalArgumentException
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative sequence number");
+        }
+        return value;
+    }
+
+    private static void writeHeader(ByteArrayOutputStream out, int type, long sequence) {
+        out.write(VERSION);
+        out.write(type);
+        writeVarint(out, sequence);
+    }
+
+    private static void writeText(ByteArrayOutputStream out, String text) {
+        out.writeBytes(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readText(ByteBuffer in) {
+        byte[] bytes = new byte[in.remaining()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * This method converts an operation from its text format, for example
+     * "r12,i5:hello,d3", into varints of (length << 2 | tag). Inserted text
+     * follows its varint as UTF-8, the length being its size in bytes.
+     */
+    private static void writeOperation(ByteArrayOutputStream out, String operation) {
+        int pos = 0;
+        while (pos < operation.length()) {
+            char type = operation.charAt(pos++);
+            int numberEnd = pos;
+            while (numberEnd < operation.length() && Character.isDigit(operation.charAt(numberEnd))) {
+                numberEnd++;
+            }
+            long n = Long.parseLong(operation.substring(pos, numberEnd));
+            pos = numberEnd;
+            if (type == 'r' || type == 'd') {
+                writeVarint(out, n << 2 | (type == 'r' ? RETAIN : DELETE));
+            } else if (type == 'i' && pos < operation.length() && operation.charAt(pos) == ':' && pos + 1 + n <= operation.length()) {
+                byte[] text = operation.substring(pos + 1, pos + 1 + (int) n).getBytes(StandardCharsets.UTF_8);
+                writeVarint(out, (long) text.length << 2 | INSERT);
+                out.writeBytes(text);
+                pos += 1 + (int) n;
+            } else {
+                throw new IllegalArgumentException("Malformed operation at position " + pos);
+            }
+            if (pos < operation.length() && operation.charAt(pos++) != ',') {
+                throw new IllegalArgumentException("Malformed operation at position " + pos);
+            }
+        }
+    }
+
+    private static void readOperation(ByteBuffer in, StringBuilder operation) {
+        boolean first = true;
+        while (in.hasRemaining()) {
+            long component = readVarint(in);
+            long n = component >>> 2;
+            if (!first) {
+                operation.append(',');
+            }
+            first = false;
+            switch ((int) (component & 3)) {
+                case RETAIN:
+                    operation.append('r').append(n);
+                    break;
+                case DELETE:
+                    operation.append('d').append(n);
+                    break;
+                case INSERT:
+                    if (n > in.remaining()) {
+                        throw new IllegalArgumentException("Truncated insert");
+                    }
+                    byte[] bytes = new byte[(int) n];
+                    in.get(bytes);
+                    String text = new String(bytes, StandardCharsets.UTF_8);
+                    operation.append('i').append(text.length()).append(':').append(text);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown operation component " + (component & 3));
+            }
+        }
+    }
+
+    // Unsigned LEB128: 7 bits per byte, the high bit marks that another byte follows
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+}
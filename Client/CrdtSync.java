@@ -0,0 +1,95 @@
+package com.github.aboodRS.collaborative_markdown_editor_server;
+
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+//Keeps the local editor in sync in sessions that use the CRDT engine.
+//Local edits are applied to the RgaDocument replica and sent right away without
+//waiting for an acknowledgement, and remote edits are integrated in the order
+//they arrive. The client regularly reports the last relayed message it has seen,
+//so the server knows when deleted characters can be purged on all replicas.
+//Edits are kept until the server acknowledges them with "crdtack:", because
+//inserts cannot be applied twice: after a lost connection only the edits the
+//server has not acknowledged in its replay are sent again.
+public class CrdtSync {
+    private static final int REPORT_INTERVAL = 50; // Received messages after which the seen sequence is reported
+
+    private final RgaDocument document; // Local replica, mirrors the text of the editor
+    private long seen; // Sequence number of the last relayed message received
+    private int unreported; // Messages received since the seen sequence was last sent
+    private final ArrayDeque<String> unacknowledged = new ArrayDeque<>(); // Sent or made offline, oldest first
+    private boolean connected = true; // Whether edits can be sent
+    private final Consumer<String> sender; // Sends wire messages to the server
+
+    public CrdtSync(RgaDocument document, long seen, Consumer<String> sender) {
+        this.document = document;
+        this.seen = seen;
+        this.sender = sender;
+    }
+
+    // Handles text inserted in the local editor
+    public void localInsert(int offset, String text) {
+        send(document.localInsert(offset, text));
+    }
+
+    // Handles text removed from the local editor
+    public void localRemove(int offset, int length) {
+        send(document.localDelete(offset, length));
+    }
+
+    // Integrates operations of another client and reports the progress from time to time
+    public void applyRemote(long sequence, String operations, RgaDocument.RemoteEditListener listener) {
+        if (sequence <= seen) {
+            return; // Queued before the snapshot this replica was reset to, which already contains it
+        }
+        document.applyRemote(operations, listener);
+        seen = sequence;
+        if (++unreported >= REPORT_INTERVAL) {
+            unreported = 0;
+            sender.accept("crdtseen:" + seen);
+        }
+    }
+
+    // Removes tombstones that every replica has seen deleted
+    public void purge(String encodedIds) {
+        document.purge(encodedIds);
+    }
+
+    // Handles the acknowledgement of the oldest unacknowledged edit, relayed under the given sequence
+    public void serverAck(long sequence) {
+        if (unacknowledged.poll() != null && sequence > seen) {
+            seen = sequence; // Everything relayed before it has been received as well
+        }
+    }
+
+    // Called when the connection is lost, edits are kept until the session is resumed
+    public void connectionLost() {
+        connected = false;
+    }
+
+    // Called after the server has replayed the missed messages, sends the edits it has not applied
+    public void resumed() {
+        connected = true;
+        unreported = 0;
+        for (String operations : unacknowledged) {
+            sender.accept("crdt:" + seen + ":" + operations);
+        }
+    }
+
+    // Whether every local edit has been acknowledged, so the replica holds exactly what was relayed until seen
+    public boolean isSettled() {
+        return connected && unacknowledged.isEmpty();
+    }
+
+    public long getSeen() {
+        return seen;
+    }
+
+    private void send(String operations) {
+        unacknowledged.add(operations);
+        if (connected) {
+            unreported = 0; // Every operation carries the seen sequence as well
+            sender.accept("crdt:" + seen + ":" + operations);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.aboodRS.collaborative_markdown_editor_server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DocumentChecksum hashes documents so that a client and the server can
+ * cheaply check that they have the same text, and find the parts that
+ * differ when they do not. The text is cut into blocks of about a kilobyte
+ * where a rolling hash of the last chars matches a fixed pattern, so the
+ * boundaries depend only on the text around them: an insert or delete
+ * changes the blocks it touches, and every other block keeps its hash.
+ *
+ * The server keeps a copy of this class, and both must compute the same
+ * hashes for the same text.
+ */
+public final class DocumentChecksum {
+    private static final int MIN_BLOCK_CHARS = 256;
+    private static final int MAX_BLOCK_CHARS = 8192;
+    private static final long BOUNDARY_MASK = (1 << 10) - 1; // A boundary about every 1024 chars after the minimum
+    private static final long MULTIPLIER = 0x100000001B3L; // FNV prime, spreads every char over the whole hash
+    private static final long[] GEAR = new long[256]; // Random value per char, generated from a fixed seed
+
+    static {
+        long seed = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < GEAR.length; i++) {
+            // SplitMix64, so both sides get the same table without shipping it
+            seed += 0x9E3779B97F4A7C15L;
+            long value = seed;
+            value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+            value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = value ^ (value >>> 31);
+        }
+    }
+
+    private DocumentChecksum() {
+    }
+
+    // Hash of the whole text
+    public static String hash(CharSequence text) {
+        return encode(hash(text, 0, text.length()));
+    }
+
+    // Offsets where the blocks of the text end, the last one is the length of the text
+    public static int[] blockEnds(CharSequence text) {
+        List<Integer> ends = new ArrayList<>();
+        long rolling = 0;
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            rolling = (rolling << 1) + GEAR[(c ^ (c >>> 8)) & 0xFF]; // Chars older than 64 are shifted out
+            int length = i + 1 - start;
+            if ((length >= MIN_BLOCK_CHARS && (rolling & BOUNDARY_MASK) == 0) || length >= MAX_BLOCK_CHARS) {
+                ends.add(i + 1);
+                start = i + 1;
+            }
+        }
+        if (start < text.length() || ends.isEmpty()) {
+            ends.add(text.length());
+        }
+        int[] result = new int[ends.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ends.get(i);
+        }
+        return result;
+    }
+
+    // Hashes of the blocks with the given ends, as sent in "blocksums:" messages
+    public static String[] blockHashes(CharSequence text, int[] ends) {
+        String[] hashes = new String[ends.length];
+        int start = 0;
+        for (int i = 0; i < ends.length; i++) {
+            hashes[i] = encode(hash(text, start, ends[i]));
+            start = ends[i];
+        }
+        return hashes;
+    }
+
+    private static long hash(CharSequence text, int start, int end) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ text.charAt(i)) * MULTIPLIER;
+        }
+        return hash;
+    }
+
+    private static String encode(long hash) {
+        return Long.toUnsignedString(hash, 36);
+    }
+}
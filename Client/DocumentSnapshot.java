@@ -0,0 +1,96 @@
+package com.github.aboodRS.collaborative_markdown_editor_server;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+import java.util.function.IntSupplier;
+
+/**
+ * DocumentSnapshot is a read-only view of the text of a Swing document as a
+ * CharSequence. Characters are read straight from the content of the
+ * document through a Segment, which points into its buffer instead of
+ * copying it, so a consumer that looks at a few characters only pays for
+ * those. toString() copies the text once and keeps the copy.
+ *
+ * A view belongs to one version of the document: it must be used on the EDT
+ * like the document itself, and throws IllegalStateException once the
+ * document has been edited.
+ */
+public class DocumentSnapshot implements CharSequence {
+    private final Document document;
+    private final int offset; // Of the view in the document
+    private final int length;
+    private final IntSupplier generation; // Changes with every edit of the document
+    private final int expectedGeneration;
+    private final Segment segment = new Segment(); // Chars from segmentStart that were read last
+    private int segmentStart;
+    private String text; // Copy made by toString()
+
+    public DocumentSnapshot(Document document, IntSupplier generation) {
+        this(document, 0, document.getLength(), generation, generation.getAsInt());
+    }
+
+    private DocumentSnapshot(Document document, int offset, int length, IntSupplier generation, int expectedGeneration) {
+        this.document = document;
+        this.offset = offset;
+        this.length = length;
+        this.generation = generation;
+        this.expectedGeneration = expectedGeneration;
+        segment.setPartialReturn(true); // Up to the gap of the content, so nothing is copied
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index " + index + " outside of length " + length);
+        }
+        if (text != null) {
+            return text.charAt(index);
+        }
+        if (index < segmentStart || index >= segmentStart + segment.count) {
+            checkGeneration();
+            try {
+                document.getText(offset + index, length - index, segment);
+            } catch (BadLocationException e) {
+                throw new IllegalStateException(e);
+            }
+            segmentStart = index;
+        }
+        return segment.array[segment.offset + index - segmentStart];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("Range " + start + " to " + end + " outside of length " + length);
+        }
+        if (text != null) {
+            return text.subSequence(start, end);
+        }
+        return new DocumentSnapshot(document, offset + start, end - start, generation, expectedGeneration);
+    }
+
+    @Override
+    public String toString() {
+        if (text == null) {
+            checkGeneration();
+            try {
+                text = document.getText(offset, length);
+            } catch (BadLocationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return text;
+    }
+
+    private void checkGeneration() {
+        if (generation.getAsInt() != expectedGeneration) {
+            throw new IllegalStateException("The document was edited after the snapshot was taken");
+        }
+    }
+}
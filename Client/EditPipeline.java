@@ -0,0 +1,196 @@
+package com.github.aboodRS.collaborative_markdown_editor_server;
+
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.Document;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * EditPipeline collects the edits of a document into batches and hands them
+ * to its subscribers. Every subscriber chooses how long the typing must
+ * pause before it gets its batch, and how long it waits at most while the
+ * typing goes on, so a burst of keystrokes costs each subscriber one call.
+ * Subscribers that are due at the same time are called in order of their
+ * priority and share one view of the text, which copies nothing unless a
+ * subscriber asks for the whole text as a String.
+ *
+ * Everything runs on the EDT: edits arrive there, and the single Swing timer
+ * that ends the pauses fires there.
+ */
+public class EditPipeline implements DocumentListener {
+    public interface Subscriber {
+        void editsApplied(EditBatch batch);
+    }
+
+    /**
+     * An EditBatch tells a subscriber which part of the document its edits
+     * touched since its last batch: the range from getFrom() to getTo() in
+     * the current text holds everything that was inserted, and is where
+     * removed text used to be.
+     */
+    public class EditBatch {
+        private int from = Integer.MAX_VALUE;
+        private int to = Integer.MIN_VALUE;
+        private int edits; // Document events in the batch
+
+        private void add(int offset, int inserted, int removed) {
+            if (edits > 0) {
+                // Moves the range along with the edit, then includes it
+                from = from > offset ? Math.max(offset, from + inserted - removed) : from;
+                to = to > offset ? Math.max(offset, to + inserted - removed) : to;
+            }
+            from = Math.min(from, offset);
+            to = Math.max(to, offset + inserted);
+            edits++;
+        }
+
+        public int getFrom() {
+            return from;
+        }
+
+        public int getTo() {
+            return to;
+        }
+
+        public int getEdits() {
+            return edits;
+        }
+
+        // View of the whole document, shared by all subscribers that get their batch before the next edit
+        public CharSequence getSnapshot() {
+            return snapshot();
+        }
+
+        // View of the text the edits of the batch inserted or replaced, without copying the rest
+        public CharSequence getChange() {
+            return snapshot().subSequence(from, to);
+        }
+    }
+
+    private class Subscription {
+        final int priority;
+        final int debounceMillis; // Pause after the last edit
+        final int maxDelayMillis; // Longest wait after the first edit of a batch
+        final Subscriber subscriber;
+        EditBatch pending; // Null while there are no edits for the subscriber
+        long firstEditAt;
+        long dueAt;
+
+        Subscription(int priority, int debounceMillis, int maxDelayMillis, Subscriber subscriber) {
+            this.priority = priority;
+            this.debounceMillis = debounceMillis;
+            this.maxDelayMillis = maxDelayMillis;
+            this.subscriber = subscriber;
+        }
+    }
+
+    private final Document document;
+    private final List<Subscription> subscriptions = new ArrayList<>(); // Highest priority first
+    private final Timer timer;
+    private int generation; // Increased by every edit
+    private DocumentSnapshot snapshot; // View of the text at the current generation, null until asked for
+
+    public EditPipeline(Document document) {
+        this.document = document;
+        this.timer = new Timer(0, e -> deliverDue());
+        timer.setRepeats(false);
+        document.addDocumentListener(this);
+    }
+
+    /**
+     * This method subscribes to the edits of the document. The subscriber is
+     * called once the edits pause for the debounce time, or once the first
+     * edit of its batch is maxDelayMillis old; Integer.MAX_VALUE waits for
+     * the pause only. Subscribers with a higher priority are called first.
+     */
+    public void subscribe(int priority, int debounceMillis, int maxDelayMillis, Subscriber subscriber) {
+        Subscription subscription = new Subscription(priority, debounceMillis, maxDelayMillis, subscriber);
+        int index = 0;
+        while (index < subscriptions.size() && subscriptions.get(index).priority >= priority) {
+            index++;
+        }
+        subscriptions.add(index, subscription);
+    }
+
+    // Hands every pending batch to its subscriber right away, e.g. before undo looks at the latest edits
+    public void flush() {
+        for (Subscription subscription : subscriptions) {
+            subscription.dueAt = 0;
+        }
+        deliverDue();
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+        edited(e.getOffset(), e.getLength(), 0);
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+        edited(e.getOffset(), 0, e.getLength());
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+        // Only attributes changed, the text is the same
+    }
+
+    private void edited(int offset, int inserted, int removed) {
+        generation++;
+        snapshot = null;
+        long now = System.currentTimeMillis();
+        for (Subscription subscription : subscriptions) {
+            if (subscription.pending == null) {
+                subscription.pending = new EditBatch();
+                subscription.firstEditAt = now;
+            }
+            subscription.pending.add(offset, inserted, removed);
+            subscription.dueAt = Math.min(now + subscription.debounceMillis,
+                    subscription.maxDelayMillis == Integer.MAX_VALUE ? Long.MAX_VALUE : subscription.firstEditAt + subscription.maxDelayMillis);
+        }
+        schedule();
+    }
+
+    // Calls the subscribers whose batch is due, in order of priority
+    private void deliverDue() {
+        long now = System.currentTimeMillis();
+        for (Subscription subscription : new ArrayList<>(subscriptions)) {
+            if (subscription.pending != null && subscription.dueAt <= now) {
+                EditBatch batch = subscription.pending;
+                subscription.pending = null;
+                try {
+                    subscription.subscriber.editsApplied(batch);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        schedule();
+    }
+
+    // Sets the timer to the earliest due batch
+    private void schedule() {
+        long dueAt = Long.MAX_VALUE;
+        for (Subscription subscription : subscriptions) {
+            if (subscription.pending != null) {
+                dueAt = Math.min(dueAt, subscription.dueAt);
+            }
+        }
+        if (dueAt == Long.MAX_VALUE) {
+            timer.stop();
+            return;
+        }
+        timer.setInitialDelay((int) Math.max(0, dueAt - System.currentTimeMillis()));
+        timer.restart();
+    }
+
+    // View of the current text that stays valid until the next edit
+    public DocumentSnapshot snapshot() {
+        if (snapshot == null) {
+            snapshot = new DocumentSnapshot(document, () -> generation);
+        }
+        return snapshot;
+    }
+}
@@ -4,24 +4,44 @@ import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 import javax.swing.*;
 import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultHighlighter;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.Highlighter;
+import javax.swing.text.JTextComponent;
 import javax.swing.text.Style;
 import javax.swing.text.StyleConstants;
 import javax.swing.text.StyleContext;
 import javax.swing.text.StyledDocument;
 import java.awt.*;
+import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MarkdownEditor extends JPanel {
     private static final long serialVersionUID = 1L;
+    private static final int APPLY_BATCH_LINES = 200; // Lines styled per event on the EDT, so typing is never held up long
+    private static final int HIGHLIGHT_PRIORITY = 100; // Styles are applied before the other subscribers of a pause run
+    private static final int HIGHLIGHT_DEBOUNCE_MILLIS = 100;
+    private static final int HIGHLIGHT_MAX_DELAY_MILLIS = 500; // Lines are styled at least this often while typing
+
+    // Tokenizes the edited lines in the background, one document at a time for all editors
+    private static final ExecutorService TOKENIZER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "markdown-tokenizer");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     // Text pane for the markdown content
     private JTextPane markdownPane;
     
-    // Timer to control update delay for styles
-    private Timer debounceTimer; 
+    // Hands bursts of edits to highlighting and the text change listeners, each after its own pause
+    private final EditPipeline editPipeline;
     
     // Styles for different markdown elements
     private final Style header1Style;
@@ -33,9 +53,25 @@ public class MarkdownEditor extends JPanel {
     private final Style listItemStyle;
     private final Style tableStyle;
     private final Style tableHeaderStyle;
+    private final Map<MarkdownTokenizer.Token, Style> tokenStyles = new EnumMap<>(MarkdownTokenizer.Token.class);
     
-    // List of listeners to handle text changes
-    private final List<TextChangeListener> textChangeListeners = new ArrayList<>(); // List of listeners to handle text changes
+    // List of listeners that receive every single insert and removal
+    private final List<EditListener> editListeners = new ArrayList<>();
+
+    // Tokenizer state at the end of every line, so an edit is only tokenized until the state converges with the
+    // one before. Changed on the EDT, while edits hold the document lock or no tokenizing runs; the tokenizer
+    // reads it under the read lock of the document
+    private final List<MarkdownTokenizer.LineState> lineStates = new ArrayList<>();
+    private int damagedFrom = Integer.MAX_VALUE; // First line edited since it was last styled
+    private int damagedTo = 0; // Line after the last line edited since it was last styled
+    private int applyingFrom = Integer.MAX_VALUE; // Lines of a tokenizer result whose runs are not applied yet
+    private int applyingTo = 0;
+    private volatile int generation; // Increased by every edit, tells the tokenizer that its lines have moved
+    private boolean tokenizing; // A result is being computed or applied, there is only one at a time
+    private boolean tokenizeAgain; // More lines were edited while tokenizing
+
+    // Highlights of the caret and selection of other session members, by client ID
+    private final Map<String, Object[]> remoteCursors = new HashMap<>();
 
     public MarkdownEditor() {
         setLayout(new BorderLayout());
@@ -56,25 +92,27 @@ public class MarkdownEditor extends JPanel {
 
         // Initialize document and add a DocumentListener to detect text changes
         StyledDocument doc = markdownPane.getStyledDocument();
+        lineStates.add(MarkdownTokenizer.LineState.TEXT); // The empty document has one line
         doc.addDocumentListener(new DocumentListener() {
             @Override
             public void insertUpdate(DocumentEvent e) {
-                debounceUpdateStyles();
-                notifyTextChangeListeners();
+                markDamaged(e);
+                notifyEditListeners(e, true);
             }
 
             @Override
             public void removeUpdate(DocumentEvent e) {
-                debounceUpdateStyles();
-                notifyTextChangeListeners();
+                markDamaged(e);
+                notifyEditListeners(e, false);
             }
 
             @Override
             public void changedUpdate(DocumentEvent e) {
-                debounceUpdateStyles();
-                notifyTextChangeListeners();
+                // Only attributes changed, which is what styling does; the text is the same and needs no styling
             }
         });
+        editPipeline = new EditPipeline(doc);
+        editPipeline.subscribe(HIGHLIGHT_PRIORITY, HIGHLIGHT_DEBOUNCE_MILLIS, HIGHLIGHT_MAX_DELAY_MILLIS, batch -> startTokenizing());
 
         // Define styles for various markdown elements
         Style defaultStyle = StyleContext.getDefaultStyleContext().getStyle("default");
@@ -109,96 +147,306 @@ public class MarkdownEditor extends JPanel {
         this.tableHeaderStyle = doc.addStyle("tableHeader", defaultStyle);
         StyleConstants.setBold(this.tableHeaderStyle, true);
         StyleConstants.setFontSize(this.tableHeaderStyle, 14);
+
+        tokenStyles.put(MarkdownTokenizer.Token.HEADER1, header1Style);
+        tokenStyles.put(MarkdownTokenizer.Token.HEADER2, header2Style);
+        tokenStyles.put(MarkdownTokenizer.Token.BOLD, boldStyle);
+        tokenStyles.put(MarkdownTokenizer.Token.ITALIC, italicStyle);
+        tokenStyles.put(MarkdownTokenizer.Token.CODE, codeBlockStyle);
+        tokenStyles.put(MarkdownTokenizer.Token.BLOCKQUOTE, blockquoteStyle);
+        tokenStyles.put(MarkdownTokenizer.Token.LIST_ITEM, listItemStyle);
+        tokenStyles.put(MarkdownTokenizer.Token.TABLE, tableStyle);
+        tokenStyles.put(MarkdownTokenizer.Token.TABLE_HEADER, tableHeaderStyle);
+    }
+
+    // Records the lines an edit touched and moves the line states and ranges along with the lines it added or
+    // removed. Called under the write lock of the document
+    private void markDamaged(DocumentEvent e) {
+        generation++;
+        Element root = e.getDocument().getDefaultRootElement();
+        DocumentEvent.ElementChange change = e.getChange(root);
+        int first = root.getElementIndex(e.getOffset()); // Changed within a single line
+        int removed = 1;
+        int added = 1;
+        if (change != null) {
+            first = change.getIndex();
+            removed = change.getChildrenRemoved().length;
+            added = change.getChildrenAdded().length;
+            // The line after the edit was tokenized with the state after the last removed line, so the last added
+            // line gets it; tokenizing then goes on past the edit only if that state changes
+            MarkdownTokenizer.LineState last = removed > 0 && first + removed <= lineStates.size()
+                    ? lineStates.get(first + removed - 1) : MarkdownTokenizer.LineState.TEXT;
+            lineStates.subList(first, Math.min(first + removed, lineStates.size())).clear();
+            for (int i = 0; i < added; i++) {
+                lineStates.add(first, i == 0 ? last : MarkdownTokenizer.LineState.TEXT); // The others are known once tokenized
+            }
+        }
+        int[] damaged = moveRange(damagedFrom, damagedTo, first, removed, added);
+        damagedFrom = Math.min(damaged[0], first);
+        damagedTo = Math.max(damaged[1], first + added);
+        if (applyingFrom < applyingTo) {
+            // The runs still to be applied belong to lines that may have moved, they are tokenized again instead
+            int[] applying = moveRange(applyingFrom, applyingTo, first, removed, added);
+            damagedFrom = Math.min(damagedFrom, applying[0]);
+            damagedTo = Math.max(damagedTo, applying[1]);
+            applyingFrom = Integer.MAX_VALUE;
+            applyingTo = 0;
+        }
     }
 
-    // Debounces style application by delaying the execution
-    private void debounceUpdateStyles() {
-        if (debounceTimer != null) {
-            debounceTimer.cancel();
+    // Where the lines [from, to) end up after the removed lines at first were replaced by the added ones
+    private static int[] moveRange(int from, int to, int first, int removed, int added) {
+        if (from >= to) {
+            return new int[] { from, to };
         }
-        debounceTimer = new Timer();
-        debounceTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                SwingUtilities.invokeLater(MarkdownEditor.this::applyStyles);  // Apply styles asynchronously
+        int movedFrom = from < first ? from : from >= first + removed ? from - removed + added : first;
+        int movedTo = to <= first ? to : to >= first + removed ? to - removed + added : first + added;
+        return new int[] { movedFrom, Math.max(movedFrom, movedTo) };
+    }
+
+    // Hands the lines edited since the last styling to the tokenizer, or remembers to do so when it is done
+    private void startTokenizing() {
+        if (tokenizing) {
+            tokenizeAgain = true;
+            return;
+        }
+        if (damagedFrom >= damagedTo) {
+            return;
+        }
+        tokenizing = true;
+        int expectedGeneration = generation;
+        int from = damagedFrom;
+        int to = damagedTo;
+        TOKENIZER.execute(() -> {
+            TokenizerResult result = null;
+            try {
+                result = tokenize(expectedGeneration, from, to);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            TokenizerResult tokenized = result;
+            SwingUtilities.invokeLater(() -> applyResult(tokenized));
+        });
+    }
+
+    /**
+     * This method runs on the tokenizer thread. It tokenizes from the line
+     * before the edited ones, since a table row is the header when the line
+     * after it is the delimiter row, and goes on past them as long as the
+     * state at the end of a line differs from the one the next line was
+     * tokenized with. Every line is read under the read lock of the document,
+     * and tokenizing stops with null as soon as the document was edited,
+     * since the line numbers may not be right anymore.
+     */
+    private TokenizerResult tokenize(int expectedGeneration, int from, int to) {
+        StyledDocument doc = markdownPane.getStyledDocument();
+        int first = Math.max(0, from - 1);
+        TokenizerResult result = new TokenizerResult(expectedGeneration, first);
+        MarkdownTokenizer.LineState state = null;
+        for (int line = first; ; line++) {
+            int index = line;
+            Object[] read = new Object[4]; // Line, next line, state before the line, state after it when it was tokenized
+            doc.render(() -> {
+                Element root = doc.getDefaultRootElement();
+                if (generation != expectedGeneration || index >= root.getElementCount()) {
+                    return;
+                }
+                try {
+                    read[0] = getLine(doc, root, index);
+                    read[1] = index + 1 < root.getElementCount() ? getLine(doc, root, index + 1) : null;
+                } catch (BadLocationException e) {
+                    return;
+                }
+                read[2] = index > 0 ? lineStates.get(index - 1) : MarkdownTokenizer.LineState.TEXT;
+                read[3] = lineStates.get(index);
+            });
+            if (generation != expectedGeneration) {
+                return null;
+            }
+            if (read[0] == null) {
+                return result; // Past the last line
             }
-        }, 300); // Delay of 300 ms
+            if (state == null) {
+                state = (MarkdownTokenizer.LineState) read[2];
+            }
+            List<MarkdownTokenizer.StyleRun> runs = new ArrayList<>();
+            state = MarkdownTokenizer.tokenize((String) read[0], (String) read[1], state, runs);
+            result.states.add(state);
+            result.runs.add(runs);
+            if (line >= to - 1 && state == read[3]) {
+                return result; // The following lines start in the same state as when they were tokenized
+            }
+        }
     }
 
-    // Applies styling based on markdown syntax
-    private void applyStyles() {
-        String text;
+    // Takes over the states of a result and starts applying its runs, unless the document was edited meanwhile
+    private void applyResult(TokenizerResult result) {
+        if (result == null || result.generation != generation) {
+            finishTokenizing(); // The edits moved the damaged lines along, they are tokenized again
+            return;
+        }
+        for (int i = 0; i < result.states.size(); i++) {
+            lineStates.set(result.first + i, result.states.get(i));
+        }
+        damagedFrom = Integer.MAX_VALUE; // No edits since the tokenizer started, so it covered all of them
+        damagedTo = 0;
+        applyingFrom = result.first;
+        applyingTo = result.first + result.states.size();
+        applyBatch(result);
+    }
+
+    // Applies the runs of a limited number of lines, and the next ones in a later event
+    private void applyBatch(TokenizerResult result) {
+        if (result.generation != generation || applyingFrom >= applyingTo) {
+            finishTokenizing(); // Edited meanwhile, markDamaged has added the remaining lines to the damage
+            return;
+        }
         StyledDocument doc = this.markdownPane.getStyledDocument();
-        try {
-            text = doc.getText(0, doc.getLength());
-        } catch (BadLocationException ex) {
-            ex.printStackTrace();
+        Element root = doc.getDefaultRootElement();
+        int end = Math.min(applyingTo, applyingFrom + APPLY_BATCH_LINES);
+        for (int line = applyingFrom; line < end; line++) {
+            Element element = root.getElement(line);
+            int startOffset = element.getStartOffset();
+            doc.setCharacterAttributes(startOffset, element.getEndOffset() - 1 - startOffset, doc.getStyle("default"), true);
+            for (MarkdownTokenizer.StyleRun run : result.runs.get(line - result.first)) {
+                doc.setCharacterAttributes(startOffset + run.getStart(), run.getLength(), tokenStyles.get(run.getToken()), true);
+            }
+        }
+        applyingFrom = end;
+        if (applyingFrom < applyingTo) {
+            SwingUtilities.invokeLater(() -> applyBatch(result));
             return;
         }
-        
-        doc.setCharacterAttributes(0, text.length(), doc.getStyle("default"), true);
-        String[] lines = text.split("\n");
-        int startOffset = 0;
-        
-        for (String line : lines) {
-            int lineLength = line.length();
-            if (line.startsWith("# ")) {
-                doc.setCharacterAttributes(startOffset, lineLength, this.header1Style, true);
-            } else if (line.startsWith("## ")) {
-                doc.setCharacterAttributes(startOffset, lineLength, this.header2Style, true);
-            } else if (line.startsWith("> ")) {
-                doc.setCharacterAttributes(startOffset, lineLength, this.blockquoteStyle, true);
-            } else if (line.startsWith("|")) {
-                applyTableStyle(doc, line, startOffset);
-            } else if (line.startsWith("* ") || line.startsWith("- ") || line.startsWith("+ ")) {
-                doc.setCharacterAttributes(startOffset, lineLength, this.listItemStyle, true);
+        applyingFrom = Integer.MAX_VALUE;
+        applyingTo = 0;
+        finishTokenizing();
+    }
+
+    private void finishTokenizing() {
+        tokenizing = false;
+        if (tokenizeAgain) {
+            tokenizeAgain = false;
+            startTokenizing();
+        }
+    }
+
+    // Text of a line without its line break
+    private static String getLine(Document doc, Element root, int index) throws BadLocationException {
+        Element element = root.getElement(index);
+        return doc.getText(element.getStartOffset(), element.getEndOffset() - 1 - element.getStartOffset());
+    }
+
+    // States and style runs of consecutive lines, from the first one
+    private static class TokenizerResult {
+        final int generation; // Of the document the lines were read from
+        final int first;
+        final List<MarkdownTokenizer.LineState> states = new ArrayList<>();
+        final List<List<MarkdownTokenizer.StyleRun>> runs = new ArrayList<>();
+
+        TokenizerResult(int generation, int first) {
+            this.generation = generation;
+            this.first = first;
+        }
+    }
+
+    // Adds a listener that gets the text once the typing has paused for the given time, instead of after every edit
+    public void addTextChangeListener(int debounceMillis, TextChangeListener listener) {
+        editPipeline.subscribe(0, debounceMillis, Integer.MAX_VALUE,
+                batch -> listener.onTextChange(batch.getSnapshot(), batch.getFrom(), batch.getTo()));
+    }
+
+    // View of the current text that copies nothing until toString(), valid until the next edit
+    public CharSequence getSnapshot() {
+        return editPipeline.snapshot();
+    }
+
+    public EditPipeline getEditPipeline() {
+        return editPipeline;
+    }
+
+    // Adds a listener to be notified of every single insert and removal
+    public void addEditListener(EditListener listener) {
+        editListeners.add(listener);
+    }
+
+    // Notifies all edit listeners of the range changed by the document event
+    private void notifyEditListeners(DocumentEvent e, boolean inserted) {
+        if (editListeners.isEmpty()) {
+            return;
+        }
+        Document doc = e.getDocument();
+        int documentLength = doc.getLength();
+        for (EditListener listener : editListeners) {
+            if (inserted) {
+                try {
+                    listener.onInsert(e.getOffset(), doc.getText(e.getOffset(), e.getLength()), documentLength);
+                } catch (BadLocationException ex) {
+                    ex.printStackTrace();
+                }
+            } else {
+                listener.onRemove(e.getOffset(), e.getLength(), documentLength);
             }
-            applyInlineStyle(doc, line, startOffset, "**", this.boldStyle);
-            applyInlineStyle(doc, line, startOffset, "*", this.italicStyle);
-            startOffset += lineLength + 1;
-        }
-    }
-
-    // Applies inline styles (like bold and italic) based on delimiters
-    private void applyInlineStyle(StyledDocument doc, String line, int startOffset, String delimiter, Style style) {
-        int start = line.indexOf(delimiter);
-        while (start != -1) {
-            int end = line.indexOf(delimiter, start + delimiter.length());
-            if (end == -1) break;
-            doc.setCharacterAttributes(startOffset + start, end - start + delimiter.length(), style, true);
-            start = line.indexOf(delimiter, end + delimiter.length());
-        }
-    }
-
-    // Applies table styling, differentiating between headers and regular cells
-    private void applyTableStyle(StyledDocument doc, String line, int startOffset) {
-        String[] rows = line.split("\n");
-        for (String row : rows) {
-            if (row.trim().isEmpty()) continue; // Skip empty rows
-            String[] cells = row.split("\\|");
-            for (int i = 0; i < cells.length; i++) {
-                if (i == 0 || i == cells.length - 1) continue; // Skip outer pipes
-                int cellStart = startOffset + row.indexOf(cells[i]);
-                int cellLength = cells[i].length();
-                if (row.contains("---")) {
-                    doc.setCharacterAttributes(cellStart, cellLength, this.tableHeaderStyle, true);
-                } else {
-                    doc.setCharacterAttributes(cellStart, cellLength, this.tableStyle, true);
+        }
+    }
+
+    // Shows the caret and selection of another session member. The highlights move with later edits
+    // like the local caret does, so they stay in place until the member sends its next position
+    public void setRemoteCursor(String clientId, int dot, int mark) {
+        removeRemoteCursor(clientId);
+        int length = markdownPane.getDocument().getLength();
+        dot = Math.min(dot, length); // Positions may refer to edits that have not arrived yet
+        mark = Math.min(mark, length);
+        Color color = Color.getHSBColor((clientId.hashCode() & 0xFF) / 255f, 0.6f, 0.95f);
+        Highlighter highlighter = markdownPane.getHighlighter();
+        try {
+            Object caret = highlighter.addHighlight(dot, dot, new RemoteCaretPainter(color));
+            Object selection = dot == mark ? null : highlighter.addHighlight(Math.min(dot, mark), Math.max(dot, mark),
+                    new DefaultHighlighter.DefaultHighlightPainter(new Color(color.getRed(), color.getGreen(), color.getBlue(), 80)));
+            remoteCursors.put(clientId, new Object[] { caret, selection });
+        } catch (BadLocationException e) {
+            e.printStackTrace();
+        }
+        markdownPane.repaint(); // An empty range does not repaint the caret on its own
+    }
+
+    // Hides the caret and selection of a member that left
+    public void removeRemoteCursor(String clientId) {
+        Object[] highlights = remoteCursors.remove(clientId);
+        if (highlights != null) {
+            for (Object highlight : highlights) {
+                if (highlight != null) {
+                    markdownPane.getHighlighter().removeHighlight(highlight);
                 }
             }
-            startOffset += row.length() + 1; // Move to the next line
+            markdownPane.repaint();
         }
     }
 
-    // Adds a listener to notify of text changes
-    public void addTextChangeListener(TextChangeListener listener) {
-        textChangeListeners.add(listener);
+    public void clearRemoteCursors() {
+        for (String clientId : new ArrayList<>(remoteCursors.keySet())) {
+            removeRemoteCursor(clientId);
+        }
     }
 
-    // Notifies all listeners of a text change
-    private void notifyTextChangeListeners() {
-        for (TextChangeListener listener : textChangeListeners) {
-            listener.onTextChange(markdownPane.getText());
+    // Paints another member's caret as a thin bar, which is cheaper than a component per cursor
+    private static class RemoteCaretPainter implements Highlighter.HighlightPainter {
+        private final Color color;
+
+        RemoteCaretPainter(Color color) {
+            this.color = color;
+        }
+
+        @Override
+        public void paint(Graphics g, int p0, int p1, Shape bounds, JTextComponent c) {
+            try {
+                Rectangle2D r = c.modelToView2D(p0);
+                if (r != null) {
+                    g.setColor(color);
+                    g.fillRect((int) r.getX(), (int) r.getY(), 2, (int) r.getHeight());
+                }
+            } catch (BadLocationException e) {
+                // The document changed since the highlight was painted last, the next repaint is correct
+            }
         }
     }
 
@@ -207,8 +455,15 @@ public class MarkdownEditor extends JPanel {
         return markdownPane;
     }
     
-    // Listener interface for text change events
+    // Listener interface for text change events. The text is a view of the document that is only valid during
+    // the call; changedFrom to changedTo is the part of it the edits since the last call inserted or replaced
     public interface TextChangeListener {
-        void onTextChange(String newText);
+        void onTextChange(CharSequence text, int changedFrom, int changedTo);
+    }
+
+    // Listener interface for single edits, documentLength is the length after the edit
+    public interface EditListener {
+        void onInsert(int offset, String insertedText, int documentLength);
+        void onRemove(int offset, int length, int documentLength);
     }
 }
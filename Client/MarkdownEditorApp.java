@@ -2,10 +2,19 @@ package com.github.aboodRS.collaborative_markdown_editor_server;
 
 import javax.swing.*;
 import java.awt.*;
+import java.lang.reflect.InvocationTargetException;
 import java.net.URISyntaxException;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Caret;
+import javax.swing.text.Document;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.UUID;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Stack;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
@@ -17,20 +26,35 @@ import java.awt.event.ActionEvent;
 
 public class MarkdownEditorApp extends JFrame {
     private static final long serialVersionUID = 1L;
+    private static final int CURSOR_INTERVAL_MILLIS = 50; // The caret is sent at most this often
+    private static final int CHECKSUM_INTERVAL_MILLIS = 10000; // How often the document is compared with the server
+    private static final int UNDO_DEBOUNCE_MILLIS = 500; // Edits without a longer pause are undone together
 
     private MarkdownEditor markdownEditor;
     private MarkdownPreview markdownPreview;
+    private JCheckBoxMenuItem livePreviewMenuItem; // The preview follows the editor while this is checked
     private MarkdownWebSocketClient webSocketClient;
+    private OperationSync operationSync; // Tracks sent and received operations while in a session
+    private CrdtSync crdtSync; // Used instead of operationSync in sessions created with the CRDT engine
     private boolean isRemoteUpdate = false;
+    private boolean isHistoryUpdate = false; // Set while undo or redo replaces the text, which is not recorded again
+    private boolean localEditPending = false; // The user edited since the undo history last recorded the text
+    private Timer cursorTimer; // Sends the latest caret position once the interval has passed
+    private Timer checksumTimer; // Sends the hash of the document so the server can repair it if it has drifted
     private boolean onlineMode = false;
+    private volatile boolean spectating = false; // Watching a session read-only, the server sends the rendered HTML
+    private List<String> spectatorBlocks; // Rendered blocks of the watched document
+    private long spectatorVersion; // Version the blocks were rendered from
     private AtomicBoolean serverRunning = new AtomicBoolean(false);
     private String sessionIdText;
+    private volatile String resumeToken; // Lets a reconnect back into the session without the password
+    private volatile Long resumeSequence; // Last version or sequence seen before the connection was lost
+    private volatile String sessionPassword; // Used to reconnect when the token has expired
     private String lastBroadcastedMarkdown = "";
     MongoClientConnection myclient = new MongoClientConnection();
     private String loggedInUserId; // To store the logged-in user's ID
     private Stack<String> undoStack;
     private Stack<String> redoStack;
-    int k = 1;
     
     /**
      *  The constructor MarkdownEditorApp is called whenever you start the program which creates
@@ -61,6 +85,7 @@ public class MarkdownEditorApp extends JFrame {
         markdownPreview = new MarkdownPreview();
         add(markdownEditor);
         add(markdownPreview);
+        markdownPreview.follow(markdownEditor.getMarkdownPane().getDocument(), markdownEditor.getEditPipeline());
         
         // Initializes the menu bar, which holds the application’s main menu options.
         JMenuBar menuBar = new JMenuBar();
@@ -93,6 +118,8 @@ public class MarkdownEditorApp extends JFrame {
         
         // Update Preview button for manual update of the markdown preview pane.
         JMenuItem updatePreviewButton = new JMenuItem("Update Preview");
+        // Live Preview toggles the preview that re-renders the edited blocks while typing.
+        livePreviewMenuItem = new JCheckBoxMenuItem("Live Preview", false);
 
         
         // Adds account-related actions to the account menu.
@@ -108,10 +135,12 @@ public class MarkdownEditorApp extends JFrame {
         JMenu sessionMenu = new JMenu("Session");
         JMenuItem createSessionMenuItem = new JMenuItem("Create Session");
         JMenuItem joinSessionMenuItem = new JMenuItem("Join Session");
+        JMenuItem spectateSessionMenuItem = new JMenuItem("Spectate Session");
         JMenuItem leaveSessionMenuItem = new JMenuItem("Leave Session");
 
         sessionMenu.add(createSessionMenuItem);
         sessionMenu.add(joinSessionMenuItem);
+        sessionMenu.add(spectateSessionMenuItem);
         sessionMenu.add(leaveSessionMenuItem);
         menuBar.add(sessionMenu);
         
@@ -144,6 +173,7 @@ public class MarkdownEditorApp extends JFrame {
         insertMenu.add(unorderedListMenuItem);
         menuBar.add(insertMenu);
         menuBar.add(updatePreviewButton);
+        menuBar.add(livePreviewMenuItem);
         
         // Sets the menu bar for the main window.
         setJMenuBar(menuBar);
@@ -181,19 +211,66 @@ public class MarkdownEditorApp extends JFrame {
         createSessionMenuItem.addActionListener(e -> createSession());
         
         // Action listener for joining a session.
-        joinSessionMenuItem.addActionListener(e -> joinSession(JOptionPane.showInputDialog(this, "Enter Session ID:")));
+        joinSessionMenuItem.addActionListener(e -> joinSession(JOptionPane.showInputDialog(this, "Enter Session ID:"), false));
+        
+        // Action listener for watching a session without editing it.
+        spectateSessionMenuItem.addActionListener(e -> joinSession(JOptionPane.showInputDialog(this, "Enter Session ID:"), true));
         
         // Action listener for leaving a session.
         leaveSessionMenuItem.addActionListener(e -> leaveSession());
         
-        // Listens for text changes in the markdown editor to broadcast updates to other session members if needed.
-        markdownEditor.addTextChangeListener(markdownText -> {
-            if (!isRemoteUpdate) {
-                // Only broadcasts text changes if it's not from a remote update to avoid loops.
+        // Records the text for undo once the user pauses typing; edits of other users are not undone
+        markdownEditor.addTextChangeListener(UNDO_DEBOUNCE_MILLIS, (markdownText, changedFrom, changedTo) -> {
+            if (localEditPending) {
+                localEditPending = false;
             	broadcastMarkdownText(markdownText);
             }
         });
         
+        // Listens for single edits in the markdown editor and sends them as operations while in a session.
+        // Operations are sent per edit, because a remote operation applied in between must find them in the sync
+        markdownEditor.addEditListener(new MarkdownEditor.EditListener() {
+            @Override
+            public void onInsert(int offset, String insertedText, int documentLength) {
+                localEditPending |= !isRemoteUpdate && !isHistoryUpdate;
+                if (crdtSync != null && onlineMode && !isRemoteUpdate) {
+                    crdtSync.localInsert(offset, insertedText);
+                    return;
+                }
+                sendOperation(new TextOperation()
+                        .retain(offset)
+                        .insert(insertedText)
+                        .retain(documentLength - offset - insertedText.length()));
+            }
+
+            @Override
+            public void onRemove(int offset, int length, int documentLength) {
+                localEditPending |= !isRemoteUpdate && !isHistoryUpdate;
+                if (crdtSync != null && onlineMode && !isRemoteUpdate) {
+                    crdtSync.localRemove(offset, length);
+                    return;
+                }
+                sendOperation(new TextOperation()
+                        .retain(offset)
+                        .delete(length)
+                        .retain(documentLength - offset));
+            }
+        });
+        
+        // Sends the caret and selection to the other session members, the last position of a burst
+        // of moves is sent once the interval has passed
+        cursorTimer = new Timer(CURSOR_INTERVAL_MILLIS, e -> sendCursor());
+        cursorTimer.setRepeats(false);
+        markdownEditor.getMarkdownPane().addCaretListener(e -> {
+            if (onlineMode && !cursorTimer.isRunning()) {
+                cursorTimer.start();
+            }
+        });
+        
+        // Compares the document with the server copy from time to time, missed or misapplied updates are repaired
+        checksumTimer = new Timer(CHECKSUM_INTERVAL_MILLIS, e -> sendChecksum());
+        checksumTimer.start();
+        
         // Action listener for manually updating the preview pane with the editor's current content.
         updatePreviewButton.addActionListener(e -> {
             // Get the current content from the markdown editor and updates the preview panel.
@@ -202,6 +279,10 @@ public class MarkdownEditorApp extends JFrame {
             markdownPreview.updatePreview(markdownText);
         });
         
+        // Spectators see the document rendered by the server instead
+        livePreviewMenuItem.addActionListener(e -> markdownPreview.setLive(livePreviewMenuItem.isSelected() && !spectating));
+        markdownPreview.setLive(livePreviewMenuItem.isSelected());
+        
         // Makes the UI visible after initialization.
         setVisible(true);
     }
@@ -249,15 +330,13 @@ public class MarkdownEditorApp extends JFrame {
         }
     }
     
- // Reverts the editor to the previous state by popping from the undo stack
+ // Reverts the editor to the text before the last burst of edits by popping from the undo stack
     private void undo() {
-        if (undoStack.size() > 1) {
-            k = 0;
+        markdownEditor.getEditPipeline().flush(); // Records the edits made since the last pause first
+        if (!undoStack.isEmpty()) {
             // Push current text to redo stack before undo
             redoStack.push(markdownEditor.getMarkdownPane().getText());
-            String secondLastText = undoStack.pop();
-            markdownEditor.getMarkdownPane().setText(secondLastText);
-            undoStack.pop();
+            restoreText(undoStack.pop());
         } else {
             JOptionPane.showMessageDialog(this, "No actions to undo.", "Undo", JOptionPane.INFORMATION_MESSAGE);
         }
@@ -265,15 +344,26 @@ public class MarkdownEditorApp extends JFrame {
 
  // Re-applies a previously undone change by popping from the redo stack
     private void redo() {
+        markdownEditor.getEditPipeline().flush();
         if (!redoStack.isEmpty()) {
             // Push current text to undo stack before redo
             undoStack.push(markdownEditor.getMarkdownPane().getText());
-            String lastRedoText = redoStack.pop();
-            markdownEditor.getMarkdownPane().setText(lastRedoText);
+            restoreText(redoStack.pop());
         } else {
             JOptionPane.showMessageDialog(this, "No actions to redo.", "Redo", JOptionPane.INFORMATION_MESSAGE);
         }
     }
+
+ // Replaces the text with one from the history; it is still sent to the session like any other edit
+    private void restoreText(String text) {
+        isHistoryUpdate = true;
+        try {
+            markdownEditor.getMarkdownPane().setText(text);
+        } finally {
+            isHistoryUpdate = false;
+        }
+        lastBroadcastedMarkdown = text;
+    }
     
  // Opens a dialog for creating a new account with username and password fields
     private void createAccountDialog(JTextField usernameField, JPasswordField passwordField) {
@@ -382,7 +472,7 @@ public class MarkdownEditorApp extends JFrame {
         JPanel panel = new JPanel(new GridLayout(friends.size(), 2)); // Create panel to display friends
         for (String friend : friends) {
             JButton joinButton = new JButton("Join Session");
-            joinButton.addActionListener(e -> joinSession(myclient.joinFriendSession(loggedInUserId, friend))); // Join session for the friend
+            joinButton.addActionListener(e -> joinSession(myclient.joinFriendSession(loggedInUserId, friend), false)); // Join session for the friend
             panel.add(new JLabel(friend)); // Display friend's name
             panel.add(joinButton); // Add join button
         }
@@ -397,9 +487,10 @@ public class MarkdownEditorApp extends JFrame {
             return;
         }
         try {
-            // Prompt the user to enter a password to secure the session
+            // Prompt the user to enter a password to secure the session and to choose how edits are merged
             JPasswordField passwordField = new JPasswordField();
-            int option = JOptionPane.showConfirmDialog(this, passwordField, "Enter password for the session:",
+            JCheckBox crdtCheckBox = new JCheckBox("Merge edits on every client (CRDT)");
+            int option = JOptionPane.showConfirmDialog(this, new Object[] { passwordField, crdtCheckBox }, "Enter password for the session:",
                     JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
 
             // If the user cancels, exit the method
@@ -410,12 +501,16 @@ public class MarkdownEditorApp extends JFrame {
             // Retrieve password as a String
             String password = new String(passwordField.getPassword());
             
-            // Generate a unique session ID and initialize the WebSocket connection for collaboration
+            // Generate a unique session ID and create the session with its password and engine in the handshake
             String sessionId = UUID.randomUUID().toString();
-            webSocketClient = new MarkdownWebSocketClient("ws://collaborativemarkdowneditor.onrender.com/collaborate/" + sessionId);
+            webSocketClient = new MarkdownWebSocketClient("ws://collaborativemarkdowneditor.onrender.com/collaborate/" + sessionId,
+                    Map.of(MarkdownWebSocketClient.PASSWORD_HEADER, password,
+                            MarkdownWebSocketClient.CREATE_HEADER, crdtCheckBox.isSelected() ? "crdt" : "ot"));
             
          // Set handler to process incoming messages
             webSocketClient.setMessageHandler(this::onWebSocketMessage);
+            sessionPassword = password;
+            webSocketClient.enableReconnect(this::reconnectCredentials, this::connectionLost, this::reconnectStopped);
             onlineMode = true;
             sessionIdText = sessionId; // Save session ID for display or future reference
             markdownEditor.getMarkdownPane().setText(sessionIdText);
@@ -426,8 +521,14 @@ public class MarkdownEditorApp extends JFrame {
                 myclient.addSessionId(loggedInUserId, sessionId);
             }
             
-            // Send password to secure the session
-            webSocketClient.send("setPassword:" + password);
+            // A new session starts with an empty document, so the current text is sent as the first edit
+            if (crdtCheckBox.isSelected()) {
+                crdtSync = new CrdtSync(new RgaDocument(ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE)), 0, this::sendToServer);
+                crdtSync.localInsert(0, markdownEditor.getMarkdownPane().getText());
+            } else {
+                startOperationSync(0);
+                operationSync.applyClient(new TextOperation().insert(markdownEditor.getMarkdownPane().getText()));
+            }
             JOptionPane.showMessageDialog(this, "Session created! Session ID: " + sessionId, "Session Created", JOptionPane.INFORMATION_MESSAGE);
             serverRunning.set(true); // Indicate that a session is now running
         } catch (Exception e) {
@@ -437,7 +538,8 @@ public class MarkdownEditorApp extends JFrame {
         }
     }
 
-    private void joinSession(String sessionLink) {
+ // Joins a session to edit it, or as a spectator that only sees the document rendered by the server
+    private void joinSession(String sessionLink, boolean spectate) {
         // Prevent joining a new session if already connected to another session
         if (onlineMode) {
             JOptionPane.showMessageDialog(this, "Already connected to a session.", "Error", JOptionPane.ERROR_MESSAGE);
@@ -457,13 +559,30 @@ public class MarkdownEditorApp extends JFrame {
             // Retrieve password as a String
             String password = new String(passwordField.getPassword());
             
-            // Connect to the specified session using WebSocket and set a message handler for collaboration
-            webSocketClient = new MarkdownWebSocketClient("ws://collaborativemarkdowneditor.onrender.com/collaborate/" + sessionLink);
+            // Connect to the specified session, the password is checked in the handshake
+            webSocketClient = new MarkdownWebSocketClient("ws://collaborativemarkdowneditor.onrender.com/collaborate/" + sessionLink,
+                    spectate ? Map.of(MarkdownWebSocketClient.PASSWORD_HEADER, password, MarkdownWebSocketClient.SPECTATE_HEADER, "true")
+                            : Map.of(MarkdownWebSocketClient.PASSWORD_HEADER, password));
+            spectating = spectate;
+            if (spectate) {
+                // Spectators cannot edit, the editor stays empty and the preview shows the session
+                markdownPreview.setLive(false);
+                isRemoteUpdate = true;
+                markdownEditor.getMarkdownPane().setText("");
+                isRemoteUpdate = false;
+                markdownEditor.getMarkdownPane().setEditable(false);
+            }
             webSocketClient.setMessageHandler(this::onWebSocketMessage);
+            sessionPassword = password;
+            webSocketClient.enableReconnect(this::reconnectCredentials, this::connectionLost, this::reconnectStopped);
             onlineMode = true;
             sessionIdText = sessionLink; // Store the session ID
-            webSocketClient.send("join:" + password); // Send join request with password to authenticate
             JOptionPane.showMessageDialog(this, "Attempting to connect to session: " + sessionLink, "Connecting", JOptionPane.INFORMATION_MESSAGE);
+        } catch (ExecutionException e) {
+            // The server refuses the handshake when the password is wrong or the session does not exist
+            e.printStackTrace();
+            onlineMode = false;
+            JOptionPane.showMessageDialog(this, "Incorrect password or unknown session. Please try again.", "Error", JOptionPane.ERROR_MESSAGE);
         } catch (URISyntaxException e) {
             e.printStackTrace();
             onlineMode = false;
@@ -500,7 +619,7 @@ public class MarkdownEditorApp extends JFrame {
         if (webSocketClient != null) {
             try {
                 webSocketClient.close();
-                webSocketClient = null; // Reset client to allow future sessions
+                clearSession();
             } catch (Exception e) {
                 e.printStackTrace();
                 JOptionPane.showMessageDialog(this, "Failed to leave the session properly.", "Error", JOptionPane.ERROR_MESSAGE);
@@ -513,53 +632,356 @@ public class MarkdownEditorApp extends JFrame {
         serverRunning.set(false); 
         JOptionPane.showMessageDialog(this, "You have left the session.", "Session Left", JOptionPane.INFORMATION_MESSAGE);
     }
+
+ // Called on a background thread when the server ended the session for good, so the client stopped reconnecting
+    private void reconnectStopped(String reason) {
+        SwingUtilities.invokeLater(() -> {
+            if (!onlineMode) {
+                return; // Left in the meantime
+            }
+            clearSession();
+            onlineMode = false;
+            serverRunning.set(false);
+            JOptionPane.showMessageDialog(this, "Disconnected from the session: " + reason, "Session Lost", JOptionPane.WARNING_MESSAGE);
+        });
+    }
+
+ // Forgets the state of the session that was left, the text stays in the editor
+    private void clearSession() {
+        webSocketClient = null; // Reset client to allow future sessions
+        markdownEditor.clearRemoteCursors();
+        markdownEditor.getMarkdownPane().setEditable(true);
+        spectating = false;
+        spectatorBlocks = null;
+        markdownPreview.setLive(livePreviewMenuItem.isSelected());
+        resumeToken = null;
+        resumeSequence = null;
+        sessionPassword = null;
+        operationSync = null;
+        crdtSync = null;
+    }
     
  // Handles incoming messages from the WebSocket and updates the editor if not a remote update
     private void onWebSocketMessage(String message) {
         SwingUtilities.invokeLater(() -> {
-            System.out.println("Received message: " + message);
-            if (message.startsWith("SYSTEM:")) {
-                // Extract the actual system message by removing the "SYSTEM:" prefix
-                String systemMessage = message.substring("SYSTEM:".length()).trim();
-                JOptionPane.showMessageDialog(this, "Incorrect password. Please try again.", "Error", JOptionPane.ERROR_MESSAGE);
-                onlineMode = false; // Optionally reset onlineMode
-            }
-            if (!isRemoteUpdate) {
-                isRemoteUpdate = true;
-                markdownEditor.getMarkdownPane().setText(message);
-                //markdownPreview.updatePreview(message);
-                isRemoteUpdate = false;
+            if (message.startsWith(MessageBatch.PREFIX)) {
+                try {
+                    handleBatch(MessageBatch.split(message));
+                } catch (IllegalArgumentException e) {
+                    e.printStackTrace();
+                }
+                return;
             }
+            handleMessage(message);
         });
     }
 
- // Sends the current markdown text to other session users via WebSocket, updating undo stack for both When in a session or alone.
-    private void broadcastMarkdownText(String markdownText) {
-        if (onlineMode && !markdownText.equals(lastBroadcastedMarkdown)) {
+ // Handles the messages the server collected during a burst of edits. Consecutive operations are
+ // composed first, so the editor is updated once for the whole run instead of once per message
+    private void handleBatch(List<String> messages) {
+        TextOperation run = null;
+        int runVersion = 0;
+        for (String message : messages) {
+            String[] messageParts = message.split(":", 3);
+            if ("op".equals(messageParts[0]) && messageParts.length == 3 && operationSync != null) {
+                int version = Integer.parseInt(messageParts[1]);
+                if (run != null && version == runVersion + 1) {
+                    run = run.compose(TextOperation.decode(messageParts[2]));
+                    runVersion = version;
+                    continue;
+                }
+                if (run != null) {
+                    operationSync.applyServer(runVersion, run);
+                    run = null;
+                }
+                if (version > operationSync.getRevision()) {
+                    run = TextOperation.decode(messageParts[2]);
+                    runVersion = version;
+                }
+                continue;
+            }
+            if (run != null) {
+                operationSync.applyServer(runVersion, run);
+                run = null;
+            }
+            handleMessage(message);
+        }
+        if (run != null && operationSync != null) {
+            operationSync.applyServer(runVersion, run);
+        }
+    }
+
+ // Handles a single message of the server, always called on the event dispatch thread
+    private void handleMessage(String message) {
+        if (message.startsWith("SYSTEM:")) {
+            // Extract the actual system message by removing the "SYSTEM:" prefix, e.g. a rejected edit
+            String systemMessage = message.substring("SYSTEM:".length()).trim();
+            JOptionPane.showMessageDialog(this, systemMessage, "Warning", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        if (message.startsWith("token:")) {
+            resumeToken = message.substring("token:".length()); // Replaces the token used for this connection
+            return;
+        }
+        if (message.startsWith("htmldoc:") || message.startsWith("html:")) {
+            handleSpectatorMessage(message);
+            return;
+        }
+        if (message.startsWith("presence:")) {
+            // Expected formats: "presence:clientId:dot:mark", or "presence:clientId:" when the member left
+            String[] presenceParts = message.split(":");
             try {
-                webSocketClient.send(markdownText);
-                undoStack.push(lastBroadcastedMarkdown);
-                redoStack.clear(); // Clear redo stack on new input
-                int numberOfElements = undoStack.size();
-                System.out.println("Number of elements in undoStack: " + numberOfElements);
-                lastBroadcastedMarkdown = markdownText;
-            } catch (Exception e) {
+                if (presenceParts.length == 4) {
+                    markdownEditor.setRemoteCursor(presenceParts[1], Integer.parseInt(presenceParts[2]), Integer.parseInt(presenceParts[3]));
+                } else if (presenceParts.length == 2) {
+                    markdownEditor.removeRemoteCursor(presenceParts[1]);
+                }
+            } catch (NumberFormatException e) {
                 e.printStackTrace();
             }
+            return;
+        }
+        if (message.startsWith("checksumfail:") || message.startsWith("repair:")) {
+            handleRepairMessage(message);
+            return;
         }
-        else if (!onlineMode && !markdownText.equals(lastBroadcastedMarkdown)) {
+        if (message.startsWith("resumed:")) {
+            // The missed messages have been replayed, edits that did not reach the server are sent again
+            if (operationSync != null) {
+                operationSync.resumed();
+            } else if (crdtSync != null) {
+                crdtSync.resumed();
+            }
+            return;
+        }
+        // Expected formats: "doc:version:text", "op:version:operation" and "ack:version", or "crdtdoc:sequence:state",
+        // "crdt:sequence:operations", "crdtack:sequence" and "crdtgc:ids" in CRDT sessions
+        String[] messageParts = message.split(":", 3);
+        try {
+            if (("docz".equals(messageParts[0]) || "crdtdocz".equals(messageParts[0])) && messageParts.length == 3) {
+                // Large snapshots are sent compressed
+                messageParts[0] = messageParts[0].substring(0, messageParts[0].length() - 1);
+                messageParts[2] = SnapshotCodec.decompress(messageParts[2]);
+            }
+            if ("doc".equals(messageParts[0]) && messageParts.length == 3) {
+                // Full document sent when joining or after getting out of sync
+                isRemoteUpdate = true;
+                markdownEditor.getMarkdownPane().setText(messageParts[2]);
+                isRemoteUpdate = false;
+                startOperationSync(Integer.parseInt(messageParts[1]));
+            } else if ("crdtdoc".equals(messageParts[0]) && messageParts.length == 3) {
+                // Replica of a CRDT session sent when joining or after getting out of sync
+                RgaDocument document = RgaDocument.decodeState(messageParts[2], ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE));
+                isRemoteUpdate = true;
+                markdownEditor.getMarkdownPane().setText(document.getText());
+                isRemoteUpdate = false;
+                operationSync = null;
+                crdtSync = new CrdtSync(document, Long.parseLong(messageParts[1]), this::sendToServer);
+            } else if ("crdt".equals(messageParts[0]) && messageParts.length == 3 && crdtSync != null) {
+                applyRemoteCrdtOperations(Long.parseLong(messageParts[1]), messageParts[2]);
+            } else if ("crdtgc".equals(messageParts[0]) && messageParts.length == 2 && crdtSync != null) {
+                crdtSync.purge(messageParts[1]);
+            } else if ("crdtack".equals(messageParts[0]) && messageParts.length == 2 && crdtSync != null) {
+                crdtSync.serverAck(Long.parseLong(messageParts[1]));
+            } else if ("op".equals(messageParts[0]) && messageParts.length == 3 && operationSync != null) {
+                operationSync.applyServer(Integer.parseInt(messageParts[1]), TextOperation.decode(messageParts[2]));
+            } else if ("ack".equals(messageParts[0]) && messageParts.length == 2 && operationSync != null) {
+                operationSync.serverAck(Integer.parseInt(messageParts[1]));
+            }
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+    }
+
+ // Called on a background thread when the connection is lost, before it is opened again. Waits for the
+ // messages that arrived before, so the sequence to resume from includes them
+    private void connectionLost() {
+        try {
+            SwingUtilities.invokeAndWait(() -> {
+                if (operationSync != null) {
+                    operationSync.connectionLost();
+                    resumeSequence = (long) operationSync.getRevision();
+                } else if (crdtSync != null) {
+                    crdtSync.connectionLost();
+                    resumeSequence = crdtSync.getSeen();
+                } else {
+                    resumeSequence = null;
+                }
+            });
+        } catch (InterruptedException | InvocationTargetException e) {
+            e.printStackTrace();
+        }
+    }
+
+ // Credentials of a reconnect: the token and sequence to resume from, and the password if the token has expired
+    private Map<String, String> reconnectCredentials() {
+        Map<String, String> credentials = new HashMap<>();
+        String password = sessionPassword;
+        if (password != null) {
+            credentials.put(MarkdownWebSocketClient.PASSWORD_HEADER, password);
+        }
+        if (spectating) {
+            credentials.put(MarkdownWebSocketClient.SPECTATE_HEADER, "true");
+        }
+        String token = resumeToken;
+        Long sequence = resumeSequence;
+        if (token != null && sequence != null) {
+            credentials.put(MarkdownWebSocketClient.RESUME_TOKEN_HEADER, token);
+            credentials.put(MarkdownWebSocketClient.RESUME_SEQUENCE_HEADER, Long.toString(sequence));
+        }
+        return credentials;
+    }
+
+ // Shows the document rendered by the server to spectators. "htmldoc:version:blocks" holds all blocks,
+ // "html:baseVersion:version:start:removed:blocks" replaces removed blocks from start; blocks are packed like a batch
+    private void handleSpectatorMessage(String message) {
+        try {
+            if (message.startsWith("htmldoc:")) {
+                String[] parts = message.split(":", 3);
+                spectatorBlocks = new ArrayList<>(MessageBatch.split(parts[2]));
+                spectatorVersion = Long.parseLong(parts[1]);
+                markdownPreview.showBlocks(spectatorBlocks);
+            } else {
+                String[] parts = message.split(":", 6);
+                if (spectatorBlocks == null || Long.parseLong(parts[1]) != spectatorVersion) {
+                    return; // Already contained in a newer document the server sent
+                }
+                int start = Integer.parseInt(parts[3]);
+                int removed = Integer.parseInt(parts[4]);
+                List<String> blocks = MessageBatch.split(parts[5]);
+                spectatorBlocks.subList(start, start + removed).clear();
+                spectatorBlocks.addAll(start, blocks);
+                spectatorVersion = Long.parseLong(parts[2]);
+                markdownPreview.replaceBlocks(start, removed, blocks); // Only the divs of the changed blocks are replaced
+            }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            e.printStackTrace();
+        }
+    }
+
+ // Repairs a document that differs from the server copy. "checksumfail:version" asks for the hashes of its blocks,
+ // "repair:version:prefixBlocks:suffixBlocks:text" replaces all but the given leading and trailing blocks with the text
+    private void handleRepairMessage(String message) {
+        String[] parts = message.split(":", 5);
+        try {
+            if (operationSync == null || !operationSync.isSettled() || Integer.parseInt(parts[1]) != operationSync.getRevision()) {
+                return; // Edited since, the next check compares the document again
+            }
+            Document document = markdownEditor.getMarkdownPane().getDocument();
+            CharSequence text = markdownEditor.getSnapshot(); // Hashed in place, the document is not copied
+            int[] ends = DocumentChecksum.blockEnds(text);
+            if (message.startsWith("checksumfail:")) {
+                sendToServer("blocksums:" + parts[1] + ":" + String.join(",", DocumentChecksum.blockHashes(text, ends)));
+                return;
+            }
+            int prefix = Integer.parseInt(parts[2]);
+            int suffix = Integer.parseInt(parts[3]);
+            int start = prefix > 0 ? ends[prefix - 1] : 0;
+            int end = Math.max(start, suffix < ends.length ? ends[ends.length - 1 - suffix] : 0);
+            System.out.println("Repairing characters " + start + " to " + end + " of the document");
+            isRemoteUpdate = true;
             try {
-            	if (k == 1) {
-            		undoStack.push(lastBroadcastedMarkdown);
-                	lastBroadcastedMarkdown = markdownText;
-            	}
-            	else {
-            		k = 1;
-                	lastBroadcastedMarkdown = markdownText;
-            	}
-            } catch (Exception e) {
-                e.printStackTrace();
+                document.remove(start, end - start);
+                document.insertString(start, parts[4], null);
+            } finally {
+                isRemoteUpdate = false;
             }
+        } catch (BadLocationException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            e.printStackTrace();
+        }
+    }
+
+ // Sends the hash of the document while all local edits are acknowledged, so the server can tell if it has drifted
+    private void sendChecksum() {
+        if (!onlineMode || spectating || webSocketClient == null) {
+            return;
+        }
+        String hash = DocumentChecksum.hash(markdownEditor.getSnapshot()); // Read in place, the document is not copied
+        if (operationSync != null && operationSync.isSettled()) {
+            sendToServer("checksum:" + operationSync.getRevision() + ":" + hash);
+        } else if (crdtSync != null && crdtSync.isSettled()) {
+            sendToServer("checksum:" + crdtSync.getSeen() + ":" + hash);
+        }
+    }
+
+ // Starts tracking operations from the given server version
+    private void startOperationSync(int version) {
+        operationSync = new OperationSync(version, this::sendToServer, this::applyRemoteOperation);
+    }
+
+ // Sends the caret and the other end of the selection, positions are lossy and only the latest one counts
+    private void sendCursor() {
+        if (onlineMode && !spectating && webSocketClient != null) {
+            Caret caret = markdownEditor.getMarkdownPane().getCaret();
+            sendToServer("cursor:" + caret.getDot() + ":" + caret.getMark());
+        }
+    }
+
+ // Sends a protocol message to the server of the current session
+    private void sendToServer(String message) {
+        try {
+            webSocketClient.send(message);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+ // Sends a local edit to the server if it was not caused by a remote update
+    private void sendOperation(TextOperation operation) {
+        if (onlineMode && !isRemoteUpdate && operationSync != null) {
+            operationSync.applyClient(operation);
+        }
+    }
+
+ // Applies an operation of another user to the editor without sending it back
+    private void applyRemoteOperation(TextOperation operation) {
+        isRemoteUpdate = true;
+        try {
+            operation.applyTo(markdownEditor.getMarkdownPane().getDocument());
+        } catch (BadLocationException | IllegalArgumentException e) {
+            e.printStackTrace();
+        } finally {
+            isRemoteUpdate = false;
+        }
+    }
+
+ // Integrates CRDT operations of another user and mirrors the changes in the editor
+    private void applyRemoteCrdtOperations(long sequence, String operations) {
+        Document document = markdownEditor.getMarkdownPane().getDocument();
+        isRemoteUpdate = true;
+        try {
+            crdtSync.applyRemote(sequence, operations, new RgaDocument.RemoteEditListener() {
+                @Override
+                public void onInsert(int index, String text) {
+                    try {
+                        document.insertString(index, text, null);
+                    } catch (BadLocationException e) {
+                        e.printStackTrace();
+                    }
+                }
+
+                @Override
+                public void onDelete(int index, long id) {
+                    try {
+                        document.remove(index, 1);
+                    } catch (BadLocationException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        } finally {
+            isRemoteUpdate = false;
+        }
+    }
+
+ // Records the text before the last burst of local edits on the undo stack, when in a session or alone.
+ // The text is compared in place and only copied when it changed
+    private void broadcastMarkdownText(CharSequence markdownText) {
+        if (!lastBroadcastedMarkdown.contentEquals(markdownText)) {
+            // The edits themselves are sent as operations by sendOperation, only the undo history is kept here
+            undoStack.push(lastBroadcastedMarkdown);
+            redoStack.clear(); // Clear redo stack on new input
+            lastBroadcastedMarkdown = markdownText.toString();
         }
     }
 
@@ -4,17 +4,68 @@ import org.commonmark.parser.Parser;
 import org.commonmark.renderer.html.HtmlRenderer;
 import org.commonmark.ext.gfm.tables.TablesExtension;
 import org.commonmark.ext.gfm.*;
+import org.commonmark.node.Node;
+import org.commonmark.node.SourceSpan;
+import org.commonmark.parser.IncludeSourceSpans;
 import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultCaret;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
 import java.awt.*;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;  
 
+/**
+ * MarkdownPreview shows markdown rendered as HTML. Every top-level block of
+ * the markdown is rendered on its own and shown in its own div, so a change
+ * replaces only the divs of the blocks it touched instead of the whole page,
+ * which keeps the scroll position and the layout of everything else.
+ *
+ * In live mode the preview follows the editor document: it remembers the
+ * line every block starts on, and after a batch of edits it re-parses only
+ * the touched blocks and the block on either side of them. When a
+ * neighbouring block comes out the same, the edit did not reach past it,
+ * otherwise the range grows until it does, e.g. when a code fence was
+ * opened. Documents with link reference definitions are rendered whole,
+ * because a definition changes links in any block.
+ */
 public class MarkdownPreview extends JPanel {
     private static final long serialVersionUID = 1L;
+    private static final int LIVE_PRIORITY = 50; // After the highlighting (100), before the undo history (0)
+    private static final int LIVE_DEBOUNCE_MILLIS = 150; // The preview follows the typing after this pause
+    private static final int LIVE_MAX_DELAY_MILLIS = 400; // and at least this often while the typing goes on
     
     private JEditorPane previewPane; // Pane to render HTML content generated from Markdown
     private Parser parser; // CommonMark parser to parse markdown text
     private HtmlRenderer renderer; // Renders the parsed markdown into HTML
+    private final List<String> shownBlocks = new ArrayList<>(); // HTML of the blocks in the pane, one div each
+    private Document followed; // Editor document shown in live mode
+    private boolean live = false;
+    private List<Block> blocks; // Blocks of the followed document, null while the pane shows something else
+    private int lineCount; // Lines of the followed document when the blocks were last updated
+    private boolean hasReferenceDefinitions; // The followed document may define link references
+
+    // Top-level block of the followed document
+    private static class Block {
+        int startLine; // It ends where the next block starts
+        final String html;
+
+        Block(int startLine, String html) {
+            this.startLine = startLine;
+            this.html = html;
+        }
+
+        // Whether the block was parsed the same as an earlier one that the edits moved by lineDelta lines
+        boolean sameAs(Block earlier, int lineDelta) {
+            return startLine == earlier.startLine + lineDelta && html.equals(earlier.html);
+        }
+    }
 
     public MarkdownPreview() {
         setLayout(new BorderLayout());
@@ -31,11 +82,15 @@ public class MarkdownPreview extends JPanel {
      // Honor font properties
         previewPane.putClientProperty("JEditorPane.honorDisplayProperties", Boolean.TRUE);
         previewPane.setFont(new Font("SansSerif", 0, 20));
+        // Replacing blocks must not scroll the pane to its caret
+        ((DefaultCaret) previewPane.getCaret()).setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
         add((Component)new JScrollPane(this.previewPane), "Center"); // Add preview pane with scroll functionality
         
         // Initialize the CommonMark parser with table extension support (The CommonMark library does not have built-in Tables so an extention is needed)
+        // The source spans tell on which line every block starts
         parser = Parser.builder()
                 .extensions(List.of(TablesExtension.create()))
+                .includeSourceSpans(IncludeSourceSpans.BLOCKS)
                 .build();
         // Initialize HTML renderer with table extension
         renderer = HtmlRenderer.builder()
@@ -46,6 +101,161 @@ public class MarkdownPreview extends JPanel {
 
     // Updates the preview pane with rendered HTML from Markdown text
     public void updatePreview(String markdownText) {
+        // Parse markdown and render it as HTML
+        blocks = null;
+        show(htmlOf(parse(markdownText, 0)));
+    }
+
+    // Shows HTML that was already rendered, e.g. by the server for spectators
+    public void showHtml(String renderedHtml) {
+        showBlocks(List.of(renderedHtml));
+    }
+
+    // Shows HTML that was already rendered as one string per block
+    public void showBlocks(List<String> renderedBlocks) {
+        blocks = null;
+        show(renderedBlocks);
+    }
+
+    // Replaces the given number of blocks from start with blocks that were already rendered
+    public void replaceBlocks(int start, int removed, List<String> renderedBlocks) {
+        blocks = null;
+        patch(start, removed, renderedBlocks);
+    }
+
+    // Lets the preview follow the edits of the document while it is in live mode
+    public void follow(Document document, EditPipeline editPipeline) {
+        followed = document;
+        editPipeline.subscribe(LIVE_PRIORITY, LIVE_DEBOUNCE_MILLIS, LIVE_MAX_DELAY_MILLIS, this::editsApplied);
+    }
+
+    // Turns live mode on or off, turning it on shows the followed document right away
+    public void setLive(boolean live) {
+        this.live = live;
+        if (live && followed != null) {
+            renderAll();
+        }
+    }
+
+    /**
+     * This method re-renders the blocks the edits of the batch touched. The
+     * lines of the batch are mapped to the blocks from before the edits, and
+     * the range is re-parsed with one unchanged block on either side. The
+     * range is doubled at the side where that block came out different.
+     */
+    private void editsApplied(EditPipeline.EditBatch batch) {
+        if (!live) {
+            return;
+        }
+        if (blocks == null || hasReferenceDefinitions) {
+            renderAll();
+            return;
+        }
+        Element root = followed.getDefaultRootElement();
+        int newLineCount = root.getElementCount();
+        int lineDelta = newLineCount - lineCount;
+        int firstLine = root.getElementIndex(batch.getFrom());
+        int lastLine = Math.max(firstLine, root.getElementIndex(batch.getTo()) - lineDelta); // Before the edits
+        int first = blockAt(firstLine);
+        int last = Math.max(first, blockAt(lastLine));
+        int from = Math.max(0, first - 1);
+        int to = Math.min(blocks.size(), last + 2);
+        while (true) {
+            int startLine = from == 0 ? 0 : blocks.get(from).startLine;
+            int endLine = to == blocks.size() ? newLineCount : blocks.get(to).startLine + lineDelta;
+            String markdown = text(startLine, endLine);
+            if (markdown.contains("]:")) {
+                renderAll(); // May define a link reference
+                return;
+            }
+            List<Block> parsed = parse(markdown, startLine);
+            boolean startHolds = from == 0 || (!parsed.isEmpty() && parsed.get(0).sameAs(blocks.get(from), 0));
+            boolean endHolds = to == blocks.size()
+                    || (!parsed.isEmpty() && parsed.get(parsed.size() - 1).sameAs(blocks.get(to - 1), lineDelta));
+            if (startHolds && endHolds) {
+                for (int i = to; i < blocks.size(); i++) {
+                    blocks.get(i).startLine += lineDelta;
+                }
+                blocks.subList(from, to).clear();
+                blocks.addAll(from, parsed);
+                lineCount = newLineCount;
+                patch(from, to - from, htmlOf(parsed));
+                return;
+            }
+            int width = to - from;
+            if (!startHolds) {
+                from = Math.max(0, from - width);
+            }
+            if (!endHolds) {
+                to = Math.min(blocks.size(), to + width);
+            }
+        }
+    }
+
+    // Renders the whole followed document
+    private void renderAll() {
+        lineCount = followed.getDefaultRootElement().getElementCount();
+        String markdown = text(0, lineCount);
+        hasReferenceDefinitions = markdown.contains("]:");
+        blocks = parse(markdown, 0);
+        show(htmlOf(blocks));
+    }
+
+    // Index of the block the line belongs to, 0 for the lines before the first block
+    private int blockAt(int line) {
+        int low = 0;
+        int high = blocks.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (blocks.get(middle).startLine <= line) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    // Text of the followed document from the start of one line to the start of another
+    private String text(int startLine, int endLine) {
+        Element root = followed.getDefaultRootElement();
+        if (endLine <= startLine) {
+            return "";
+        }
+        int start = root.getElement(startLine).getStartOffset();
+        int end = endLine >= root.getElementCount() ? followed.getLength() : root.getElement(endLine).getStartOffset();
+        try {
+            return followed.getText(start, Math.max(0, end - start));
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Parses markdown that starts on the given line of the document into its top-level blocks
+    private List<Block> parse(String markdown, int firstLine) {
+        List<Block> parsed = new ArrayList<>();
+        for (Node node = parser.parse(markdown).getFirstChild(); node != null; node = node.getNext()) {
+            List<SourceSpan> spans = node.getSourceSpans();
+            int startLine = spans.isEmpty()
+                    ? (parsed.isEmpty() ? firstLine : parsed.get(parsed.size() - 1).startLine)
+                    : firstLine + spans.get(0).getLineIndex();
+            parsed.add(new Block(startLine, renderer.render(node)));
+        }
+        return parsed;
+    }
+
+    private static List<String> htmlOf(List<Block> blocks) {
+        List<String> html = new ArrayList<>(blocks.size());
+        for (Block block : blocks) {
+            html.add(block.html);
+        }
+        return html;
+    }
+
+    // Replaces the whole page with the given blocks
+    private void show(List<String> renderedBlocks) {
+        shownBlocks.clear();
+        shownBlocks.addAll(renderedBlocks);
         // Custom CSS for styling tables and other elements
         String customStyles = "<style>" +
                 "table { " +
@@ -62,8 +272,83 @@ public class MarkdownPreview extends JPanel {
                 "} " +
                 "</style>";
         
-        // Parse markdown and render it as HTML, then add custom styles
-        String html = customStyles + renderer.render(parser.parse(markdownText));
+        // Add custom styles to the rendered HTML
+        String html = customStyles + divsOf(renderedBlocks);
         previewPane.setText(html); // Set the rendered HTML as the text of previewPane
     }
+
+    /**
+     * This method replaces blocks in the pane. Blocks at the ends of the
+     * range that did not change keep their divs, and the divs of the others
+     * are replaced in the HTML document. The whole page is shown again when
+     * its divs do not match the blocks, or no div would be left to insert
+     * next to.
+     */
+    private void patch(int start, int removed, List<String> renderedBlocks) {
+        List<String> added = renderedBlocks;
+        while (removed > 0 && !added.isEmpty() && shownBlocks.get(start).equals(added.get(0))) {
+            start++;
+            removed--;
+            added = added.subList(1, added.size());
+        }
+        while (removed > 0 && !added.isEmpty() && shownBlocks.get(start + removed - 1).equals(added.get(added.size() - 1))) {
+            removed--;
+            added = added.subList(0, added.size() - 1);
+        }
+        if (removed == 0 && added.isEmpty()) {
+            return;
+        }
+        Element body = body();
+        boolean patchable = body != null && body.getElementCount() == shownBlocks.size() && shownBlocks.size() > removed;
+        List<Element> replaced = new ArrayList<>();
+        for (int i = 0; patchable && i < removed; i++) {
+            replaced.add(body.getElement(start + i));
+        }
+        shownBlocks.subList(start, start + removed).clear();
+        shownBlocks.addAll(start, added);
+        if (!patchable) {
+            show(new ArrayList<>(shownBlocks));
+            return;
+        }
+        HTMLDocument document = (HTMLDocument) previewPane.getDocument();
+        try {
+            if (!added.isEmpty()) {
+                if (!replaced.isEmpty()) {
+                    document.setOuterHTML(replaced.remove(0), divsOf(added));
+                } else if (start > 0) {
+                    document.insertAfterEnd(body.getElement(start - 1), divsOf(added));
+                } else {
+                    document.insertBeforeStart(body.getElement(0), divsOf(added));
+                }
+            }
+            for (Element element : replaced) {
+                document.removeElement(element);
+            }
+        } catch (BadLocationException | IOException e) {
+            e.printStackTrace();
+        }
+        body = body();
+        if (body == null || body.getElementCount() != shownBlocks.size()) {
+            show(new ArrayList<>(shownBlocks)); // The HTML document did not take the divs as they were given
+        }
+    }
+
+    private Element body() {
+        Element root = previewPane.getDocument().getDefaultRootElement();
+        for (int i = 0; i < root.getElementCount(); i++) {
+            Element element = root.getElement(i);
+            if (element.getAttributes().getAttribute(StyleConstants.NameAttribute) == HTML.Tag.BODY) {
+                return element;
+            }
+        }
+        return null;
+    }
+
+    private static String divsOf(List<String> renderedBlocks) {
+        StringBuilder html = new StringBuilder();
+        for (String block : renderedBlocks) {
+            html.append("<div>").append(block).append("</div>");
+        }
+        return html.toString();
+    }
 }
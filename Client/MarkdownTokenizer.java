@@ -0,0 +1,219 @@
+package com.github.aboodRS.collaborative_markdown_editor_server;
+
+import java.util.List;
+
+/**
+ * MarkdownTokenizer splits the lines of a markdown document into style runs.
+ * It reads one line at a time and carries the state the line ends in, such
+ * as being inside a fenced code block or a table, over to the next line.
+ * The editor keeps that state for every line, so after an edit it only
+ * tokenizes from the edited lines until the state at the end of a line is
+ * the same as before; the lines after it are tokenized the same as before.
+ *
+ * The tokenizer only looks at the strings it is given, so it can run on a
+ * background thread while the editor applies the runs on the EDT.
+ */
+public final class MarkdownTokenizer {
+    // State at the end of a line, which is what the next line starts in
+    public enum LineState {
+        TEXT,
+        BACKTICK_FENCE, // Inside a code block opened with ```
+        TILDE_FENCE, // Inside a code block opened with ~~~
+        TABLE // Inside the rows of a table, after its delimiter row
+    }
+
+    public enum Token {
+        HEADER1, HEADER2, BOLD, ITALIC, CODE, BLOCKQUOTE, LIST_ITEM, TABLE, TABLE_HEADER
+    }
+
+    // Part of a line that gets a style, offsets are relative to the start of the line
+    public static class StyleRun {
+        private final int start;
+        private final int length;
+        private final Token token;
+
+        StyleRun(int start, int length, Token token) {
+            this.start = start;
+            this.length = length;
+            this.token = token;
+        }
+
+        public int getStart() {
+            return start;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public Token getToken() {
+            return token;
+        }
+    }
+
+    private MarkdownTokenizer() {
+    }
+
+    /**
+     * This method tokenizes a line that starts in the given state and adds
+     * its runs to the list in the order they must be applied, later runs
+     * overriding earlier ones. The next line, or null for the last line,
+     * decides whether a table row is the header. Returns the state the line
+     * ends in.
+     */
+    public static LineState tokenize(String line, String nextLine, LineState state, List<StyleRun> runs) {
+        String fence = fenceOf(line);
+        if (state == LineState.BACKTICK_FENCE || state == LineState.TILDE_FENCE) {
+            runs.add(new StyleRun(0, line.length(), Token.CODE));
+            boolean closes = fence != null && (fence.charAt(0) == '`') == (state == LineState.BACKTICK_FENCE);
+            return closes ? LineState.TEXT : state;
+        }
+        if (fence != null) {
+            runs.add(new StyleRun(0, line.length(), Token.CODE));
+            return fence.charAt(0) == '`' ? LineState.BACKTICK_FENCE : LineState.TILDE_FENCE;
+        }
+        LineState next = LineState.TEXT;
+        if (line.startsWith("|")) {
+            boolean header = state != LineState.TABLE && nextLine != null && isTableDelimiter(nextLine);
+            addTableRuns(line, header ? Token.TABLE_HEADER : Token.TABLE, runs);
+            next = isTableDelimiter(line) || state == LineState.TABLE ? LineState.TABLE : LineState.TEXT;
+        } else {
+            Token lineToken = lineTokenOf(line);
+            if (lineToken != null) {
+                runs.add(new StyleRun(0, line.length(), lineToken));
+            }
+        }
+        addInlineRuns(line, line.startsWith("* ") ? 2 : 0, runs); // The star of a list item is no emphasis
+        return next;
+    }
+
+    // The ``` or ~~~ that opens or closes a code block on this line, indented by at most three spaces, or null
+    private static String fenceOf(String line) {
+        int indent = 0;
+        while (indent < 3 && indent < line.length() && line.charAt(indent) == ' ') {
+            indent++;
+        }
+        if (line.startsWith("```", indent)) {
+            return "```";
+        }
+        return line.startsWith("~~~", indent) ? "~~~" : null;
+    }
+
+    // Style of the whole line for headers, block quotes and list items, or null
+    private static Token lineTokenOf(String line) {
+        int level = 0;
+        while (level < line.length() && level < 7 && line.charAt(level) == '#') {
+            level++;
+        }
+        if (level >= 1 && level <= 6 && (line.length() == level || line.charAt(level) == ' ')) {
+            return level == 1 ? Token.HEADER1 : Token.HEADER2;
+        }
+        if (line.startsWith(">")) {
+            return Token.BLOCKQUOTE;
+        }
+        if (line.startsWith("* ") || line.startsWith("- ") || line.startsWith("+ ")) {
+            return Token.LIST_ITEM;
+        }
+        int digits = 0;
+        while (digits < line.length() && digits < 9 && Character.isDigit(line.charAt(digits))) {
+            digits++;
+        }
+        if (digits > 0 && (line.startsWith(". ", digits) || line.startsWith(") ", digits))) {
+            return Token.LIST_ITEM;
+        }
+        return null;
+    }
+
+    // Whether the line separates the header of a table from its rows, like "|---|:---:|"
+    private static boolean isTableDelimiter(String line) {
+        String trimmed = line.trim();
+        if (!trimmed.startsWith("|") || !trimmed.contains("---")) {
+            return false;
+        }
+        for (int i = 0; i < trimmed.length(); i++) {
+            char c = trimmed.charAt(i);
+            if (c != '|' && c != '-' && c != ':' && c != ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Styles the cells of a table row, without the pipes between them
+    private static void addTableRuns(String line, Token token, List<StyleRun> runs) {
+        int cellStart = 1;
+        for (int i = 1; i < line.length(); i++) {
+            if (line.charAt(i) == '|' && line.charAt(i - 1) != '\\') {
+                if (i > cellStart) {
+                    runs.add(new StyleRun(cellStart, i - cellStart, token));
+                }
+                cellStart = i + 1;
+            }
+        }
+    }
+
+    /**
+     * This method adds the runs of code spans, bold and italic text. Code
+     * spans are found first, so stars inside them are not taken as emphasis,
+     * and "**" is never read as two italic delimiters. Escaped characters
+     * are skipped.
+     */
+    private static void addInlineRuns(String line, int from, List<StyleRun> runs) {
+        int i = from;
+        while (i < line.length()) {
+            char c = line.charAt(i);
+            if (c == '\\') {
+                i += 2;
+            } else if (c == '`') {
+                int ticks = countRun(line, i, '`');
+                int close = findRun(line, i + ticks, '`', ticks);
+                if (close < 0) {
+                    i += ticks;
+                } else {
+                    runs.add(new StyleRun(i, close + ticks - i, Token.CODE));
+                    i = close + ticks;
+                }
+            } else if (c == '*') {
+                int stars = Math.min(countRun(line, i, '*'), 2);
+                int close = findRun(line, i + stars, '*', stars);
+                if (close < 0) {
+                    i += countRun(line, i, '*');
+                } else {
+                    runs.add(new StyleRun(i, close + stars - i, stars == 2 ? Token.BOLD : Token.ITALIC));
+                    i = close + stars;
+                }
+            } else {
+                i++;
+            }
+        }
+    }
+
+    private static int countRun(String line, int start, char c) {
+        int end = start;
+        while (end < line.length() && line.charAt(end) == c) {
+            end++;
+        }
+        return end - start;
+    }
+
+    // Start of the next run of exactly the given number of the char that is not escaped, or -1
+    private static int findRun(String line, int from, char c, int length) {
+        int i = from;
+        while (i < line.length()) {
+            if (line.charAt(i) == '\\') {
+                i += 2;
+                continue;
+            }
+            if (line.charAt(i) == c) {
+                int run = countRun(line, i, c);
+                if (run == length) {
+                    return i;
+                }
+                i += run;
+                continue;
+            }
+            i++;
+        }
+        return -1;
+    }
+}
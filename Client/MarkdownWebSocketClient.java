@@ -1,40 +1,220 @@
 package com.github.aboodRS.collaborative_markdown_editor_server;
 
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketHttpHeaders;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.client.standard.StandardWebSocketClient;
 import org.springframework.web.socket.client.WebSocketClient;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
 import java.net.URI;
 
 public class MarkdownWebSocketClient {
-    private WebSocketSession session; // The WebSocket session for the connection
+    // Handshake headers the server checks before the connection is opened
+    public static final String PASSWORD_HEADER = "X-Session-Password";
+    public static final String CREATE_HEADER = "X-Session-Create"; // Engine of a new session, "ot" or "crdt"
+    public static final String RESUME_TOKEN_HEADER = "X-Session-Resume-Token";
+    public static final String RESUME_SEQUENCE_HEADER = "X-Session-Resume-Sequence"; // Last version or sequence seen
+    public static final String SPECTATE_HEADER = "X-Session-Spectate"; // "true" to watch without editing
+
+    private static final long MIN_RECONNECT_DELAY_MILLIS = 500;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 10000;
+    // How the container reports a handshake the server refused, e.g. "[403]" or "101: 403"
+    private static final Pattern FORBIDDEN = Pattern.compile("\\b403\\b");
+
+    private final String uri;
+    private final boolean preferBinary; // Whether the binary protocol is asked for
+    private final WebSocketClient client = new StandardWebSocketClient(); // Kept to open the connection again
+    private volatile WebSocketSession session; // The WebSocket session for the connection
     private Consumer<String> messageHandler; // Function to handle incoming messages
+    private final List<String> unhandledMessages = new ArrayList<>(); // Received before the handler was set
+    private volatile boolean binary; // Whether the server accepted the binary protocol
+    private volatile boolean closed; // Closed by the user, the connection is not opened again
+    private volatile Supplier<Map<String, String>> reconnectCredentials; // Null while reconnecting is not enabled
+    private volatile Runnable connectionLostHandler;
+    private volatile Consumer<String> reconnectStoppedHandler;
     
-    // Constructor initializes the WebSocket client and connects to the specified URI
+    // Constructor initializes the WebSocket client and connects to the specified URI using the binary protocol
     public MarkdownWebSocketClient(String uri) throws Exception {
-    	// Create a standard WebSocket client
-        WebSocketClient client = new StandardWebSocketClient(); 
-        
+        this(uri, true, Map.of());
+    }
+
+    // Connects using the binary protocol and presents the given credentials, e.g. PASSWORD_HEADER, in the handshake
+    public MarkdownWebSocketClient(String uri, Map<String, String> credentials) throws Exception {
+        this(uri, true, credentials);
+    }
+
+    // Connects with binary frames, or with text messages like older clients when binary is false
+    // A server that does not accept the credentials refuses the handshake, which fails with an ExecutionException
+    public MarkdownWebSocketClient(String uri, boolean binary, Map<String, String> credentials) throws Exception {
+        this.uri = uri;
+        this.preferBinary = binary;
+        connect(credentials);
+    }
+
+    private void connect(Map<String, String> credentials) throws Exception {
+        // Ask for compressed frames, and for the binary protocol if wanted
+        WebSocketHttpHeaders headers = new WebSocketHttpHeaders();
+        headers.setSecWebSocketExtensions(List.of(new WebSocketExtension("permessage-deflate")));
+        if (preferBinary) {
+            headers.setSecWebSocketProtocol(BinaryProtocol.SUBPROTOCOL);
+        }
+        for (Map.Entry<String, String> credential : credentials.entrySet()) {
+            headers.add(credential.getKey(), credential.getValue());
+        }
+
         // Establish the WebSocket handshake and define the message handling
-        session = client.doHandshake(new TextWebSocketHandler() { 
+        client.execute(new AbstractWebSocketHandler() {
+            @Override
+            public void afterConnectionEstablished(WebSocketSession opened) throws Exception {
+                // Set before any message of the connection is handled, so e.g. the edits resent on "resumed:" go out on it
+                // Older servers do not know the binary protocol and keep using text messages
+                binary = BinaryProtocol.SUBPROTOCOL.equals(opened.getAcceptedProtocol());
+                session = opened;
+                if (closed) {
+                    opened.close(); // Closed by the user while the handshake was running
+                }
+            }
+
             @Override
             protected void handleTextMessage(WebSocketSession session, TextMessage message) {
-                // Handle incoming message
-                if (messageHandler != null) { // Check if a message handler is set
-                    messageHandler.accept(message.getPayload()); // Pass the message payload to the handler
+                receive(message.getPayload());
+            }
+
+            @Override
+            protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) {
+                try {
+                    receive(BinaryProtocol.decode(message.getPayload())); // Same text form as the text protocol
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Ignored malformed frame: " + e.getMessage());
+                }
+            }
+
+            @Override
+            public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+                connectionClosed(session, status);
+            }
+        }, headers, URI.create(uri)).get();  // Connect to the WebSocket server at the specified URI
+    }
+
+    // Lets the connection be opened again when it is lost. The handler is called first, on a background
+    // thread, then the credentials are fetched for every attempt, which are retried with growing delays.
+    // When the server ended the session for good, or refuses the credentials, the client stops and
+    // onReconnectStopped gets the reason to show instead
+    public void enableReconnect(Supplier<Map<String, String>> credentials, Runnable onConnectionLost,
+            Consumer<String> onReconnectStopped) {
+        this.connectionLostHandler = onConnectionLost;
+        this.reconnectStoppedHandler = onReconnectStopped;
+        this.reconnectCredentials = credentials;
+    }
+
+    private void connectionClosed(WebSocketSession closedSession, CloseStatus status) {
+        if (closed || reconnectCredentials == null || (session != null && closedSession != session)) {
+            return; // Closed on purpose, or an older connection
+        }
+        if (isFinal(status)) {
+            // Evicted, rejected or full: the next attempt would be turned away the same way
+            String reason = status.getReason() != null && !status.getReason().isEmpty() ? status.getReason()
+                    : "Closed by the server (" + status.getCode() + ")";
+            System.out.println("Connection closed (" + status + "), not reconnecting");
+            stopReconnecting(reason);
+            return;
+        }
+        System.out.println("Connection lost (" + status + "), reconnecting");
+        Thread reconnector = new Thread(this::reconnect, "websocket-reconnect");
+        reconnector.setDaemon(true);
+        reconnector.start();
+    }
+
+    private void reconnect() {
+        Runnable onConnectionLost = connectionLostHandler;
+        if (onConnectionLost != null) {
+            onConnectionLost.run();
+        }
+        long delay = MIN_RECONNECT_DELAY_MILLIS;
+        while (!closed) {
+            try {
+                // Random jitter keeps the clients of a restarted server from all coming back at once
+                Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+                connect(reconnectCredentials.get());
+                System.out.println("Reconnected to " + uri);
+                return;
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                System.out.println("Reconnect failed: " + e.getMessage());
+                if (isForbidden(e)) {
+                    stopReconnecting("The server refused to let this client back in, the password is wrong or the session is gone");
+                    return;
                 }
-                System.out.println("Received message: " + message.getPayload()); // Log the received message
+                delay = Math.min(delay * 2, MAX_RECONNECT_DELAY_MILLIS);
             }
-        }, uri).get();  // Connect to the WebSocket server at the specified URI
+        }
+    }
+
+    // Close statuses with which the server ends a connection for good, other closes are retried
+    private static boolean isFinal(CloseStatus status) {
+        int code = status.getCode();
+        return code == CloseStatus.POLICY_VIOLATION.getCode() // Wrong password, expired token or rate limit
+                || code == CloseStatus.GOING_AWAY.getCode() // Session evicted
+                || code == CloseStatus.SERVICE_OVERLOAD.getCode(); // Session full
+    }
+
+    // Whether the handshake failed because the server refused the credentials
+    private static boolean isForbidden(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause.getMessage() != null && FORBIDDEN.matcher(cause.getMessage()).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void stopReconnecting(String reason) {
+        closed = true;
+        Consumer<String> onReconnectStopped = reconnectStoppedHandler;
+        if (onReconnectStopped != null) {
+            onReconnectStopped.accept(reason);
+        }
+    }
+
+    private void receive(String message) {
+        // Handle incoming message
+        synchronized (unhandledMessages) {
+            if (messageHandler != null) { // Check if a message handler is set
+                messageHandler.accept(message); // Pass the message payload to the handler
+            } else {
+                // The server sends the snapshot and token as soon as the handshake is done, maybe before the
+                // constructor returned, so they are kept for the handler
+                unhandledMessages.add(message);
+            }
+        }
+        System.out.println("Received message: " + message); // Log the received message
     }
 
     // Set the message handler for incoming messages
     // This function allows users to define custom actions for handling messages 
     // received from the WebSocket server, enabling flexible response behavior.
+    // Messages that arrived before the first handler was set are passed to it first, in order.
     public void setMessageHandler(Consumer<String> handler) {
-        this.messageHandler = handler;
+        synchronized (unhandledMessages) {
+            this.messageHandler = handler;
+            if (handler != null) {
+                for (String message : unhandledMessages) {
+                    handler.accept(message);
+                }
+                unhandledMessages.clear();
+            }
+        }
     }
     
     // Send a message to the WebSocket server
@@ -42,8 +222,13 @@ public class MarkdownWebSocketClient {
     // send updates to the server, ensuring that other clients can receive and 
     // reflect those changes promptly.
     public void send(String message) throws Exception {
+        WebSocketSession session = this.session;
         if (session != null && session.isOpen()) {
-            session.sendMessage(new TextMessage(message));
+            if (binary) {
+                session.sendMessage(new BinaryMessage(BinaryProtocol.encode(message)));
+            } else {
+                session.sendMessage(new TextMessage(message));
+            }
         }
     }
     
@@ -52,6 +237,8 @@ public class MarkdownWebSocketClient {
     // connection is properly closed when it's no longer needed, preventing resource leaks 
     // and maintaining application stability.
     public void close() throws Exception {
+        closed = true;
+        WebSocketSession session = this.session;
         if (session != null && session.isOpen()) {
             session.close();  // Close the WebSocket session
             System.out.println("WebSocket session closed.");
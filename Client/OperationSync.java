@@ -0,0 +1,103 @@
+package com.github.aboodRS.collaborative_markdown_editor_server;
+
+import java.util.function.Consumer;
+
+//Keeps the local editor in sync with the server document using operations.
+//At most one operation is in flight at a time; local edits made while waiting
+//for its acknowledgement are collected in a buffer and sent afterwards. Incoming
+//remote operations are transformed against the unacknowledged local edits
+//before they are applied, so both sides end up with the same document.
+//While the connection is lost nothing is sent; when the server has replayed
+//what was missed, the unacknowledged edits are sent again.
+public class OperationSync {
+    private int revision; // Last server version this client has seen
+    private TextOperation outstanding; // Sent to the server, waiting for "ack"
+    private TextOperation buffer; // Local edits made while waiting for the acknowledgement
+    private boolean connected = true; // Whether edits can be sent
+    private final Consumer<String> sender; // Sends wire messages to the server
+    private final Consumer<TextOperation> applier; // Applies remote operations to the editor
+
+    public OperationSync(int revision, Consumer<String> sender, Consumer<TextOperation> applier) {
+        this.revision = revision;
+        this.sender = sender;
+        this.applier = applier;
+    }
+
+    // Handles an edit made in the local editor
+    public void applyClient(TextOperation operation) {
+        if (operation.isNoop()) {
+            return;
+        }
+        if (outstanding == null) {
+            outstanding = operation;
+            send(outstanding);
+        } else if (buffer == null) {
+            buffer = operation;
+        } else {
+            buffer = buffer.compose(operation); // Merge edits so only one buffered operation is sent
+        }
+    }
+
+    // Handles an operation of another client forwarded by the server with its new version
+    public void applyServer(int version, TextOperation operation) {
+        if (version <= revision) {
+            return; // Already contained in the document this client started from
+        }
+        if (outstanding != null) {
+            TextOperation[] pair = TextOperation.transform(outstanding, operation);
+            outstanding = pair[0];
+            operation = pair[1];
+            if (buffer != null) {
+                pair = TextOperation.transform(buffer, operation);
+                buffer = pair[0];
+                operation = pair[1];
+            }
+        }
+        revision = version;
+        applier.accept(operation);
+    }
+
+    // Handles the acknowledgement of the outstanding operation
+    public void serverAck(int version) {
+        // The server applies an edit after everything this client has seen, so an ack at or below the
+        // revision belongs to an edit from before the last snapshot, which already contains it
+        if (outstanding == null || version <= revision) {
+            return;
+        }
+        revision = version;
+        outstanding = buffer;
+        buffer = null;
+        if (outstanding != null) {
+            send(outstanding);
+        }
+    }
+
+    // Called when the connection is lost, edits are kept until the session is resumed
+    public void connectionLost() {
+        connected = false;
+    }
+
+    // Called after the server has replayed the missed messages. An edit it had applied was acknowledged
+    // in the replay, so the outstanding one never reached it and is sent again against the current version
+    public void resumed() {
+        connected = true;
+        if (outstanding != null) {
+            send(outstanding);
+        }
+    }
+
+    // Whether every local edit has been acknowledged, so the editor holds exactly the document at the revision
+    public boolean isSettled() {
+        return connected && outstanding == null;
+    }
+
+    public int getRevision() {
+        return revision;
+    }
+
+    private void send(TextOperation operation) {
+        if (connected) {
+            sender.accept("op:" + revision + ":" + operation.encode());
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AdmissionControl keeps a single client or session from taking the whole
+ * node. Handshakes are refused while the node or the session already has
+ * as many connections as it may have, and every message a client sends is
+ * paid for with tokens from two buckets: one of its connection, checked on
+ * the node it is connected to, and one of its session, checked on the node
+ * that owns it. A message costs its length plus a fixed amount, so both
+ * floods of small messages and large pastes run out of tokens.
+ *
+ * A client that runs out is disconnected instead of having its messages
+ * dropped, because a dropped edit would leave it with a different document
+ * than everyone else. It resumes after its reconnect delay, which slows
+ * down a client that keeps sending too much.
+ */
+public class AdmissionControl {
+    // Attribute holding the TokenBucket of a WebSocket session
+    private static final String RATE_LIMIT_ATTRIBUTE = "rateLimit";
+    private static final int MESSAGE_COST = 128; // Chars every message costs on top of its length
+
+    private final int maxConnections; // Per node
+    private final int maxConnectionsPerSession;
+    private final int maxMessageChars;
+    private final long connectionCharsPerSecond;
+    private final long connectionBurstChars;
+    private final long sessionCharsPerSecond;
+    private final long sessionBurstChars;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong refusedHandshakes = new AtomicLong();
+    private final AtomicLong oversizedMessages = new AtomicLong();
+    private final AtomicLong connectionLimitedClients = new AtomicLong();
+    private final AtomicLong sessionLimitedClients = new AtomicLong();
+
+    public AdmissionControl(int maxConnections, int maxConnectionsPerSession, int maxMessageChars,
+            long connectionCharsPerSecond, long connectionBurstChars, long sessionCharsPerSecond, long sessionBurstChars) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerSession = maxConnectionsPerSession;
+        this.maxMessageChars = maxMessageChars;
+        this.connectionCharsPerSecond = connectionCharsPerSecond;
+        this.connectionBurstChars = connectionBurstChars;
+        this.sessionCharsPerSecond = sessionCharsPerSecond;
+        this.sessionBurstChars = sessionBurstChars;
+    }
+
+    // Returns false if a handshake to the given session, null if it is owned by another node, must be refused
+    public boolean admit(EditingSession editingSession) {
+        if (connections.get() >= maxConnections || isFull(editingSession)) {
+            refusedHandshakes.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    // Whether the session already has as many clients as it may have, checked again when a client is added
+    public boolean isFull(EditingSession editingSession) {
+        return editingSession != null && editingSession.getClients().size() >= maxConnectionsPerSession;
+    }
+
+    public void connectionOpened() {
+        connections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    /**
+     * This method charges a message to the connection it was received on and
+     * returns the status to close the connection with, or null if the message
+     * may be handled. It is called on the node the client is connected to,
+     * before the message is relayed or queued.
+     */
+    public CloseStatus checkConnection(WebSocketSession session, String payload) {
+        if (payload.length() > maxMessageChars) {
+            oversizedMessages.incrementAndGet();
+            return CloseStatus.TOO_BIG_TO_PROCESS.withReason("Message larger than " + maxMessageChars + " chars");
+        }
+        TokenBucket bucket = (TokenBucket) session.getAttributes().computeIfAbsent(RATE_LIMIT_ATTRIBUTE,
+                key -> new TokenBucket(connectionCharsPerSecond, connectionBurstChars));
+        if (!bucket.tryAcquire(cost(payload, connectionBurstChars))) {
+            connectionLimitedClients.incrementAndGet();
+            return CloseStatus.POLICY_VIOLATION.withReason("Rate limit exceeded");
+        }
+        return null;
+    }
+
+    // Charges a message to its session on the node that owns it, returns the status to close the sender with or null
+    public CloseStatus checkSession(EditingSession editingSession, String payload) {
+        TokenBucket bucket = editingSession.getRateLimit(() -> new TokenBucket(sessionCharsPerSecond, sessionBurstChars));
+        if (!bucket.tryAcquire(cost(payload, sessionBurstChars))) {
+            sessionLimitedClients.incrementAndGet();
+            return CloseStatus.SERVICE_OVERLOAD.withReason("Session rate limit exceeded");
+        }
+        return null;
+    }
+
+    // A message as large as allowed needs a full bucket, but never more than the bucket can hold
+    private static long cost(String payload, long burst) {
+        return Math.min(payload.length() + (long) MESSAGE_COST, burst);
+    }
+
+    public int getConnections() {
+        return connections.get();
+    }
+
+    public long getRefusedHandshakes() {
+        return refusedHandshakes.get();
+    }
+
+    public long getOversizedMessages() {
+        return oversizedMessages.get();
+    }
+
+    public long getConnectionLimitedClients() {
+        return connectionLimitedClients.get();
+    }
+
+    public long getSessionLimitedClients() {
+        return sessionLimitedClients.get();
+    }
+}
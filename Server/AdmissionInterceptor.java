@@ -0,0 +1,51 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+
+import java.util.Map;
+
+/**
+ * AdmissionInterceptor refuses handshakes with 503 while this node or the
+ * session has as many connections as it may have, before any credentials
+ * are checked. The Retry-After header tells clients when to try again.
+ * Sessions owned by another node are only counted against this node; their
+ * owner checks the session limit when the client is relayed to it.
+ */
+public class AdmissionInterceptor implements HandshakeInterceptor {
+    private static final String RETRY_AFTER_SECONDS = "5";
+
+    private final AdmissionControl admissionControl;
+    private final SessionRegistry sessionRegistry;
+    private final ClusterRelay clusterRelay;
+
+    public AdmissionInterceptor(AdmissionControl admissionControl, SessionRegistry sessionRegistry, ClusterRelay clusterRelay) {
+        this.admissionControl = admissionControl;
+        this.sessionRegistry = sessionRegistry;
+        this.clusterRelay = clusterRelay;
+    }
+
+    @Override
+    public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler,
+            Map<String, Object> attributes) {
+        String path = request.getURI().getRawPath();
+        String sessionId = path.substring(path.lastIndexOf('/') + 1);
+        EditingSession editingSession = clusterRelay.isLocal(sessionId) ? sessionRegistry.get(sessionId) : null;
+        if (admissionControl.admit(editingSession)) {
+            return true;
+        }
+        System.out.println("Refused a client of session " + sessionId + ": connection limit reached");
+        response.setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+        response.getHeaders().set(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS);
+        return false;
+    }
+
+    @Override
+    public void afterHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler,
+            Exception exception) {
+    }
+}
@@ -0,0 +1,285 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * ClientConnection wraps the WebSocket of one client with a bounded outbound
+ * queue. Messages are queued by the thread that handles an edit and written
+ * by a shared sender pool, one message at a time per socket, so a slow client
+ * never stalls the other clients of its session and concurrent writes to the
+ * same socket cannot happen.
+ *
+ * When the queue is full the slow-consumer policy decides what happens:
+ * COALESCE throws the backlog away and sends one snapshot of the latest
+ * document instead, DISCONNECT closes the connection, and DROP discards the
+ * new message, which is only suitable for best-effort traffic.
+ *
+ * Messages are not written right away but collected for a short batch
+ * window, or until enough text is queued, and then sent as one batch frame.
+ * During a typing burst a client gets a few frames instead of one per key.
+ *
+ * Clients that requested the binary subprotocol get every message as a
+ * binary frame, all others get text messages.
+ */
+public class ClientConnection {
+    public enum SlowConsumerPolicy { COALESCE, DROP, DISCONNECT }
+
+    private static final int MAX_FRAMES = 64; // Frames written before the sender thread is handed to other connections
+
+    private final WebSocketSession session;
+    private final Executor sender;
+    private final ScheduledExecutorService flushTimer; // Starts writing when the batch window has passed
+    private final long batchWindowMillis;
+    private final int maxBatchChars; // Queued text that is written without waiting for the window to pass
+    private final int capacity;
+    private final SlowConsumerPolicy policy; // Policy for document messages
+    private final boolean binary; // Whether the client speaks the binary protocol
+    private final ArrayDeque<OutboundMessage> queue = new ArrayDeque<>(); // Guarded by this
+    private final AtomicBoolean draining = new AtomicBoolean(); // Whether a sender thread is writing for this connection
+    private int queuedChars; // Guarded by this
+    private boolean flushScheduled; // Guarded by this
+    private boolean resyncPending; // Guarded by this, a snapshot has to be sent before the queued messages
+    private boolean closed; // Guarded by this
+    private volatile Supplier<OutboundMessage> resyncSupplier; // Builds the snapshot used to coalesce the backlog
+
+    private volatile boolean synced; // Whether the client has received the document, only then it gets updates
+    private volatile long minimumBase; // Edits based on an older version were made before the last snapshot was sent
+
+    // Metrics to find the clients that hold things up
+    private final AtomicLong sentMessages = new AtomicLong();
+    private final AtomicLong sentFrames = new AtomicLong();
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong totalSendNanos = new AtomicLong();
+    private volatile long maxSendNanos;
+
+    public ClientConnection(WebSocketSession session, Executor sender, ScheduledExecutorService flushTimer,
+            long batchWindowMillis, int maxBatchChars, int capacity, SlowConsumerPolicy policy) {
+        this.session = session;
+        this.sender = sender;
+        this.flushTimer = flushTimer;
+        this.batchWindowMillis = batchWindowMillis;
+        this.maxBatchChars = maxBatchChars;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.binary = BinaryProtocol.SUBPROTOCOL.equals(session.getAcceptedProtocol());
+    }
+
+    // Queues a document message, applying the slow-consumer policy if the queue is full
+    public void send(OutboundMessage message) {
+        enqueue(message, policy, capacity);
+    }
+
+    // Queues a message that may be lost, it is dropped once the queue is half full so document messages keep room
+    public void sendBestEffort(OutboundMessage message) {
+        enqueue(message, SlowConsumerPolicy.DROP, capacity / 2);
+    }
+
+    private void enqueue(OutboundMessage message, SlowConsumerPolicy overflowPolicy, int limit) {
+        boolean disconnect = false;
+        boolean flushNow;
+        boolean flushLater = false;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (queue.size() < limit) {
+                queue.add(message);
+                queuedChars += message.getText().length();
+            } else if (overflowPolicy == SlowConsumerPolicy.COALESCE && resyncSupplier != null) {
+                // The snapshot is built when it is sent, so it also contains this message
+                droppedMessages.addAndGet(queue.size() + 1);
+                queue.clear();
+                queuedChars = 0;
+                resyncPending = true;
+            } else if (overflowPolicy == SlowConsumerPolicy.DISCONNECT) {
+                disconnect = true;
+            } else {
+                droppedMessages.incrementAndGet();
+                return;
+            }
+            flushNow = batchWindowMillis <= 0 || queuedChars >= maxBatchChars || resyncPending;
+            if (!flushNow && !flushScheduled) {
+                flushScheduled = true;
+                flushLater = true;
+            }
+        }
+        if (disconnect) {
+            System.out.println("Disconnecting slow client " + session.getId());
+            close(CloseStatus.SESSION_NOT_RELIABLE.withReason("Client cannot keep up"));
+            return;
+        }
+        if (flushNow) {
+            scheduleDrain();
+        } else if (flushLater) {
+            flushTimer.schedule(this::flush, batchWindowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Called when the batch window of the first queued message has passed
+    private void flush() {
+        synchronized (this) {
+            flushScheduled = false;
+        }
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            sender.execute(this::drain);
+        }
+    }
+
+    // Writes queued messages on a sender thread until the queue is empty or enough frames were written
+    private void drain() {
+        try {
+            for (int n = 0; n < MAX_FRAMES && session.isOpen(); n++) {
+                OutboundMessage next = null;
+                boolean resync;
+                synchronized (this) {
+                    resync = resyncPending;
+                    resyncPending = false;
+                    if (!resync && !queue.isEmpty()) {
+                        next = OutboundMessage.batch(pollBatch());
+                    }
+                }
+                if (resync) {
+                    next = resyncSupplier.get();
+                }
+                if (next == null) {
+                    if (resync) {
+                        continue;
+                    }
+                    break;
+                }
+                WebSocketMessage<?> frame = next.toWebSocketMessage(binary);
+                long start = System.nanoTime();
+                session.sendMessage(frame);
+                long elapsed = System.nanoTime() - start;
+                sentMessages.addAndGet(next.getMessageCount());
+                sentFrames.incrementAndGet();
+                sentBytes.addAndGet(frame.getPayloadLength());
+                totalSendNanos.addAndGet(elapsed);
+                if (elapsed > maxSendNanos) {
+                    maxSendNanos = elapsed;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Failed to send to client " + session.getId() + ": " + e.getMessage());
+            close(CloseStatus.SERVER_ERROR);
+        } finally {
+            draining.set(false);
+            if (hasPendingMessages()) {
+                scheduleDrain(); // Messages queued while the last batch was written
+            }
+        }
+    }
+
+    // Takes the queued messages that fit into one frame, at least one
+    private List<OutboundMessage> pollBatch() {
+        List<OutboundMessage> batch = new ArrayList<>();
+        int chars = 0;
+        while (!queue.isEmpty() && (batch.isEmpty() || chars + queue.peek().getText().length() <= maxBatchChars)) {
+            OutboundMessage message = queue.poll();
+            chars += message.getText().length();
+            batch.add(message);
+        }
+        queuedChars -= chars;
+        return batch;
+    }
+
+    private synchronized boolean hasPendingMessages() {
+        return !closed && (resyncPending || !queue.isEmpty());
+    }
+
+    public void close(CloseStatus status) {
+        synchronized (this) {
+            closed = true;
+            queue.clear();
+            queuedChars = 0;
+        }
+        try {
+            if (session.isOpen()) {
+                session.close(status);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public WebSocketSession getSession() {
+        return session;
+    }
+
+    public String getId() {
+        return session.getId();
+    }
+
+    public void setResyncSupplier(Supplier<OutboundMessage> resyncSupplier) {
+        this.resyncSupplier = resyncSupplier;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public boolean isSynced() {
+        return synced;
+    }
+
+    public void setSynced(boolean synced) {
+        this.synced = synced;
+    }
+
+    public long getMinimumBase() {
+        return minimumBase;
+    }
+
+    public void setMinimumBase(long minimumBase) {
+        this.minimumBase = minimumBase;
+    }
+
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getSentMessages() {
+        return sentMessages.get();
+    }
+
+    public long getSentFrames() {
+        return sentFrames.get();
+    }
+
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    // Payload bytes before permessage-deflate, which the container applies when the client negotiated it
+    public long getSentBytes() {
+        return sentBytes.get();
+    }
+
+    // Per frame, which is what one write takes; a batch frame carries several messages
+    public long getAverageSendMicros() {
+        long frames = sentFrames.get();
+        return frames == 0 ? 0 : totalSendNanos.get() / frames / 1000;
+    }
+
+    public long getMaxSendMicros() {
+        return maxSendNanos / 1000;
+    }
+}
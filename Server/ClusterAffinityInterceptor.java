@@ -0,0 +1,50 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+
+import java.net.URI;
+import java.util.Map;
+
+/**
+ * ClusterAffinityInterceptor sends clients to the node that owns their
+ * session. A handshake that arrives at another node is answered with a
+ * redirect to the owner, so the client talks to it directly and its edits do
+ * not have to be relayed. Nodes without a known URL are relayed as usual.
+ */
+public class ClusterAffinityInterceptor implements HandshakeInterceptor {
+    private final ClusterRelay clusterRelay;
+    private final Map<String, String> nodeUrls; // Public base URL of every node, e.g. "ws://node-a:8080"
+
+    public ClusterAffinityInterceptor(ClusterRelay clusterRelay, Map<String, String> nodeUrls) {
+        this.clusterRelay = clusterRelay;
+        this.nodeUrls = nodeUrls;
+    }
+
+    @Override
+    public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler,
+            Map<String, Object> attributes) {
+        URI uri = request.getURI();
+        String path = uri.getRawPath();
+        String sessionId = path.substring(path.lastIndexOf('/') + 1);
+        if (clusterRelay.isLocal(sessionId)) {
+            return true;
+        }
+        String ownerUrl = nodeUrls.get(clusterRelay.getOwner(sessionId));
+        if (ownerUrl == null) {
+            return true;
+        }
+        String query = uri.getRawQuery() != null ? "?" + uri.getRawQuery() : "";
+        response.setStatusCode(HttpStatus.TEMPORARY_REDIRECT);
+        response.getHeaders().setLocation(URI.create(ownerUrl + path + query));
+        return false;
+    }
+
+    @Override
+    public void afterHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler,
+            Exception exception) {
+    }
+}
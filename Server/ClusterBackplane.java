@@ -0,0 +1,26 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * ClusterBackplane carries messages between the nodes of a cluster. Every
+ * node has its own topic, which the other nodes publish to with send().
+ * Messages from one node to another arrive in the order they were sent.
+ */
+public interface ClusterBackplane {
+    interface Listener {
+        void onMessage(String fromNodeId, String message);
+    }
+
+    String getLocalNodeId();
+
+    // All nodes of the cluster, including this one
+    Collection<String> getNodeIds();
+
+    void setListener(Listener listener);
+
+    void send(String nodeId, String message) throws IOException;
+
+    void close();
+}
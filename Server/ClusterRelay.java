@@ -0,0 +1,169 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * ClusterRelay lets clients of one session connect to different nodes. Every
+ * session is owned by one node, chosen with a consistent-hash ring, which
+ * holds the document and orders all edits. A node that has a client of a
+ * session owned elsewhere relays the client's messages to the owner and
+ * writes the owner's replies back to the client.
+ *
+ * Backplane messages, all sent by the node of the client unless noted:
+ * "connect:clientId:credentials:sessionId", "message:clientId:payload",
+ * "close:clientId:code", and from the owner "deliver:clientId:payload"
+ * and "disconnect:clientId:code:reason". The handshake credentials of a
+ * relayed client are checked by the owner, which knows the session password;
+ * the backplane encrypts them on the way.
+ */
+public class ClusterRelay {
+    // Callbacks into the handler for clients of sessions owned by this node
+    public interface Endpoint {
+        void connect(WebSocketSession session);
+
+        void message(WebSocketSession session, String payload);
+
+        void disconnect(WebSocketSession session, CloseStatus status);
+    }
+
+    private final ClusterBackplane backplane;
+    private final ConsistentHashRing ring;
+    private final Function<WebSocketSession, ClientConnection> localConnectionFactory; // Writes relayed replies to local sockets
+    private final Map<String, ClientConnection> localClients = new ConcurrentHashMap<>(); // Local sockets of sessions owned elsewhere
+    private final Map<String, RelayedClientSession> relayedClients = new ConcurrentHashMap<>(); // Remote clients of sessions owned here
+    private volatile Endpoint endpoint;
+
+    public ClusterRelay(ClusterBackplane backplane, ConsistentHashRing ring,
+            Function<WebSocketSession, ClientConnection> localConnectionFactory) {
+        this.backplane = backplane;
+        this.ring = ring;
+        this.localConnectionFactory = localConnectionFactory;
+        backplane.setListener(this::onBackplaneMessage);
+    }
+
+    public void setEndpoint(Endpoint endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    public String getOwner(String sessionId) {
+        return ring.ownerOf(sessionId);
+    }
+
+    public boolean isLocal(String sessionId) {
+        return backplane.getLocalNodeId().equals(ring.ownerOf(sessionId));
+    }
+
+    // Starts relaying a local client of a session owned by another node
+    public void connect(String sessionId, WebSocketSession session) {
+        localClients.put(session.getId(), localConnectionFactory.apply(session));
+        SessionCredentials credentials = (SessionCredentials) session.getAttributes().get(SessionAuthInterceptor.CREDENTIALS_ATTRIBUTE);
+        if (credentials == null) {
+            credentials = new SessionCredentials(null, null, null, null, null);
+        }
+        sendToOwner(sessionId, session, "connect:" + session.getId() + ":" + credentials.encode() + ":" + sessionId);
+    }
+
+    public void forward(String sessionId, WebSocketSession session, String payload) {
+        sendToOwner(sessionId, session, "message:" + session.getId() + ":" + payload);
+    }
+
+    public void disconnect(String sessionId, WebSocketSession session, CloseStatus status) {
+        ClientConnection connection = localClients.remove(session.getId());
+        if (connection != null) {
+            connection.close(status);
+            sendToOwner(sessionId, session, "close:" + session.getId() + ":" + status.getCode());
+        }
+    }
+
+    private void sendToOwner(String sessionId, WebSocketSession session, String message) {
+        try {
+            backplane.send(ring.ownerOf(sessionId), message);
+        } catch (IOException e) {
+            System.out.println("Owner of session " + sessionId + " is unreachable: " + e.getMessage());
+            ClientConnection connection = localClients.remove(session.getId());
+            if (connection != null) {
+                connection.close(CloseStatus.SERVICE_RESTARTED.withReason("Session is unavailable"));
+            }
+        }
+    }
+
+    // Sends a reply of this node, the owner, to a client connected to another node
+    void deliver(RelayedClientSession session, String payload) throws IOException {
+        backplane.send(session.getNodeId(), "deliver:" + session.getClientId() + ":" + payload);
+    }
+
+    // Called once when the owner closes a relayed client
+    void closeRelayed(RelayedClientSession session, CloseStatus status) {
+        relayedClients.remove(session.getId(), session);
+        try {
+            String reason = status.getReason() != null ? status.getReason() : "";
+            backplane.send(session.getNodeId(), "disconnect:" + session.getClientId() + ":" + status.getCode() + ":" + reason);
+        } catch (IOException e) {
+            System.out.println("Could not close relayed client " + session.getId() + ": " + e.getMessage());
+        }
+        endpoint.disconnect(session, status);
+    }
+
+    private void onBackplaneMessage(String fromNodeId, String message) {
+        String[] parts = message.split(":", 3); // Expected format: "type:clientId:rest"
+        if (parts.length < 3) {
+            System.out.println("Ignored malformed backplane message from " + fromNodeId);
+            return;
+        }
+        String type = parts[0];
+        if ("connect".equals(type)) {
+            String[] connect = parts[2].split(":", 2); // Expected format: "credentials:sessionId"
+            SessionCredentials credentials;
+            try {
+                credentials = SessionCredentials.decode(connect[0]);
+            } catch (IllegalArgumentException e) {
+                credentials = null;
+            }
+            if (connect.length < 2 || credentials == null) {
+                System.out.println("Ignored malformed connect message from " + fromNodeId);
+                return;
+            }
+            RelayedClientSession session = new RelayedClientSession(this, fromNodeId, parts[1], connect[1], credentials);
+            relayedClients.put(session.getId(), session);
+            endpoint.connect(session);
+        } else if ("message".equals(type)) {
+            RelayedClientSession session = relayedClients.get(fromNodeId + "/" + parts[1]);
+            if (session != null) {
+                endpoint.message(session, parts[2]);
+            }
+        } else if ("close".equals(type)) {
+            RelayedClientSession session = relayedClients.remove(fromNodeId + "/" + parts[1]);
+            if (session != null && session.markClosed()) {
+                endpoint.disconnect(session, closeStatus(parts[2], null));
+            }
+        } else if ("deliver".equals(type)) {
+            ClientConnection connection = localClients.get(parts[1]);
+            if (connection != null) {
+                connection.send(new OutboundMessage(parts[2]));
+            }
+        } else if ("disconnect".equals(type)) {
+            ClientConnection connection = localClients.get(parts[1]);
+            if (connection != null) {
+                String[] status = parts[2].split(":", 2); // Expected format: "code:reason"
+                // The container then reports the closed connection, which calls disconnect()
+                connection.close(closeStatus(status[0], status.length > 1 ? status[1] : null));
+            }
+        }
+    }
+
+    // Close status sent by another node, a code that is not a valid status still closes the connection
+    private static CloseStatus closeStatus(String code, String reason) {
+        try {
+            return new CloseStatus(Integer.parseInt(code), reason);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Received invalid close code " + code + " over the backplane");
+            return CloseStatus.SERVER_ERROR;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ConnectionMetricsController reports the outbound queue of every connected
+ * client, sorted by queue depth, so the clients that hold things up are
+ * listed first, and how many clients were refused or disconnected by the
+ * admission limits.
+ */
+@RestController
+public class ConnectionMetricsController {
+    private final SessionRegistry sessionRegistry;
+    private final AdmissionControl admissionControl;
+
+    public ConnectionMetricsController(SessionRegistry sessionRegistry, AdmissionControl admissionControl) {
+        this.sessionRegistry = sessionRegistry;
+        this.admissionControl = admissionControl;
+    }
+
+    @GetMapping("/metrics/connections")
+    public List<Map<String, Object>> connections() {
+        List<Map<String, Object>> connections = new ArrayList<>();
+        for (EditingSession editingSession : sessionRegistry.getSessions()) {
+            for (ClientConnection client : editingSession.getClients()) {
+                Map<String, Object> metrics = new LinkedHashMap<>();
+                metrics.put("session", editingSession.getId());
+                metrics.put("client", client.getId());
+                metrics.put("protocol", client.isBinary() ? "binary" : "text");
+                metrics.put("queueDepth", client.getQueueDepth());
+                metrics.put("sentMessages", client.getSentMessages());
+                metrics.put("sentFrames", client.getSentFrames());
+                metrics.put("droppedMessages", client.getDroppedMessages());
+                metrics.put("sentBytes", client.getSentBytes());
+                metrics.put("averageSendMicros", client.getAverageSendMicros());
+                metrics.put("maxSendMicros", client.getMaxSendMicros());
+                connections.add(metrics);
+            }
+        }
+        connections.sort(Comparator.comparing(metrics -> -(Integer) metrics.get("queueDepth")));
+        return connections;
+    }
+
+    @GetMapping("/metrics/admission")
+    public Map<String, Object> admission() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("sessions", sessionRegistry.getSessionCount());
+        metrics.put("connections", admissionControl.getConnections());
+        metrics.put("refusedHandshakes", admissionControl.getRefusedHandshakes());
+        metrics.put("oversizedMessages", admissionControl.getOversizedMessages());
+        metrics.put("connectionLimitedClients", admissionControl.getConnectionLimitedClients());
+        metrics.put("sessionLimitedClients", admissionControl.getSessionLimitedClients());
+        return metrics;
+    }
+}
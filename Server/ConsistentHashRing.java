@@ -0,0 +1,44 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * ConsistentHashRing decides which node of the cluster owns a session. Every
+ * node is placed on the ring many times, and a session belongs to the first
+ * node after the hash of its ID. When a node joins or leaves, only the
+ * sessions next to its points move, all others keep their owner.
+ */
+public class ConsistentHashRing {
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    public ConsistentHashRing(Collection<String> nodeIds, int virtualNodes) {
+        if (nodeIds.isEmpty()) {
+            throw new IllegalArgumentException("A cluster needs at least one node");
+        }
+        for (String nodeId : nodeIds) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(nodeId + "#" + i), nodeId);
+            }
+        }
+    }
+
+    public String ownerOf(String sessionId) {
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(sessionId));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue(); // Wrap around the ring
+    }
+
+    // 64-bit FNV-1a followed by the SplitMix64 finalizer, so similar IDs still land far apart
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+}
@@ -0,0 +1,242 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * CrdtSession holds the server side of a session that uses the RgaDocument
+ * engine. The server does not order or transform edits here; it numbers the
+ * relayed messages, keeps a replica for joining clients and decides when
+ * tombstones can be purged.
+ *
+ * A tombstone is purged once every connected client has reported that it has
+ * seen the message that deleted it. Since all messages pass the server in one
+ * order, any insert that still refers to the tombstone was relayed before the
+ * purge message and every replica integrates it first.
+ */
+public class CrdtSession {
+    private static final int PURGE_BATCH_SIZE = 256; // Minimum number of stable tombstones before a purge is sent
+
+    private RgaDocument document = new RgaDocument(0); // Server replica, site 0 never edits
+    private long sequence; // Number of the last relayed message
+    private final Map<String, Long> seenSequence = new HashMap<>(); // Last relayed message each client has seen
+    private final Map<String, Long> departedUntil = new HashMap<>(); // Closed clients that may still resume, until when
+    private final ArrayDeque<long[]> pendingTombstones = new ArrayDeque<>(); // {id, sequence of the delete}
+    private String snapshot; // Cached snapshot message, cleared whenever the replica changes
+    private String checksum; // Cached hash of the text, cleared together with the snapshot
+    private ByteBuffer offHeapState; // Replica state of an idle session while it is kept off the heap, then document is null
+
+    // Registers a client that starts from the current replica
+    public synchronized void register(String clientId) {
+        seenSequence.put(clientId, sequence);
+    }
+
+    public synchronized void unregister(String clientId) {
+        seenSequence.remove(clientId);
+        departedUntil.remove(clientId);
+    }
+
+    /**
+     * This method unregisters a closed client that may resume within the
+     * given time. Until then its tombstones are kept, so edits it made while
+     * it was away still find the characters they refer to.
+     */
+    public synchronized void unregister(String clientId, long retainMillis) {
+        if (retainMillis <= 0) {
+            unregister(clientId);
+        } else {
+            departedUntil.put(clientId, System.currentTimeMillis() + retainMillis);
+        }
+    }
+
+    // Moves the progress of a client that resumed to its new connection
+    public synchronized void resume(String previousClientId, String clientId, long seen) {
+        unregister(previousClientId);
+        seenSequence.put(clientId, seen);
+    }
+
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    // Returns the "crdtdoc:" message with the replica state and the sequence number it includes
+    public synchronized String getSnapshot() {
+        if (snapshot == null) {
+            snapshot = SnapshotCodec.encode("crdtdoc", sequence, document().encodeState());
+        }
+        return snapshot;
+    }
+
+    /**
+     * This method applies operations sent by a client to the server replica and
+     * returns the sequence number under which they are relayed. Only the seen
+     * sequence the client reports is recorded: having its own edit does not
+     * mean it has seen the messages relayed before it, which may delete
+     * characters it still refers to. A malformed message throws IllegalArgumentException before the replica or
+     * the sequence changes.
+     */
+    public synchronized long applyClientOperations(String clientId, long seen, String operations) {
+        long messageSequence = sequence + 1;
+        apply(messageSequence, operations);
+        sequence = messageSequence; // Only once the message is applied, so a rejected one leaves no gap
+        reportSeen(clientId, seen);
+        return messageSequence;
+    }
+
+    // Applies operations read back from the log, the clients that sent them are gone
+    public synchronized void replayOperations(long messageSequence, String operations) {
+        if (messageSequence != sequence + 1) {
+            throw new IllegalArgumentException("Log skips from sequence " + sequence + " to " + messageSequence);
+        }
+        apply(messageSequence, operations);
+        sequence = messageSequence;
+    }
+
+    // Repeats a purge read back from the log
+    public synchronized void replayPurge(String encodedIds) {
+        Set<Long> purged = new HashSet<>(RgaDocument.decodeIdRuns(encodedIds));
+        pendingTombstones.removeIf(tombstone -> purged.contains(tombstone[0]));
+        document().purge(purged);
+        snapshot = null;
+        checksum = null;
+    }
+
+    /**
+     * This method replaces the replica with a snapshot read back from the
+     * log. When its tombstones were deleted is not known anymore, so they are
+     * purged once every client has seen the sequence of the snapshot.
+     */
+    public synchronized void restore(long snapshotSequence, String state) {
+        if (offHeapState != null) {
+            OffHeapStore.release(offHeapState);
+            offHeapState = null;
+        }
+        document = RgaDocument.decodeState(state, 0);
+        sequence = snapshotSequence;
+        pendingTombstones.clear();
+        for (long id : document().getTombstoneIds()) {
+            pendingTombstones.add(new long[] { id, snapshotSequence });
+        }
+        snapshot = null;
+        checksum = null;
+    }
+
+    // Visible text of the replica
+    public synchronized String getText() {
+        return document().getText();
+    }
+
+    // Hash of the text the clients compare their documents with, computed once per change
+    public synchronized String getChecksum() {
+        if (checksum == null) {
+            checksum = DocumentChecksum.hash(document().getText());
+        }
+        return checksum;
+    }
+
+    // Replica with tombstones, not compressed like getSnapshot(), for the log to write outside the lock
+    public synchronized String encodeState() {
+        return document().encodeState();
+    }
+
+    /**
+     * This method moves the replica of an idle session off the heap. It is
+     * decoded again on the next access, so callers do not have to know where
+     * it is. Returns false if it already was off the heap.
+     */
+    public synchronized boolean offload() {
+        if (offHeapState != null) {
+            return false;
+        }
+        offHeapState = OffHeapStore.store(document.encodeState());
+        document = null;
+        snapshot = null;
+        checksum = null;
+        return true;
+    }
+
+    public synchronized boolean isOffloaded() {
+        return offHeapState != null;
+    }
+
+    private RgaDocument document() {
+        if (offHeapState != null) {
+            document = RgaDocument.decodeState(OffHeapStore.load(offHeapState), 0);
+            offHeapState = null;
+        }
+        return document;
+    }
+
+    // Either applies all operations or throws before anything changed, see RgaDocument.applyRemote()
+    private void apply(long messageSequence, String operations) {
+        snapshot = null;
+        checksum = null;
+        document().applyRemote(operations, new RgaDocument.RemoteEditListener() {
+            @Override
+            public void onInsert(int index, String text) {
+            }
+
+            @Override
+            public void onDelete(int index, long id) {
+                pendingTombstones.add(new long[] { id, messageSequence });
+            }
+        });
+    }
+
+    public synchronized long estimateMemoryBytes() {
+        long replica = document != null ? document.estimateMemoryBytes() : 0; // Off-heap replicas use no heap
+        return replica + pendingTombstones.size() * 32L;
+    }
+
+    // Records how far a client has read, never past what was relayed
+    public synchronized void reportSeen(String clientId, long seen) {
+        seenSequence.merge(clientId, Math.min(seen, sequence), Math::max);
+    }
+
+    /**
+     * This method purges the tombstones that every client has seen deleted and
+     * returns them encoded for a "crdtgc:" message, or null if there are not
+     * enough of them yet to be worth a message.
+     */
+    public synchronized String collectGarbage() {
+        if (!departedUntil.isEmpty()) {
+            long now = System.currentTimeMillis();
+            departedUntil.entrySet().removeIf(departed -> {
+                if (departed.getValue() > now) {
+                    return false;
+                }
+                seenSequence.remove(departed.getKey());
+                return true;
+            });
+        }
+        long stable = seenSequence.isEmpty() ? sequence : Collections.min(seenSequence.values());
+        int stableCount = 0;
+        for (long[] tombstone : pendingTombstones) {
+            if (tombstone[1] > stable) {
+                break;
+            }
+            stableCount++;
+        }
+        if (stableCount < PURGE_BATCH_SIZE) {
+            return null;
+        }
+
+        long[] ids = new long[stableCount];
+        Set<Long> purged = new HashSet<>();
+        for (int i = 0; i < stableCount; i++) {
+            ids[i] = pendingTombstones.poll()[0];
+            purged.add(ids[i]);
+        }
+        document().purge(purged);
+        snapshot = null;
+        checksum = null;
+        System.out.println("Purged " + stableCount + " tombstones, " + document().getLength() + " characters at "
+                + String.format("%.1f", document().bytesPerCharacter()) + " bytes per character");
+        return RgaDocument.encodeIdRuns(ids, ids.length);
+    }
+}
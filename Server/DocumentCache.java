@@ -0,0 +1,82 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * DocumentCache keeps exported documents, encoded and ready to be written,
+ * so a document that is fetched again before it changes is neither read
+ * from the session nor rendered again. Every entry belongs to one version
+ * of a session, identified by its ETag; only the latest version of each
+ * session and format is kept. The cache is bounded by the size of the
+ * bodies and drops the least recently used ones first.
+ */
+public class DocumentCache {
+    private static class Entry {
+        final String etag;
+        final byte[] body;
+
+        Entry(String etag, byte[] body) {
+            this.etag = etag;
+            this.body = body;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // Access order
+    private final long maxBytes;
+    private final long maxEntryBytes; // Larger bodies are not cached, they are streamed every time
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    public DocumentCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    // Returns the body cached for the given key if it belongs to the given version, otherwise null
+    public synchronized byte[] get(String key, String etag) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.etag.equals(etag)) {
+            hits++;
+            return entry.body;
+        }
+        misses++;
+        return null;
+    }
+
+    // Caches the body of a version, replacing the older version of the same key
+    public synchronized void put(String key, String etag, byte[] body) {
+        if (body.length > maxEntryBytes) {
+            return;
+        }
+        Entry replaced = entries.put(key, new Entry(etag, body));
+        bytes += body.length - (replaced != null ? replaced.body.length : 0);
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().body.length;
+            eldest.remove();
+        }
+    }
+
+    public boolean isCacheable(long length) {
+        return length <= maxEntryBytes;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
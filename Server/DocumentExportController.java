@@ -0,0 +1,154 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * DocumentExportController serves the document of a session over HTTP, as
+ * Markdown from "/sessions/{sessionId}/document.md" or rendered from
+ * "/sessions/{sessionId}/document.html", for dashboards and jobs that poll
+ * it. The session password is sent in the same header as in the WebSocket
+ * handshake.
+ *
+ * Every response carries the version of the document as its ETag. A poll
+ * with a matching If-None-Match gets 304 without the document being read,
+ * and other polls of an unchanged version are served from the DocumentCache.
+ * Bodies above the stream threshold are written in chunks without a length,
+ * so the container uses chunked transfer encoding instead of buffering them.
+ */
+@RestController
+public class DocumentExportController {
+    private static final int CHUNK_BYTES = 16384;
+
+    private final SessionRegistry sessionRegistry;
+    private final SessionAuthenticator sessionAuthenticator;
+    private final ClusterRelay clusterRelay;
+    private final DocumentCache documentCache;
+    private final int streamThresholdBytes; // Larger bodies are sent without a length, in chunks
+
+    public DocumentExportController(SessionRegistry sessionRegistry, SessionAuthenticator sessionAuthenticator,
+            ClusterRelay clusterRelay, DocumentCache documentCache,
+            @Value("${editor.export.stream-threshold-bytes:65536}") int streamThresholdBytes) {
+        this.sessionRegistry = sessionRegistry;
+        this.sessionAuthenticator = sessionAuthenticator;
+        this.clusterRelay = clusterRelay;
+        this.documentCache = documentCache;
+        this.streamThresholdBytes = streamThresholdBytes;
+    }
+
+    @GetMapping("/sessions/{sessionId}/document.{format}")
+    public void document(@PathVariable String sessionId, @PathVariable String format,
+            @RequestHeader(value = SessionCredentials.PASSWORD_HEADER, required = false) String password,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+            HttpServletResponse response) throws IOException {
+        boolean html = "html".equals(format);
+        if (!html && !"md".equals(format)) {
+            response.sendError(HttpStatus.NOT_FOUND.value(), "Unknown format " + format);
+            return;
+        }
+        // Documents of sessions owned by another node are only there
+        EditingSession editingSession = clusterRelay.isLocal(sessionId) ? sessionRegistry.get(sessionId) : null;
+        if (editingSession == null) {
+            response.sendError(HttpStatus.NOT_FOUND.value(), "Unknown session");
+            return;
+        }
+        if (password == null || sessionAuthenticator.authenticate(sessionId,
+                new SessionCredentials(password, null, null, null, null), new HashMap<>()) == null) {
+            response.sendError(HttpStatus.FORBIDDEN.value());
+            return;
+        }
+
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache"); // Pollers revalidate with the ETag every time
+        String etag = etag(editingSession, editingSession.getSequence(), format);
+        if (matches(ifNoneMatch, etag)) {
+            response.setHeader(HttpHeaders.ETAG, etag);
+            response.setStatus(HttpStatus.NOT_MODIFIED.value());
+            return;
+        }
+        String key = sessionId + "." + format;
+        byte[] body = documentCache.get(key, etag);
+        String text = null;
+        if (body == null) {
+            // The text is read with its version, the document may have changed since the ETag was made
+            CrdtSession crdtSession = editingSession.getCrdtSession();
+            long version;
+            synchronized (crdtSession != null ? crdtSession : editingSession.getDocument()) {
+                version = editingSession.getSequence();
+                text = crdtSession != null ? crdtSession.getText() : editingSession.getDocument().getText();
+            }
+            etag = etag(editingSession, version, format);
+            // A UTF-8 character takes at most three bytes, HTML adds roughly as much again as the text
+            if (documentCache.isCacheable((long) text.length() * (html ? 6 : 3))) {
+                body = (html ? MarkdownRenderer.render(text) : text).getBytes(StandardCharsets.UTF_8);
+                documentCache.put(key, etag, body);
+            }
+        }
+
+        response.setHeader(HttpHeaders.ETAG, etag);
+        response.setContentType(html ? "text/html;charset=UTF-8" : "text/markdown;charset=UTF-8");
+        ServletOutputStream out = response.getOutputStream();
+        if (body == null) {
+            // Too large to be cached, written while it is rendered
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            if (html) {
+                MarkdownRenderer.render(text, writer);
+            } else {
+                writer.write(text);
+            }
+            writer.flush();
+            return;
+        }
+        if (body.length <= streamThresholdBytes) {
+            response.setContentLength(body.length);
+        }
+        for (int offset = 0; offset < body.length; offset += CHUNK_BYTES) {
+            out.write(body, offset, Math.min(CHUNK_BYTES, body.length - offset));
+        }
+    }
+
+    @GetMapping("/metrics/export")
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("cachedDocuments", documentCache.getEntryCount());
+        metrics.put("cachedBytes", documentCache.getBytes());
+        metrics.put("cacheHits", documentCache.getHits());
+        metrics.put("cacheMisses", documentCache.getMisses());
+        return metrics;
+    }
+
+    // The identity keeps a session that was evicted and created again under the same ID from matching old tags
+    private static String etag(EditingSession editingSession, long version, String format) {
+        return "\"" + Integer.toHexString(System.identityHashCode(editingSession)) + "-" + version + "-" + format + "\"";
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2); // Weak comparison, as If-None-Match asks for
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
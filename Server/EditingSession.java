@@ -0,0 +1,226 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.Supplier;
+
+/**
+ * EditingSession bundles everything the server keeps for one collaborative
+ * session: the connected clients, the password hash and the document. It is
+ * shared between the WebSocket threads, so all fields are safe to read and
+ * update concurrently.
+ *
+ * Changes that have to survive a restart are written to the session log as
+ * the same messages the protocol uses: "password:hash", "engine:crdt",
+ * "op:version:operation", "crdt:sequence:operations" and "crdtgc:ids".
+ * Snapshots store the document as a "doc:" or "crdtdoc:" message.
+ */
+public class EditingSession {
+    private final String id;
+    // Copy-on-write, because messages are fanned out to the clients far more often than clients join or leave
+    private final Set<ClientConnection> clients = new CopyOnWriteArraySet<>();
+    private final SessionDocument document;
+    private final ReplayBuffer replayBuffer; // Last updates, for clients that reconnect
+    private final PresenceChannel presence = new PresenceChannel(); // Cursors of the clients, not part of the document
+    private final SpectatorFeed spectatorFeed = new SpectatorFeed(); // Rendered document for clients that only watch
+    private volatile TokenBucket rateLimit; // Created with the first message that is charged to the session
+    private volatile CrdtSession crdtSession; // Only set for sessions created with the CRDT engine
+    private volatile String passwordHash;
+    private volatile long lastActivity = System.currentTimeMillis(); // Time of the last message or membership change
+    private volatile SessionLog log; // Null when the session could not be written to disk
+
+    public EditingSession(String id, int maxHistory, int replayCapacity) {
+        this.id = id;
+        this.document = new SessionDocument(maxHistory);
+        this.replayBuffer = new ReplayBuffer(replayCapacity);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Set<ClientConnection> getClients() {
+        return clients;
+    }
+
+    public SessionDocument getDocument() {
+        return document;
+    }
+
+    public CrdtSession getCrdtSession() {
+        return crdtSession;
+    }
+
+    public ReplayBuffer getReplayBuffer() {
+        return replayBuffer;
+    }
+
+    public PresenceChannel getPresence() {
+        return presence;
+    }
+
+    public SpectatorFeed getSpectatorFeed() {
+        return spectatorFeed;
+    }
+
+    // Bucket the messages of all clients of the session are charged to, created by the given supplier the first time
+    public TokenBucket getRateLimit(Supplier<TokenBucket> supplier) {
+        TokenBucket bucket = rateLimit;
+        if (bucket == null) {
+            synchronized (this) {
+                bucket = rateLimit;
+                if (bucket == null) {
+                    bucket = supplier.get();
+                    rateLimit = bucket;
+                }
+            }
+        }
+        return bucket;
+    }
+
+    // Sequence number of the last update: the document version, or the CRDT sequence
+    public long getSequence() {
+        CrdtSession crdt = crdtSession;
+        return crdt != null ? crdt.getSequence() : document.getVersion();
+    }
+
+    // Switches the session to the CRDT engine, which is only possible before its password is set
+    public synchronized boolean enableCrdt() {
+        if (passwordHash != null) {
+            return false;
+        }
+        if (crdtSession == null) {
+            crdtSession = new CrdtSession();
+        }
+        return true;
+    }
+
+    public String getPasswordHash() {
+        return passwordHash;
+    }
+
+    public synchronized void setPasswordHash(String passwordHash) {
+        this.passwordHash = passwordHash;
+    }
+
+    public SessionLog getLog() {
+        return log;
+    }
+
+    public void setLog(SessionLog log) {
+        this.log = log;
+    }
+
+    // Appends a change to the session log; callers hold the lock that orders the change
+    public void log(String record) {
+        SessionLog current = log;
+        if (current != null) {
+            current.append(record);
+        }
+    }
+
+    /**
+     * This method applies a record read back from the session log when the
+     * server restarts. Records are replayed in the order they were written,
+     * so edits apply to exactly the version they were made for.
+     */
+    public void replay(String record) {
+        String[] parts = record.split(":", 2); // Expected format: "type:rest"
+        if (parts.length < 2) {
+            throw new IllegalArgumentException("Malformed log record " + record);
+        }
+        String type = parts[0];
+        if ("password".equals(type)) {
+            setPasswordHash(parts[1]);
+        } else if ("engine".equals(type)) {
+            enableCrdt();
+        } else if ("op".equals(type)) {
+            String[] operationParts = parts[1].split(":", 2); // Expected format: "version:operation"
+            int version = Integer.parseInt(operationParts[0]);
+            if (version != document.getVersion() + 1) {
+                throw new IllegalArgumentException("Log skips from version " + document.getVersion() + " to " + version);
+            }
+            document.applyOperation(version - 1, TextOperation.decode(operationParts[1]));
+        } else if ("crdt".equals(type) && crdtSession != null) {
+            String[] crdtParts = parts[1].split(":", 2); // Expected format: "sequence:operations"
+            crdtSession.replayOperations(Long.parseLong(crdtParts[0]), crdtParts[1]);
+        } else if ("crdtgc".equals(type) && crdtSession != null) {
+            crdtSession.replayPurge(parts[1]);
+        } else if ("doc".equals(type) || "docz".equals(type) || "crdtdoc".equals(type) || "crdtdocz".equals(type)) {
+            String[] snapshotParts = parts[1].split(":", 2); // Expected format: "version:content"
+            String content = type.endsWith("z") ? SnapshotCodec.decompress(snapshotParts[1]) : snapshotParts[1];
+            if (type.startsWith("crdt")) {
+                if (crdtSession == null) {
+                    throw new IllegalArgumentException("CRDT snapshot in a session without the CRDT engine");
+                }
+                crdtSession.restore(Long.parseLong(snapshotParts[0]), content);
+            } else {
+                document.restore(Integer.parseInt(snapshotParts[0]), content);
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown log record " + type);
+        }
+    }
+
+    /**
+     * This method writes a snapshot of the session to its log, so that the
+     * records before it can be deleted. The session lock is only held to copy
+     * the document and move the log to a new segment; encoding and writing
+     * happen afterwards while edits go on. Returns the bytes written.
+     */
+    public long snapshot() throws IOException {
+        SessionLog current = log;
+        if (current == null) {
+            return 0;
+        }
+        CrdtSession crdt = crdtSession;
+        String type;
+        long version;
+        String content;
+        long segment;
+        synchronized (crdt != null ? crdt : document) {
+            type = crdt != null ? "crdtdoc" : "doc";
+            version = crdt != null ? crdt.getSequence() : document.getVersion();
+            content = crdt != null ? crdt.encodeState() : document.getText();
+            segment = current.startSnapshot();
+        }
+        // Read after the log moved on, so a change written to an older segment is visible here
+        List<String> records = new ArrayList<>();
+        if (crdt != null) {
+            records.add("engine:crdt"); // Before the password, which would prevent switching the engine
+        }
+        String hash = passwordHash;
+        if (hash != null) {
+            records.add("password:" + hash);
+        }
+        records.add(SnapshotCodec.encode(type, version, content));
+        return current.writeSnapshot(segment, records);
+    }
+
+    public void touch() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    // Moves the document off the heap while the session is idle, the next message brings it back
+    public boolean offload() {
+        CrdtSession crdt = crdtSession;
+        synchronized (crdt != null ? crdt : document) {
+            replayBuffer.clear(getSequence()); // Clients coming back to an idle session get a snapshot
+            return crdt != null ? crdt.offload() : document.offload();
+        }
+    }
+
+    // Approximate heap used by the document, the replay buffer and the rendered document of the session
+    public long estimateMemoryBytes() {
+        CrdtSession crdt = crdtSession;
+        return (crdt != null ? crdt.estimateMemoryBytes() : document.estimateMemoryBytes()) + replayBuffer.estimateMemoryBytes()
+                + spectatorFeed.estimateMemoryBytes();
+    }
+}
@@ -0,0 +1,72 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * LoopbackBackplane connects nodes that run in the same JVM, which is used
+ * for a single server and for trying out a cluster in tests. Nodes that
+ * share the same network map can reach each other. Messages are delivered
+ * on a thread of the receiving node, like they would be over the network.
+ */
+public class LoopbackBackplane implements ClusterBackplane {
+    private final String localNodeId;
+    private final Map<String, LoopbackBackplane> network; // Shared by all nodes of one in-process cluster
+    private final ExecutorService delivery;
+    private volatile Listener listener;
+
+    // A single node that is alone in its cluster
+    public LoopbackBackplane(String localNodeId) {
+        this(localNodeId, new ConcurrentHashMap<>());
+    }
+
+    public LoopbackBackplane(String localNodeId, Map<String, LoopbackBackplane> network) {
+        this.localNodeId = localNodeId;
+        this.network = network;
+        this.delivery = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "loopback-" + localNodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+        network.put(localNodeId, this);
+    }
+
+    @Override
+    public String getLocalNodeId() {
+        return localNodeId;
+    }
+
+    @Override
+    public Collection<String> getNodeIds() {
+        return network.keySet();
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void send(String nodeId, String message) throws IOException {
+        LoopbackBackplane target = network.get(nodeId);
+        if (target == null) {
+            throw new IOException("Unknown node " + nodeId);
+        }
+        target.delivery.execute(() -> {
+            Listener targetListener = target.listener;
+            if (targetListener != null) {
+                targetListener.onMessage(localNodeId, message);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        network.remove(localNodeId, this);
+        delivery.shutdownNow();
+    }
+}
@@ -0,0 +1,43 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import org.commonmark.Extension;
+import org.commonmark.ext.gfm.tables.TablesExtension;
+import org.commonmark.node.Node;
+import org.commonmark.parser.Parser;
+import org.commonmark.renderer.html.HtmlRenderer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MarkdownRenderer turns session documents into HTML with commonmark and
+ * the tables extension, like the MarkdownPreview of the client does. The
+ * parser and renderer are immutable, so all sessions and threads share
+ * them.
+ */
+public final class MarkdownRenderer {
+    private static final List<Extension> EXTENSIONS = List.of(TablesExtension.create());
+    private static final Parser PARSER = Parser.builder().extensions(EXTENSIONS).build();
+    private static final HtmlRenderer RENDERER = HtmlRenderer.builder().extensions(EXTENSIONS).build();
+
+    private MarkdownRenderer() {
+    }
+
+    public static String render(String markdown) {
+        return RENDERER.render(PARSER.parse(markdown));
+    }
+
+    // Writes the HTML as it is rendered, without building it as one string first
+    public static void render(String markdown, Appendable out) {
+        RENDERER.render(PARSER.parse(markdown), out);
+    }
+
+    // Renders every top-level block on its own, so unchanged blocks give the same HTML
+    public static List<String> renderBlocks(String markdown) {
+        List<String> blocks = new ArrayList<>();
+        for (Node block = PARSER.parse(markdown).getFirstChild(); block != null; block = block.getNext()) {
+            blocks.add(RENDERER.render(block));
+        }
+        return blocks;
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MessageBatch packs several messages into one "batch:" message, so a burst
+ * of edits reaches a client as a single frame. Every message is prefixed
+ * with its length, for example "batch:5:ack:77:op:8:r1" holds "ack:7" and
+ * "op:8:r1", so the messages never have to be escaped.
+ */
+public final class MessageBatch {
+    public static final String PREFIX = "batch:";
+
+    private MessageBatch() {
+    }
+
+    public static String join(List<String> messages) {
+        int length = PREFIX.length();
+        for (String message : messages) {
+            length += message.length() + 8;
+        }
+        StringBuilder batch = new StringBuilder(length).append(PREFIX);
+        for (String message : messages) {
+            batch.append(message.length()).append(':').append(message);
+        }
+        return batch.toString();
+    }
+
+    // Splits a "batch:" message into the messages it holds
+    public static List<String> split(String batch) {
+        if (!batch.startsWith(PREFIX)) {
+            throw new IllegalArgumentException("Not a batch message");
+        }
+        List<String> messages = new ArrayList<>();
+        int pos = PREFIX.length();
+        while (pos < batch.length()) {
+            int colon = batch.indexOf(':', pos);
+            if (colon < 0) {
+                throw new IllegalArgumentException("Malformed batch at position " + pos);
+            }
+            int length = Integer.parseInt(batch.substring(pos, colon));
+            if (length < 0 || length > batch.length() - colon - 1) { // Not colon + 1 + length, which can overflow
+                throw new IllegalArgumentException("Malformed batch at position " + pos);
+            }
+            messages.add(batch.substring(colon + 1, colon + 1 + length));
+            pos = colon + 1 + length;
+        }
+        return messages;
+    }
+}
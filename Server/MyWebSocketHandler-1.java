@@ -1,82 +1,283 @@
 package com.github.aboodRS.collaborative_markdown_editor;
 
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.SubProtocolCapable;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
+public class MyWebSocketHandler extends AbstractWebSocketHandler implements SubProtocolCapable {
+    // Attribute holding the ClientConnection of a WebSocket session
+    private static final String CONNECTION_ATTRIBUTE = "connection";
 
-public class MyWebSocketHandler extends TextWebSocketHandler {
-    // Maps session IDs to their connected WebSocket sessions
-    private Map<String, List<WebSocketSession>> sessionClients = new HashMap<>();
-    // Stores hashed passwords for each session
-    private Map<String, String> sessionPasswords = new HashMap<>(); 
+    // Holds the clients, password and document of every session
+    private final SessionRegistry sessionRegistry;
+    private final SessionExecutors sessionExecutors; // Handles the messages of each session in order on one thread
+    private final Function<WebSocketSession, ClientConnection> connectionFactory; // Wraps sockets with their outbound queue
+    private final ClusterRelay clusterRelay; // Relays clients of sessions that are owned by another node
+    private final SessionAuthenticator sessionAuthenticator; // Checks relayed clients and issues resume tokens
+    private final ScheduledExecutorService presenceTimer; // Forwards the collected cursor positions of a session
+    private final long presenceIntervalMillis;
+    private final ScheduledExecutorService spectatorRenderer; // Renders the documents of sessions that have spectators
+    private final long renderIntervalMillis; // Edits within this time are rendered together
+    private final AdmissionControl admissionControl; // Limits the connections and message rates of clients and sessions
+
+    public MyWebSocketHandler(SessionRegistry sessionRegistry, SessionExecutors sessionExecutors,
+            Function<WebSocketSession, ClientConnection> connectionFactory, ClusterRelay clusterRelay,
+            SessionAuthenticator sessionAuthenticator, ScheduledExecutorService presenceTimer, long presenceIntervalMillis,
+            ScheduledExecutorService spectatorRenderer, long renderIntervalMillis, AdmissionControl admissionControl) {
+        this.sessionRegistry = sessionRegistry;
+        this.sessionAuthenticator = sessionAuthenticator;
+        this.presenceTimer = presenceTimer;
+        this.presenceIntervalMillis = presenceIntervalMillis;
+        this.spectatorRenderer = spectatorRenderer;
+        this.renderIntervalMillis = renderIntervalMillis;
+        this.admissionControl = admissionControl;
+        this.sessionExecutors = sessionExecutors;
+        this.connectionFactory = connectionFactory;
+        this.clusterRelay = clusterRelay;
+        // Clients connected to other nodes are handled like local ones once their messages arrive here
+        clusterRelay.setEndpoint(new ClusterRelay.Endpoint() {
+            @Override
+            public void connect(WebSocketSession session) {
+                dispatch(session, () -> connectionEstablished(session));
+            }
+
+            @Override
+            public void message(WebSocketSession session, String payload) {
+                if (payload.startsWith("cursor:")) {
+                    handlePresence(session, payload);
+                    return;
+                }
+                if (!chargeSession(session, payload)) {
+                    return;
+                }
+                dispatch(session, () -> processMessage(session, payload));
+            }
+
+            @Override
+            public void disconnect(WebSocketSession session, CloseStatus status) {
+                dispatch(session, () -> connectionClosed(session, status));
+            }
+        });
+    }
 
     /**
      * This method is called when a new client connection is established.
      * It extracts the session ID from the session's URI and adds the session
      * to the corresponding list of connected clients, allowing for message 
-     * routing within that session.
+     * routing within that session. Only clients that passed the handshake
+     * check get here, so every client in the list may receive the session.
+     * Spectators are never marked as synced, so they get no edits and
+     * whatever they send is ignored; they get the rendered document instead.
      */
     @Override
-    public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+    public void afterConnectionEstablished(WebSocketSession session) {
+        admissionControl.connectionOpened();
         String sessionId = extractSessionId(session);
-        sessionClients.putIfAbsent(sessionId, new ArrayList<>());
-        sessionClients.get(sessionId).add(session);
+        if (!clusterRelay.isLocal(sessionId)) {
+            clusterRelay.connect(sessionId, session);
+            return;
+        }
+        dispatch(session, () -> connectionEstablished(session));
+    }
+
+    private void connectionEstablished(WebSocketSession session) throws Exception {
+        String sessionId = extractSessionId(session);
+        SessionAuthenticator.Role role = (SessionAuthenticator.Role) session.getAttributes().get(SessionAuthInterceptor.ROLE_ATTRIBUTE);
+        if (role == null) {
+            // Clients relayed by another node bring their handshake credentials along, they are checked here
+            SessionCredentials credentials = (SessionCredentials) session.getAttributes().get(SessionAuthInterceptor.CREDENTIALS_ATTRIBUTE);
+            try {
+                role = credentials != null ? sessionAuthenticator.authenticate(sessionId, credentials, session.getAttributes()) : null;
+            } catch (IllegalStateException e) {
+                // No new sessions are created while the documents use all the memory the server may spend on them
+                session.close(CloseStatus.SERVICE_OVERLOAD.withReason(e.getMessage()));
+                return;
+            }
+            if (role == null) {
+                session.close(CloseStatus.POLICY_VIOLATION.withReason("Incorrect password for session " + sessionId));
+                return;
+            }
+        }
+
+        if (admissionControl.isFull(sessionRegistry.get(sessionId))) {
+            // Checked here as well because relayed clients and clients that got in at the same time passed the handshake
+            session.close(CloseStatus.SERVICE_OVERLOAD.withReason("Session " + sessionId + " is full"));
+            return;
+        }
+        ClientConnection connection = connectionFactory.apply(session);
+        EditingSession editingSession = sessionRegistry.addClient(sessionId, connection);
+        if (editingSession == null) {
+            session.close(CloseStatus.GOING_AWAY.withReason("Session no longer exists")); // Evicted in the meantime
+            return;
+        }
+        session.getAttributes().put(CONNECTION_ATTRIBUTE, connection);
+        // A client whose queue overflows gets the latest document instead of the messages it missed
+        connection.setResyncSupplier(() -> snapshotFor(editingSession, connection));
+        if (role == SessionAuthenticator.Role.SPECTATOR) {
+            SpectatorFeed spectatorFeed = editingSession.getSpectatorFeed();
+            connection.setResyncSupplier(spectatorFeed::getDocument);
+            if (spectatorFeed.add(connection)) {
+                scheduleRender(editingSession, 0); // The spectator gets the document with the next render
+            }
+        } else if (role == SessionAuthenticator.Role.CREATOR) {
+            if (editingSession.getCrdtSession() != null) {
+                editingSession.getCrdtSession().register(session.getId());
+            }
+            connection.setSynced(true); // The creator starts from the empty document and seeds it with its first edit
+            connection.send(new OutboundMessage(sessionId));
+        } else {
+            // Send one snapshot of the current version, or the updates a resuming client missed; holding the
+            // document lock guarantees that every operation after them, and none before, is forwarded to the client.
+            // CRDT sessions send the replica with its tombstones so the client keeps the same character ids
+            String previousClientId = (String) session.getAttributes().get(SessionAuthInterceptor.RESUMED_CLIENT_ATTRIBUTE);
+            SessionCredentials credentials = (SessionCredentials) session.getAttributes().get(SessionAuthInterceptor.CREDENTIALS_ATTRIBUTE);
+            Long resumeSequence = credentials != null ? credentials.getResumeSequence() : null;
+            Object lock = editingSession.getCrdtSession() != null ? editingSession.getCrdtSession() : editingSession.getDocument();
+            synchronized (lock) {
+                connection.setSynced(true);
+                if (previousClientId == null || resumeSequence == null
+                        || !resume(editingSession, connection, previousClientId, resumeSequence)) {
+                    if (previousClientId != null && editingSession.getCrdtSession() != null) {
+                        editingSession.getCrdtSession().unregister(previousClientId); // Starts over from the snapshot
+                    }
+                    connection.send(snapshotFor(editingSession, connection));
+                }
+            }
+        }
+        // A client that reconnects within the token lifetime presents the token instead of the password
+        connection.send(new OutboundMessage("token:" + sessionAuthenticator.issueToken(sessionId, connection.getId(), role)));
+        if (role != SessionAuthenticator.Role.SPECTATOR) {
+            for (Map.Entry<String, String> position : editingSession.getPresence().getPositions().entrySet()) {
+                connection.sendBestEffort(new OutboundMessage("presence:" + position.getKey() + ":" + position.getValue()));
+            }
+        }
         System.out.println("Client connected to session " + sessionId + ": " + session.getId());
     }
 
     /**
      * This method handles incoming text messages from connected clients.
-     * It processes the message to either set a password for the session or
-     * allow a user to join a session by verifying the provided password.
-     * If the password verification is successful, it allows the user to join
-     * the session; otherwise, it sends an error message and closes the session.
+     * Clients are authenticated before their connection is established, so
+     * every message comes from a member of the session.
+     */
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+        receive(session, message.getPayload());
+    }
+
+    /**
+     * This method handles the binary frames of clients that use the binary
+     * protocol. They are translated to the text message they stand for, so
+     * both kinds of clients go through the same handling.
      */
     @Override
-    protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) {
+        String payload;
+        try {
+            payload = BinaryProtocol.decode(message.getPayload());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Ignored malformed frame from client " + session.getId() + ": " + e.getMessage());
+            return;
+        }
+        receive(session, payload);
+    }
+
+    /**
+     * This method charges a message to the limits of its client before it is
+     * relayed or queued, so a client that floods the server is disconnected
+     * on the WebSocket thread and its messages never reach the other clients.
+     * The limit of the session is charged by the node that owns it.
+     */
+    private void receive(WebSocketSession session, String payload) {
+        CloseStatus limit = admissionControl.checkConnection(session, payload);
+        if (limit != null) {
+            reject(session, limit);
+            return;
+        }
         String sessionId = extractSessionId(session);
-        System.out.println("Received message in session " + sessionId + ": " + message.getPayload());
+        if (!clusterRelay.isLocal(sessionId)) {
+            clusterRelay.forward(sessionId, session, payload);
+            return;
+        }
+        if (payload.startsWith("cursor:")) {
+            handlePresence(session, payload); // Never queued behind the edits of the session, and already throttled
+            return;
+        }
+        if (!chargeSession(session, payload)) {
+            return;
+        }
+        dispatch(session, () -> processMessage(session, payload));
+    }
+
+    // Charges a message to the session it is sent to, returns false if the client was disconnected instead
+    private boolean chargeSession(WebSocketSession session, String payload) {
+        EditingSession editingSession = sessionRegistry.get(extractSessionId(session));
+        CloseStatus limit = editingSession != null ? admissionControl.checkSession(editingSession, payload) : null;
+        if (limit != null) {
+            reject(session, limit);
+            return false;
+        }
+        return true;
+    }
+
+    // Disconnects a client that went over a limit; it resumes after its reconnect delay
+    private void reject(WebSocketSession session, CloseStatus status) {
+        System.out.println("Disconnected client " + session.getId() + " of session " + extractSessionId(session) + ": "
+                + status.getReason());
+        try {
+            session.close(status);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Clients that request this subprotocol get binary frames, permessage-deflate is negotiated by the container
+    @Override
+    public List<String> getSubProtocols() {
+        return List.of(BinaryProtocol.SUBPROTOCOL);
+    }
 
-        // Check for password verification
-        String[] messageParts = message.getPayload().split(":", 2); // Expected format: "action:password"
+    private void processMessage(WebSocketSession session, String payload) throws Exception {
+        String sessionId = extractSessionId(session);
+        System.out.println("Received message in session " + sessionId + ": " + payload);
+        EditingSession editingSession = sessionRegistry.get(sessionId);
+        if (editingSession == null) {
+            session.close(CloseStatus.GOING_AWAY.withReason("Session no longer exists")); // Evicted in the meantime
+            return;
+        }
+        editingSession.touch();
+        ClientConnection connection = getConnection(session);
+        String[] messageParts = payload.split(":", 2); // Expected format: "action:rest"
         String action = messageParts[0];
-        if ("setPassword".equals(action) && messageParts.length > 1) {
-            String password = messageParts[1];
-            String hashedPassword = hashPassword(password); // Hash the password before storing it
-            sessionPasswords.put(sessionId, hashedPassword);
-            session.sendMessage(new TextMessage(sessionId));
-            return;
-        } else if ("join".equals(action) && messageParts.length > 1) {
-            String password = messageParts[1];
-            String hashedPassword = hashPassword(password);
-            String storedPassword = sessionPasswords.get(sessionId);
-            // Validate password
-            if (storedPassword != null && storedPassword.equals(hashedPassword)) {
-                session.sendMessage(new TextMessage("Successfully joined session " + sessionId));
-                return;
-            } else {
-                if (session.isOpen()) {
-                    session.sendMessage(new TextMessage("SYSTEM:Incorrect password for session " + sessionId));
-                }
-                session.close(); // Close session if password is incorrect
-                }
+        if (connection == null || !connection.isSynced()) {
+            System.out.println("Ignored message of a client that has not joined session " + sessionId);
             return;
         }
-        // Forward the message to all other clients in the same session
-        for (WebSocketSession s : sessionClients.get(sessionId)) {
-            if (s.isOpen() && !s.getId().equals(session.getId())) {
-                s.sendMessage(message);
-            }
+        if ("op".equals(action) && messageParts.length > 1) {
+            handleOperation(connection, editingSession, messageParts[1]);
+            return;
+        } else if (("crdt".equals(action) || "crdtseen".equals(action)) && messageParts.length > 1
+                && editingSession.getCrdtSession() != null) {
+            handleCrdtMessage(connection, editingSession, action, messageParts[1]);
+            return;
+        } else if (("checksum".equals(action) || "blocksums".equals(action)) && messageParts.length > 1) {
+            handleChecksum(connection, editingSession, action, messageParts[1]);
+            return;
         }
+        // The server owns the document and only sends its own messages, so nothing a client sends is relayed as is;
+        // this also covers "batch:" frames, which only the server may send
+        System.out.println("Rejected unknown action '" + action + "' of client " + connection.getId() + " in session "
+                + sessionId);
+        connection.send(new OutboundMessage("SYSTEM:Unknown message"));
     }
 
         /**
@@ -86,12 +287,378 @@ public class MyWebSocketHandler extends TextWebSocketHandler {
      * references to closed sessions.
      */
     @Override
-    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        admissionControl.connectionClosed();
+        String sessionId = extractSessionId(session);
+        if (!clusterRelay.isLocal(sessionId)) {
+            clusterRelay.disconnect(sessionId, session, status);
+            return;
+        }
+        dispatch(session, () -> connectionClosed(session, status)); // Runs after the messages the client sent before
+    }
+
+    private void connectionClosed(WebSocketSession session, CloseStatus status) {
         String sessionId = extractSessionId(session); // Extract session ID from the session's URI
-        sessionClients.get(sessionId).remove(session);  // Remove the session from the client list
+        ClientConnection connection = getConnection(session);
+        if (connection == null) {
+            return; // Rejected before it was added to a session
+        }
+        connection.close(status); // Drops the messages that are still queued
+        EditingSession editingSession = sessionRegistry.removeClient(sessionId, connection); // Remove the session from the client list
+        if (editingSession != null && editingSession.getPresence().remove(connection.getId())) {
+            schedulePresenceFlush(editingSession);
+        }
+        if (editingSession != null) {
+            editingSession.getSpectatorFeed().remove(connection);
+        }
+        if (editingSession != null && editingSession.getCrdtSession() != null) {
+            // A closed client must not hold back tombstone purging longer than it may resume
+            editingSession.getCrdtSession().unregister(session.getId(), sessionAuthenticator.getTokenTtlMillis());
+        }
         System.out.println("Client disconnected from session " + sessionId + ": " + session.getId());
     }
 
+    /**
+     * This method handles an edit operation sent as "op:baseVersion:operation".
+     * The operation is transformed against all edits the sender had not seen,
+     * applied to the session document, acknowledged to the sender and forwarded
+     * to the other clients as "op:newVersion:operation". This way only the
+     * changed characters travel over the network instead of the whole document.
+     * Messages are only queued here, so a slow client never delays the others.
+     */
+    private void handleOperation(ClientConnection connection, EditingSession editingSession, String payload) {
+        String[] operationParts = payload.split(":", 2); // Expected format: "baseVersion:operation"
+        if (operationParts.length < 2) {
+            connection.send(new OutboundMessage("SYSTEM:Malformed operation"));
+            return;
+        }
+        SessionDocument document = editingSession.getDocument();
+        // Operations are forwarded while holding the document lock so clients receive them in version order
+        synchronized (document) {
+            TextOperation applied;
+            long growth = 0; // Reserved before the operation is applied, given back if it is rejected
+            try {
+                int baseVersion = Integer.parseInt(operationParts[0]);
+                if (baseVersion < connection.getMinimumBase()) {
+                    return; // Made before the client was sent a new snapshot, which it has replaced its edits with
+                }
+                TextOperation operation = TextOperation.decode(operationParts[1]);
+                growth = (long) (operation.getTargetLength() - operation.getBaseLength()) * Character.BYTES
+                        + operation.estimateMemoryBytes();
+                if (!sessionRegistry.reserveMemory(editingSession, growth)) {
+                    // Reject the edit and send the current document so the client drops it as well
+                    connection.send(new OutboundMessage("SYSTEM:Document size limit reached"));
+                    connection.send(snapshotFor(editingSession, connection));
+                    return;
+                }
+                applied = document.applyOperation(baseVersion, operation);
+            } catch (IllegalArgumentException e) {
+                // The client is out of sync, send it the current document so it can start over
+                sessionRegistry.releaseMemory(growth);
+                System.out.println("Rejected operation in session " + editingSession.getId() + ": " + e.getMessage());
+                connection.send(snapshotFor(editingSession, connection));
+                return;
+            }
+
+            int version = document.getVersion();
+            String encoded = applied.encode();
+            editingSession.log("op:" + version + ":" + encoded); // Only copied into the mapped log, synced in the background
+            connection.send(new OutboundMessage("ack:" + version));
+            OutboundMessage forward = new OutboundMessage("op:" + version + ":" + encoded);
+            editingSession.getReplayBuffer().add(version, connection.getId(), forward);
+            for (ClientConnection client : editingSession.getClients()) {
+                if (client.isSynced() && client != connection) {
+                    client.send(forward);
+                }
+            }
+        }
+        documentChanged(editingSession);
+    }
+
+    /**
+     * This method handles the messages of CRDT sessions. "crdt:seen:operations"
+     * carries edits, which are applied to the server replica and relayed as
+     * "crdt:sequence:operations" without being transformed. "crdtseen:seen"
+     * only reports how far a client has read. The sender gets "crdtack:sequence"
+     * for its edits, so it knows which ones to send again if it loses the
+     * connection. Afterwards tombstones that every client has seen are purged
+     * on all replicas with a "crdtgc:" message.
+     */
+    private void handleCrdtMessage(ClientConnection connection, EditingSession editingSession, String action, String payload) {
+        CrdtSession crdtSession = editingSession.getCrdtSession();
+        String[] crdtParts = payload.split(":", 2); // Expected format: "seen:operations" or "seen"
+        synchronized (crdtSession) {
+            long growth = 0; // Reserved before the operations are applied, given back if they are rejected
+            try {
+                long seen = Long.parseLong(crdtParts[0]);
+                if ("crdtseen".equals(action)) {
+                    crdtSession.reportSeen(connection.getId(), seen);
+                } else if (seen < connection.getMinimumBase()) {
+                    return; // Made before the client was sent a new snapshot, which it has replaced its replica with
+                } else if (crdtParts.length > 1) {
+                    // Every replica element costs about 11 bytes, so the message length bounds the growth
+                    growth = (long) crdtParts[1].length() * 11;
+                    if (!sessionRegistry.reserveMemory(editingSession, growth)) {
+                        connection.send(new OutboundMessage("SYSTEM:Document size limit reached"));
+                        connection.send(snapshotFor(editingSession, connection));
+                        return;
+                    }
+                    long sequence = crdtSession.applyClientOperations(connection.getId(), seen, crdtParts[1]);
+                    editingSession.log("crdt:" + sequence + ":" + crdtParts[1]);
+                    connection.send(new OutboundMessage("crdtack:" + sequence));
+                    OutboundMessage forward = new OutboundMessage("crdt:" + sequence + ":" + crdtParts[1]);
+                    editingSession.getReplayBuffer().add(sequence, connection.getId(), forward);
+                    for (ClientConnection client : editingSession.getClients()) {
+                        if (client.isSynced() && client != connection) {
+                            client.send(forward);
+                        }
+                    }
+                    documentChanged(editingSession);
+                }
+            } catch (IllegalArgumentException e) {
+                // The replica of the client cannot be trusted anymore, send it the current state
+                sessionRegistry.releaseMemory(growth);
+                System.out.println("Rejected CRDT message in session " + editingSession.getId() + ": " + e.getMessage());
+                connection.send(snapshotFor(editingSession, connection));
+                return;
+            }
+
+            String purged = crdtSession.collectGarbage();
+            if (purged != null) {
+                editingSession.log("crdtgc:" + purged);
+                OutboundMessage purge = new OutboundMessage("crdtgc:" + purged);
+                editingSession.getReplayBuffer().add(crdtSession.getSequence(), null, purge);
+                for (ClientConnection client : editingSession.getClients()) {
+                    if (client.isSynced()) {
+                        client.send(purge);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * This method compares the document of a client with the session copy.
+     * Clients send "checksum:version:hash" from time to time while all their
+     * edits are acknowledged; a hash for an older version is ignored, the
+     * client checks again once it has caught up. When the hashes differ the
+     * client is told with "checksumfail:version" and replies with the hashes
+     * of its blocks as "blocksums:version:h0,h1,...". It then gets the text
+     * between the first and the last block that differ as
+     * "repair:version:prefixBlocks:suffixBlocks:text", which replaces all but
+     * the given number of leading and trailing blocks of its document.
+     * CRDT replicas must share their character ids as well, so a CRDT client
+     * whose text differs gets a new snapshot instead.
+     */
+    private void handleChecksum(ClientConnection connection, EditingSession editingSession, String action, String payload) {
+        String[] checksumParts = payload.split(":", 2); // Expected format: "version:hash" or "version:hashes"
+        long version;
+        try {
+            version = Long.parseLong(checksumParts[0]);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (checksumParts.length < 2) {
+            return;
+        }
+        CrdtSession crdtSession = editingSession.getCrdtSession();
+        if (crdtSession != null) {
+            synchronized (crdtSession) {
+                if ("checksum".equals(action) && version == crdtSession.getSequence()
+                        && !crdtSession.getChecksum().equals(checksumParts[1])) {
+                    System.out.println("Client " + connection.getId() + " diverged from session " + editingSession.getId());
+                    connection.send(snapshotFor(editingSession, connection));
+                }
+            }
+            return;
+        }
+        SessionDocument document = editingSession.getDocument();
+        synchronized (document) {
+            if (version != document.getVersion()) {
+                return;
+            }
+            if ("checksum".equals(action)) {
+                if (!document.getChecksum().equals(checksumParts[1])) {
+                    System.out.println("Client " + connection.getId() + " diverged from session " + editingSession.getId());
+                    connection.send(new OutboundMessage("checksumfail:" + version));
+                }
+                return;
+            }
+            String text = document.getText();
+            int[] ends = DocumentChecksum.blockEnds(text);
+            String[] hashes = DocumentChecksum.blockHashes(text, ends);
+            String[] clientHashes = checksumParts[1].split(",");
+            int prefix = 0;
+            while (prefix < hashes.length && prefix < clientHashes.length && hashes[prefix].equals(clientHashes[prefix])) {
+                prefix++;
+            }
+            int suffix = 0;
+            while (suffix < hashes.length - prefix && suffix < clientHashes.length - prefix
+                    && hashes[hashes.length - 1 - suffix].equals(clientHashes[clientHashes.length - 1 - suffix])) {
+                suffix++;
+            }
+            int start = prefix > 0 ? ends[prefix - 1] : 0;
+            int end = suffix < hashes.length ? ends[hashes.length - 1 - suffix] : 0;
+            connection.send(new OutboundMessage("repair:" + version + ":" + prefix + ":" + suffix + ":"
+                    + text.substring(start, Math.max(start, end))));
+        }
+    }
+
+    // Lets the spectators see the change with the next render
+    private void documentChanged(EditingSession editingSession) {
+        if (editingSession.getSpectatorFeed().changed()) {
+            scheduleRender(editingSession, renderIntervalMillis);
+        }
+    }
+
+    private void scheduleRender(EditingSession editingSession, long delayMillis) {
+        spectatorRenderer.schedule(() -> {
+            try {
+                editingSession.getSpectatorFeed().render(editingSession);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * This method handles a cursor update sent as "cursor:dot:mark", the caret
+     * and the other end of the selection. It runs on the thread that received
+     * it instead of the executor of the session, so cursors never wait for
+     * edits or hold them up. The latest position of every client is forwarded
+     * as "presence:clientId:dot:mark" once per presence interval, and only if
+     * the queue of the receiver has room, because a lost position is replaced
+     * by the next one. "presence:clientId:" tells that a client has left.
+     */
+    private void handlePresence(WebSocketSession session, String payload) {
+        EditingSession editingSession = sessionRegistry.get(extractSessionId(session));
+        ClientConnection connection = getConnection(session);
+        if (editingSession == null || connection == null || !connection.isSynced()) {
+            return;
+        }
+        String[] cursorParts = payload.split(":"); // Expected format: "cursor:dot:mark"
+        if (cursorParts.length != 3) {
+            return;
+        }
+        int dot;
+        int mark;
+        try {
+            dot = Integer.parseInt(cursorParts[1]);
+            mark = Integer.parseInt(cursorParts[2]);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (dot < 0 || mark < 0) {
+            return;
+        }
+        if (editingSession.getPresence().update(connection.getId(), dot + ":" + mark)) {
+            schedulePresenceFlush(editingSession);
+        }
+    }
+
+    private void schedulePresenceFlush(EditingSession editingSession) {
+        presenceTimer.schedule(() -> {
+            for (Map.Entry<String, String> change : editingSession.getPresence().drainChanges().entrySet()) {
+                OutboundMessage presence = new OutboundMessage("presence:" + change.getKey() + ":" + change.getValue());
+                for (ClientConnection client : editingSession.getClients()) {
+                    if (client.isSynced() && !client.getId().equals(change.getKey())) {
+                        client.sendBestEffort(presence);
+                    }
+                }
+            }
+        }, presenceIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * This method sends a client that resumes the updates it missed since the
+     * given sequence instead of a snapshot. Its own edits among them are
+     * acknowledged rather than sent back, and "resumed:sequence" tells it that
+     * it is up to date, so it sends the edits that are still unacknowledged.
+     * Returns false if the updates are not kept anymore. Callers hold the
+     * document or CRDT lock.
+     */
+    private boolean resume(EditingSession editingSession, ClientConnection connection, String previousClientId,
+            long sequence) throws IOException {
+        long currentSequence = editingSession.getSequence();
+        List<ReplayBuffer.Entry> missed = editingSession.getReplayBuffer().since(sequence, currentSequence);
+        if (missed == null) {
+            return false;
+        }
+        for (ClientConnection client : editingSession.getClients()) {
+            if (client.getId().equals(previousClientId)) {
+                // The old socket is still open on this side, its late edits would be applied twice
+                client.setSynced(false);
+                client.getSession().close(CloseStatus.GOING_AWAY.withReason("Resumed on another connection"));
+            }
+        }
+        CrdtSession crdtSession = editingSession.getCrdtSession();
+        if (crdtSession != null) {
+            crdtSession.resume(previousClientId, connection.getId(), sequence);
+        }
+        connection.setMinimumBase(sequence);
+        String ack = crdtSession != null ? "crdtack:" : "ack:";
+        for (ReplayBuffer.Entry entry : missed) {
+            connection.send(previousClientId.equals(entry.getOrigin())
+                    ? new OutboundMessage(ack + entry.getSequence()) : entry.getMessage());
+        }
+        connection.send(new OutboundMessage("resumed:" + currentSequence));
+        System.out.println("Client " + connection.getId() + " resumed session " + editingSession.getId() + " from "
+                + previousClientId + " with " + missed.size() + " missed updates");
+        return true;
+    }
+
+    /**
+     * This method builds the snapshot message of the session for a client
+     * that starts over from it. Edits the client based on an older version
+     * are ignored from now on, because the client replaces them with the
+     * snapshot. Callers that need a consistent order with forwarded edits
+     * hold the document or CRDT lock, which is reentrant.
+     */
+    private OutboundMessage snapshotFor(EditingSession editingSession, ClientConnection connection) {
+        CrdtSession crdtSession = editingSession.getCrdtSession();
+        if (crdtSession != null) {
+            synchronized (crdtSession) {
+                crdtSession.register(connection.getId()); // The snapshot contains everything relayed so far
+                connection.setMinimumBase(crdtSession.getSequence());
+                return new OutboundMessage(crdtSession.getSnapshot());
+            }
+        }
+        SessionDocument document = editingSession.getDocument();
+        synchronized (document) {
+            connection.setMinimumBase(document.getVersion());
+            return new OutboundMessage(document.getSnapshot());
+        }
+    }
+
+    /**
+     * This method hands the work for a connection to the executor of its
+     * session, so everything that happens in one session runs on a single
+     * thread in arrival order. Errors close the connection, like they do
+     * when Spring calls the handler directly.
+     */
+    private void dispatch(WebSocketSession session, SessionTask task) {
+        sessionExecutors.execute(extractSessionId(session), () -> {
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+                try {
+                    session.close(CloseStatus.SERVER_ERROR);
+                } catch (IOException closeException) {
+                    closeException.printStackTrace();
+                }
+            }
+        });
+    }
+
+    private interface SessionTask {
+        void run() throws Exception;
+    }
+
+    private ClientConnection getConnection(WebSocketSession session) {
+        return (ClientConnection) session.getAttributes().get(CONNECTION_ATTRIBUTE);
+    }
+
     /**
      * This helper method extracts the session ID from the session's URI,
      * allowing the application to identify which session the WebSocket
@@ -101,15 +668,4 @@ public class MyWebSocketHandler extends TextWebSocketHandler {
         String uri = session.getUri().toString();
         return uri.substring(uri.lastIndexOf('/') + 1); // Extract session ID from URI
     }
-
-    /**
-     * This method hashes the given password using SHA-256 and encodes it
-     * in Base64 format. It is used for securely storing passwords without
-     * exposing them in plain text.
-     */
-    private String hashPassword(String password) throws NoSuchAlgorithmException {
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        byte[] hash = digest.digest(password.getBytes());  // Generate the password hash
-        return Base64.getEncoder().encodeToString(hash); // Encode hash to a readable string
-    }
 }
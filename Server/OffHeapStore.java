@@ -0,0 +1,52 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * OffHeapStore keeps the documents of idle sessions outside the Java heap.
+ * A document is stored as UTF-8 in a direct buffer, which usually takes half
+ * the memory of the chars on the heap and is never scanned or copied by the
+ * garbage collector. The memory is returned when the buffer is released and
+ * collected.
+ */
+public final class OffHeapStore {
+    private static final AtomicLong storedDocuments = new AtomicLong();
+    private static final AtomicLong storedBytes = new AtomicLong();
+
+    private OffHeapStore() {
+    }
+
+    public static ByteBuffer store(CharSequence text) {
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        storedDocuments.incrementAndGet();
+        storedBytes.addAndGet(bytes.length);
+        return buffer;
+    }
+
+    // Copies the text back onto the heap and releases the buffer
+    public static String load(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        storedDocuments.decrementAndGet();
+        storedBytes.addAndGet(-bytes.length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Frees a buffer whose text is not needed anymore
+    public static void release(ByteBuffer buffer) {
+        storedDocuments.decrementAndGet();
+        storedBytes.addAndGet(-buffer.remaining());
+    }
+
+    public static long getStoredDocuments() {
+        return storedDocuments.get();
+    }
+
+    public static long getStoredBytes() {
+        return storedBytes.get();
+    }
+}
@@ -0,0 +1,83 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * OutboundMessage is a message on its way to one or more clients. It is
+ * encoded at most once per wire format, so fanning an edit out to many
+ * clients does not encode it again for every one of them. A batch is made
+ * of messages that were already encoded and only adds their framing.
+ */
+public final class OutboundMessage {
+    private final String text;
+    private final List<OutboundMessage> parts; // Messages of a batch, null for a single message
+    private volatile TextMessage textMessage; // Created on first use; a race only creates an equal copy
+    private volatile byte[] binaryFrame;
+
+    public OutboundMessage(String text) {
+        this.text = text;
+        this.parts = null;
+    }
+
+    private OutboundMessage(List<OutboundMessage> parts) {
+        this.text = null;
+        this.parts = parts;
+    }
+
+    // Combines messages for one client into a single "batch:" frame
+    public static OutboundMessage batch(List<OutboundMessage> messages) {
+        return messages.size() == 1 ? messages.get(0) : new OutboundMessage(messages);
+    }
+
+    // Number of messages sent with this frame
+    public int getMessageCount() {
+        return parts == null ? 1 : parts.size();
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    // Returns the message in the format the client has chosen
+    public WebSocketMessage<?> toWebSocketMessage(boolean binary) {
+        if (binary) {
+            return new BinaryMessage(getBinaryFrame()); // A new buffer per send, sending moves its position
+        }
+        TextMessage message = textMessage;
+        if (message == null) {
+            if (parts != null) {
+                List<String> texts = new ArrayList<>(parts.size());
+                for (OutboundMessage part : parts) {
+                    texts.add(part.text);
+                }
+                message = new TextMessage(MessageBatch.join(texts));
+            } else {
+                message = new TextMessage(text);
+            }
+            textMessage = message;
+        }
+        return message;
+    }
+
+    private byte[] getBinaryFrame() {
+        byte[] frame = binaryFrame;
+        if (frame == null) {
+            if (parts != null) {
+                List<byte[]> frames = new ArrayList<>(parts.size());
+                for (OutboundMessage part : parts) {
+                    frames.add(part.getBinaryFrame());
+                }
+                frame = BinaryProtocol.encodeBatch(frames);
+            } else {
+                frame = BinaryProtocol.encode(text);
+            }
+            binaryFrame = frame;
+        }
+        return frame;
+    }
+}
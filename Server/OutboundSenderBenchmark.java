@@ -0,0 +1,224 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * OutboundSenderBenchmark compares the two outbound senders WebSocketConfig
+ * can create: the fixed pool of platform threads, and the virtual thread per
+ * task used when spring.threads.virtual.enabled is set. It is a standalone
+ * main class, run with the application classpath on JDK 21:
+ *
+ *   java -cp target/classes:&lt;dependencies&gt; com.github.aboodRS.collaborative_markdown_editor.OutboundSenderBenchmark
+ *       [clients] [slowPercent] [slowSendMillis] [rounds]
+ *
+ * Every round fans one message out to all clients through their
+ * ClientConnection, like an edit is fanned out to a session. A share of the
+ * clients are slow consumers whose socket write blocks for slowSendMillis.
+ * The benchmark measures how long the other clients wait for each message,
+ * which is what a slow consumer costs them when it holds a sender thread.
+ */
+public final class OutboundSenderBenchmark {
+    private static final long FAST_SEND_NANOS = 20_000; // A write that the socket buffer takes right away
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int MAX_BATCH_CHARS = 16384;
+
+    private OutboundSenderBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int slowPercent = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        long slowSendMillis = args.length > 2 ? Long.parseLong(args[2]) : 50;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        System.out.println("Clients: " + clients + ", slow: " + slowPercent + "% blocking " + slowSendMillis
+                + "ms per write, rounds: " + rounds);
+
+        int threads = Runtime.getRuntime().availableProcessors() * 2; // The default of editor.outbound.threads
+        AtomicInteger counter = new AtomicInteger();
+        run("platform pool (" + threads + " threads)", Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "outbound-sender-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }), clients, slowPercent, slowSendMillis, rounds);
+        run("virtual thread per task", Executors.newVirtualThreadPerTaskExecutor(), clients, slowPercent,
+                slowSendMillis, rounds);
+    }
+
+    private static void run(String name, ExecutorService sender, int clients, int slowPercent, long slowSendMillis,
+            int rounds) throws InterruptedException {
+        ScheduledExecutorService flushTimer = Executors.newSingleThreadScheduledExecutor();
+        List<ClientConnection> fast = new ArrayList<>();
+        List<ClientConnection> all = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            boolean slow = i % 100 < slowPercent; // Spread over the clients
+            SimulatedSession session = new SimulatedSession("client-" + i, slow ? slowSendMillis : 0);
+            ClientConnection connection = new ClientConnection(session, sender, flushTimer, 0, MAX_BATCH_CHARS,
+                    QUEUE_CAPACITY, ClientConnection.SlowConsumerPolicy.DROP);
+            all.add(connection);
+            if (!slow) {
+                fast.add(connection);
+            }
+        }
+
+        long[] latencies = new long[rounds];
+        long started = System.nanoTime();
+        for (int round = 1; round <= rounds; round++) {
+            OutboundMessage message = new OutboundMessage("op:" + round + ":" + "x".repeat(64));
+            long sent = System.nanoTime();
+            for (ClientConnection connection : all) {
+                connection.send(message);
+            }
+            // The round is done once every fast client has written the message
+            for (ClientConnection connection : fast) {
+                while (connection.getSentMessages() < round) {
+                    LockSupport.parkNanos(50_000);
+                }
+            }
+            latencies[round - 1] = System.nanoTime() - sent;
+        }
+        long total = System.nanoTime() - started;
+
+        Arrays.sort(latencies);
+        System.out.println(name + ": fast clients got each message after p50 " + millis(latencies[rounds / 2])
+                + "ms, p99 " + millis(latencies[Math.min(rounds - 1, rounds * 99 / 100)]) + "ms, max "
+                + millis(latencies[rounds - 1]) + "ms; all rounds " + millis(total) + "ms");
+
+        for (ClientConnection connection : all) {
+            connection.close(CloseStatus.GOING_AWAY);
+        }
+        // The closed connections stop after the write they are in, which slow clients finish first
+        sender.shutdown();
+        flushTimer.shutdown();
+        sender.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1f", nanos / 1e6);
+    }
+
+    // Socket of a client whose writes take as long as the client needs to read them
+    private static class SimulatedSession implements WebSocketSession {
+        private final String id;
+        private final long sendMillis;
+        private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+        private volatile boolean open = true;
+
+        SimulatedSession(String id, long sendMillis) {
+            this.id = id;
+            this.sendMillis = sendMillis;
+        }
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) throws IOException {
+            if (sendMillis > 0) {
+                try {
+                    Thread.sleep(sendMillis); // Blocks like a write to a full socket buffer
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted", e);
+                }
+            } else {
+                LockSupport.parkNanos(FAST_SEND_NANOS);
+            }
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public URI getUri() {
+            return URI.create("/collaborate/benchmark");
+        }
+
+        @Override
+        public HttpHeaders getHandshakeHeaders() {
+            return HttpHeaders.EMPTY;
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public Principal getPrincipal() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public String getAcceptedProtocol() {
+            return null; // Text messages
+        }
+
+        @Override
+        public void setTextMessageSizeLimit(int messageSizeLimit) {
+        }
+
+        @Override
+        public int getTextMessageSizeLimit() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public void setBinaryMessageSizeLimit(int messageSizeLimit) {
+        }
+
+        @Override
+        public int getBinaryMessageSizeLimit() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public List<WebSocketExtension> getExtensions() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        @Override
+        public void close(CloseStatus status) {
+            open = false;
+        }
+    }
+}
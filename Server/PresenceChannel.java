@@ -0,0 +1,57 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * PresenceChannel holds where the clients of a session have their cursor
+ * and selection. Unlike edits, positions are not ordered, logged or
+ * replayed: only the latest one of every client matters, so updates that
+ * arrive before the previous ones were forwarded simply replace them. The
+ * changes are forwarded together once per presence interval, which limits
+ * every client to one forwarded position per interval however fast it
+ * sends them.
+ */
+public class PresenceChannel {
+    private final Map<String, String> positions = new HashMap<>(); // Latest "dot:mark" of every client that sent one
+    private final Map<String, String> changes = new LinkedHashMap<>(); // Not forwarded yet, "" for clients that left
+    private boolean flushScheduled;
+
+    // Records the position of a client, returns true if the caller has to schedule a flush
+    public synchronized boolean update(String clientId, String position) {
+        positions.put(clientId, position);
+        changes.put(clientId, position);
+        return scheduleFlush();
+    }
+
+    // Forgets a client that left, returns true if the caller has to schedule a flush
+    public synchronized boolean remove(String clientId) {
+        if (positions.remove(clientId) == null) {
+            return false;
+        }
+        changes.put(clientId, "");
+        return scheduleFlush();
+    }
+
+    // Returns the changes since the last flush and lets the next update schedule a new one
+    public synchronized Map<String, String> drainChanges() {
+        Map<String, String> drained = new LinkedHashMap<>(changes);
+        changes.clear();
+        flushScheduled = false;
+        return drained;
+    }
+
+    // Positions of all clients, for a client that just joined
+    public synchronized Map<String, String> getPositions() {
+        return new HashMap<>(positions);
+    }
+
+    private boolean scheduleFlush() {
+        if (flushScheduled) {
+            return false;
+        }
+        flushScheduled = true;
+        return true;
+    }
+}
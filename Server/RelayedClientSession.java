@@ -0,0 +1,147 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * RelayedClientSession stands for a client that is connected to another node
+ * of the cluster. The node that owns the session handles it like a local
+ * WebSocket, while sending and closing go over the backplane to the node the
+ * client is connected to. Messages are always sent as text; the other node
+ * encodes them in the format its client has chosen.
+ */
+public class RelayedClientSession implements WebSocketSession {
+    private final ClusterRelay relay;
+    private final String nodeId; // Node the client is connected to
+    private final String clientId; // ID of the connection on that node
+    private final URI uri;
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+    private volatile boolean open = true;
+
+    public RelayedClientSession(ClusterRelay relay, String nodeId, String clientId, String sessionId,
+            SessionCredentials credentials) {
+        this.relay = relay;
+        this.nodeId = nodeId;
+        this.clientId = clientId;
+        this.uri = URI.create("/collaborate/" + sessionId);
+        attributes.put(SessionAuthInterceptor.CREDENTIALS_ATTRIBUTE, credentials); // Checked by the handler of this node
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    // Unique in the cluster, the IDs of different nodes may collide
+    @Override
+    public String getId() {
+        return nodeId + "/" + clientId;
+    }
+
+    @Override
+    public URI getUri() {
+        return uri;
+    }
+
+    @Override
+    public HttpHeaders getHandshakeHeaders() {
+        return HttpHeaders.EMPTY;
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public Principal getPrincipal() {
+        return null;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return null;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return null;
+    }
+
+    @Override
+    public String getAcceptedProtocol() {
+        return null; // Text, the receiving node converts it
+    }
+
+    @Override
+    public void setTextMessageSizeLimit(int messageSizeLimit) {
+    }
+
+    @Override
+    public int getTextMessageSizeLimit() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public void setBinaryMessageSizeLimit(int messageSizeLimit) {
+    }
+
+    @Override
+    public int getBinaryMessageSizeLimit() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public List<WebSocketExtension> getExtensions() {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void sendMessage(WebSocketMessage<?> message) throws IOException {
+        if (!open) {
+            throw new IOException("Relayed client " + getId() + " is closed");
+        }
+        relay.deliver(this, ((TextMessage) message).getPayload());
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        close(CloseStatus.NORMAL);
+    }
+
+    // Closes the client on its node and reports the closed connection like the container would
+    @Override
+    public void close(CloseStatus status) {
+        if (markClosed()) {
+            relay.closeRelayed(this, status);
+        }
+    }
+
+    // Returns false if the session was already closed
+    synchronized boolean markClosed() {
+        boolean wasOpen = open;
+        open = false;
+        return wasOpen;
+    }
+}
@@ -0,0 +1,101 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ReplayBuffer keeps the last updates sent to the clients of a session, so
+ * a client that lost its connection only gets what it missed when it comes
+ * back. Every update is stamped with the sequence number of the session it
+ * created: the document version, or the CRDT sequence. A client that is
+ * further behind than the buffer reaches gets a snapshot instead.
+ *
+ * Updates are added under the lock that orders them, and a client is
+ * resumed under the same lock, so nothing is missed between the replayed
+ * updates and the ones forwarded afterwards.
+ */
+public class ReplayBuffer {
+    // An update together with the client whose edit caused it, null for updates of the server
+    public static class Entry {
+        private final long sequence;
+        private final String origin;
+        private final OutboundMessage message;
+
+        Entry(long sequence, String origin, OutboundMessage message) {
+            this.sequence = sequence;
+            this.origin = origin;
+            this.message = message;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getOrigin() {
+            return origin;
+        }
+
+        public OutboundMessage getMessage() {
+            return message;
+        }
+    }
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private final int capacity; // Updates kept at most
+    private long floor; // Clients that have seen this sequence or a later one can be resumed
+    private long bytes; // Approximate heap used by the kept updates
+
+    public ReplayBuffer(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public synchronized void add(long sequence, String origin, OutboundMessage message) {
+        if (capacity <= 0) {
+            floor = sequence;
+            return;
+        }
+        entries.addLast(new Entry(sequence, origin, message));
+        bytes += estimateBytes(message);
+        if (entries.size() > capacity) {
+            Entry dropped = entries.pollFirst();
+            bytes -= estimateBytes(dropped.message);
+            floor = Math.max(floor, dropped.sequence);
+        }
+    }
+
+    /**
+     * This method returns the updates a client missed that has seen the
+     * given sequence, or null if some of them are not kept anymore. Updates
+     * of the server that do not advance the sequence, like tombstone purges,
+     * are included when they were sent at the given sequence, because the
+     * client may not have received them; they can be applied twice.
+     */
+    public synchronized List<Entry> since(long sequence, long currentSequence) {
+        if (sequence < floor || sequence > currentSequence) {
+            return null;
+        }
+        List<Entry> missed = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.sequence > sequence || (entry.origin == null && entry.sequence == sequence)) {
+                missed.add(entry);
+            }
+        }
+        return missed;
+    }
+
+    // Forgets all updates, clients that have seen less than the given sequence need a snapshot
+    public synchronized void clear(long sequence) {
+        entries.clear();
+        bytes = 0;
+        floor = sequence;
+    }
+
+    public synchronized long estimateMemoryBytes() {
+        return bytes;
+    }
+
+    private static long estimateBytes(OutboundMessage message) {
+        return (long) message.getText().length() * Character.BYTES + 64; // Entry, message and string headers
+    }
+}
@@ -0,0 +1,468 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * RgaDocument is a replicated growable array (RGA), a sequence CRDT for text.
+ * Every character gets a unique id made of a Lamport counter and the site
+ * that inserted it, and remembers the character it was inserted after.
+ * Replicas that receive the same inserts and deletes in any order end up with
+ * the same text, so no central instance has to order the edits.
+ *
+ * Deleted characters stay in the sequence as tombstones because concurrent
+ * inserts may still refer to them. They are removed with purge() once every
+ * replica is known to have seen the delete.
+ *
+ * Characters are stored in parallel primitive arrays to keep the memory per
+ * character small: 8 bytes for the id, 2 for the char and 1 for the deleted flag.
+ */
+public class RgaDocument {
+    public static final long HEAD = 0L; // Virtual id of the position before the first character
+
+    private final int site; // Id of this replica, 0 is reserved for replicas that never edit
+    private int clock; // Highest counter seen so far
+
+    private long[] ids = new long[16];
+    private char[] chars = new char[16];
+    private boolean[] deleted = new boolean[16];
+    private int size; // Number of elements including tombstones
+    private int visibleLength; // Number of elements that are not deleted
+
+    // Receives the changes of the visible text caused by remote operations
+    public interface RemoteEditListener {
+        void onInsert(int index, String text);
+        void onDelete(int index, long id);
+    }
+
+    public RgaDocument(int site) {
+        this.site = site;
+    }
+
+    /**
+     * This method inserts text made in the local editor at the given visible
+     * index and returns the encoded operation to send to the other replicas.
+     */
+    public synchronized String localInsert(int index, String text) {
+        int position = index == 0 ? 0 : arrayIndexOfVisible(index - 1) + 1;
+        long origin = index == 0 ? HEAD : ids[position - 1];
+        long firstId = id(clock + 1, site);
+        clock += text.length();
+        insertRun(position, firstId, text);
+        return "i" + encodeId(firstId) + "@" + encodeId(origin) + "," + text.length() + ":" + text;
+    }
+
+    /**
+     * This method deletes text removed in the local editor and returns the
+     * encoded operation. Consecutive ids are sent as one run to keep deletes
+     * of whole words or lines small.
+     */
+    public synchronized String localDelete(int index, int length) {
+        long[] removed = new long[length];
+        int position = arrayIndexOfVisible(index);
+        for (int n = 0; n < length; position++) {
+            if (!deleted[position]) {
+                deleted[position] = true;
+                removed[n++] = ids[position];
+            }
+        }
+        visibleLength -= length;
+        return encodeIdRuns(removed, removed.length);
+    }
+
+    /**
+     * This method integrates operations received from another replica. The
+     * listener is told where the visible text changed so an editor can apply
+     * the same change.
+     *
+     * The whole message is read and checked before the replica changes, so a
+     * malformed message throws IllegalArgumentException and leaves it as it was.
+     */
+    public synchronized void applyRemote(String operations, RemoteEditListener listener) {
+        List<RemoteOperation> parsed = parseRemote(operations);
+        for (RemoteOperation operation : parsed) {
+            long firstId = operation.firstId;
+            if (operation.text != null) {
+                String text = operation.text;
+                clock = Math.max(clock, counter(firstId) + text.length() - 1);
+                // Skip characters with a greater id, they were inserted concurrently at the same place
+                int position = operation.origin == HEAD ? 0 : indexOf(operation.origin) + 1;
+                while (position < size && ids[position] > firstId) {
+                    position++;
+                }
+                int visibleIndex = visibleIndexOf(position);
+                insertRun(position, firstId, text);
+                listener.onInsert(visibleIndex, text);
+            } else {
+                int position = -1;
+                int visibleIndex = 0;
+                for (int k = 0; k < operation.length; k++) {
+                    long id = firstId + ((long) k << 32);
+                    if (position >= 0 && position + 1 < size && ids[position + 1] == id) {
+                        position++; // Runs are usually stored next to each other, so the visible index stays the same
+                    } else {
+                        position = indexOf(id);
+                        if (position < 0) {
+                            continue; // Already purged
+                        }
+                        visibleIndex = visibleIndexOf(position);
+                    }
+                    if (!deleted[position]) {
+                        deleted[position] = true;
+                        visibleLength--;
+                        listener.onDelete(visibleIndex, id);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * This method reads an operations message and checks it against the
+     * replica: lengths must fit the message or the replica, counters must
+     * stay in range and every insert must follow a character that exists,
+     * here or in an earlier insert of the same message.
+     */
+    private List<RemoteOperation> parseRemote(String operations) {
+        List<RemoteOperation> parsed = new ArrayList<>();
+        Reader reader = new Reader(operations);
+        long inserted = 0; // Characters the message adds in front of later operations
+        while (reader.hasNext()) {
+            char type = reader.next();
+            long firstId = reader.readId();
+            RemoteOperation operation = new RemoteOperation(firstId);
+            if (type == 'i') {
+                reader.expect('@');
+                operation.origin = reader.readId();
+                reader.expect(',');
+                operation.text = reader.readText(reader.readLength(operations.length()));
+                operation.length = operation.text.length();
+                if (operation.origin != HEAD && indexOf(operation.origin) < 0 && !insertedBy(parsed, operation.origin)) {
+                    throw new IllegalArgumentException("Unknown character id " + encodeId(operation.origin));
+                }
+                inserted += operation.length;
+            } else if (type == 'd') {
+                reader.expect(',');
+                operation.length = reader.readLength(size + inserted);
+            } else {
+                throw new IllegalArgumentException("Unknown CRDT operation '" + type + "'");
+            }
+            if (operation.length > 0 && counter(firstId) > Integer.MAX_VALUE - (operation.length - 1)) {
+                throw new IllegalArgumentException("Run of " + operation.length + " characters from " + encodeId(firstId)
+                        + " overflows the counter");
+            }
+            parsed.add(operation);
+            reader.skipSeparator();
+        }
+        return parsed;
+    }
+
+    // Whether an insert read before in the same message adds the character with the given id
+    private static boolean insertedBy(List<RemoteOperation> parsed, long id) {
+        for (RemoteOperation operation : parsed) {
+            if (operation.text != null && (operation.firstId & 0xFFFFFFFFL) == (id & 0xFFFFFFFFL)
+                    && counter(id) >= counter(operation.firstId)
+                    && counter(id) - counter(operation.firstId) < operation.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Removes the given tombstones, which every replica has seen deleted
+    public synchronized void purge(Set<Long> tombstones) {
+        int target = 0;
+        for (int i = 0; i < size; i++) {
+            if (deleted[i] && tombstones.contains(ids[i])) {
+                continue;
+            }
+            ids[target] = ids[i];
+            chars[target] = chars[i];
+            deleted[target] = deleted[i];
+            target++;
+        }
+        size = target;
+    }
+
+    // Removes the tombstones listed in an encoded purge message
+    public void purge(String encodedIds) {
+        purge(new HashSet<>(decodeIdRuns(encodedIds)));
+    }
+
+    /**
+     * This method encodes the whole replica including tombstones, so a joining
+     * client can continue editing with the same ids. Consecutive characters of
+     * one site are written as a single run.
+     */
+    public synchronized String encodeState() {
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < size) {
+            int end = i + 1;
+            while (end < size && deleted[end] == deleted[i] && ids[end] == ids[end - 1] + (1L << 32)) {
+                end++;
+            }
+            if (sb.length() > 0) {
+                sb.append(';');
+            }
+            if (deleted[i]) {
+                sb.append('t').append(encodeId(ids[i])).append(',').append(end - i);
+            } else {
+                sb.append('v').append(encodeId(ids[i])).append(',').append(end - i).append(':').append(chars, i, end - i);
+            }
+            i = end;
+        }
+        return sb.toString();
+    }
+
+    // Rebuilds a replica from encodeState() for the given site
+    public static RgaDocument decodeState(String state, int site) {
+        RgaDocument document = new RgaDocument(site);
+        Reader reader = new Reader(state);
+        while (reader.hasNext()) {
+            char type = reader.next();
+            long firstId = reader.readId();
+            reader.expect(',');
+            int length = reader.readLength(Integer.MAX_VALUE); // Tombstone runs are longer than their entry
+            if (type == 'v') {
+                document.insertRun(document.size, firstId, reader.readText(length));
+            } else if (type == 't') {
+                char[] placeholder = new char[length];
+                document.insertRun(document.size, firstId, new String(placeholder));
+                Arrays.fill(document.deleted, document.size - length, document.size, true);
+                document.visibleLength -= length;
+            } else {
+                throw new IllegalArgumentException("Unknown CRDT state entry '" + type + "'");
+            }
+            document.clock = Math.max(document.clock, counter(firstId) + length - 1);
+            reader.skipSeparator();
+        }
+        return document;
+    }
+
+    public synchronized String getText() {
+        StringBuilder sb = new StringBuilder(visibleLength);
+        for (int i = 0; i < size; i++) {
+            if (!deleted[i]) {
+                sb.append(chars[i]);
+            }
+        }
+        return sb.toString();
+    }
+
+    public synchronized int getLength() {
+        return visibleLength;
+    }
+
+    public synchronized long[] getTombstoneIds() {
+        long[] tombstones = new long[size - visibleLength];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (deleted[i]) {
+                tombstones[count++] = ids[i];
+            }
+        }
+        return tombstones;
+    }
+
+    public synchronized int getTombstoneCount() {
+        return size - visibleLength;
+    }
+
+    // Approximate heap used by the element arrays, including unused capacity
+    public synchronized long estimateMemoryBytes() {
+        return (long) ids.length * (Long.BYTES + Character.BYTES + 1);
+    }
+
+    // Memory budget actually spent per visible character, tombstones included
+    public synchronized double bytesPerCharacter() {
+        return visibleLength == 0 ? 0 : (double) estimateMemoryBytes() / visibleLength;
+    }
+
+    // Encodes ids as runs of consecutive counters of the same site: "d12.7,3;d40.9,1"
+    public static String encodeIdRuns(long[] runIds, int count) {
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < count) {
+            int end = i + 1;
+            while (end < count && runIds[end] == runIds[end - 1] + (1L << 32)) {
+                end++;
+            }
+            if (sb.length() > 0) {
+                sb.append(';');
+            }
+            sb.append('d').append(encodeId(runIds[i])).append(',').append(end - i);
+            i = end;
+        }
+        return sb.toString();
+    }
+
+    // Decodes ids written by encodeIdRuns()
+    public static List<Long> decodeIdRuns(String encoded) {
+        List<Long> result = new ArrayList<>();
+        Reader reader = new Reader(encoded);
+        while (reader.hasNext()) {
+            reader.next();
+            long firstId = reader.readId();
+            reader.expect(',');
+            int length = reader.readLength(Integer.MAX_VALUE);
+            for (int k = 0; k < length; k++) {
+                result.add(firstId + ((long) k << 32));
+            }
+            reader.skipSeparator();
+        }
+        return result;
+    }
+
+    private void insertRun(int position, long firstId, String text) {
+        int length = text.length();
+        ensureCapacity(size + length);
+        System.arraycopy(ids, position, ids, position + length, size - position);
+        System.arraycopy(chars, position, chars, position + length, size - position);
+        System.arraycopy(deleted, position, deleted, position + length, size - position);
+        for (int k = 0; k < length; k++) {
+            ids[position + k] = firstId + ((long) k << 32); // Counters of a run are consecutive
+            chars[position + k] = text.charAt(k);
+            deleted[position + k] = false;
+        }
+        size += length;
+        visibleLength += length;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > ids.length) {
+            int newCapacity = Math.max(capacity, ids.length + (ids.length >> 1));
+            ids = Arrays.copyOf(ids, newCapacity);
+            chars = Arrays.copyOf(chars, newCapacity);
+            deleted = Arrays.copyOf(deleted, newCapacity);
+        }
+    }
+
+    private int indexOf(long id) {
+        for (int i = 0; i < size; i++) {
+            if (ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Array position of the visible character with the given index
+    private int arrayIndexOfVisible(int index) {
+        int seen = 0;
+        for (int i = 0; i < size; i++) {
+            if (!deleted[i] && seen++ == index) {
+                return i;
+            }
+        }
+        throw new IndexOutOfBoundsException("Visible index " + index + " is out of range");
+    }
+
+    // Number of visible characters in front of the given array position
+    private int visibleIndexOf(int position) {
+        int index = 0;
+        for (int i = 0; i < position; i++) {
+            if (!deleted[i]) {
+                index++;
+            }
+        }
+        return index;
+    }
+
+    // Ids are packed as counter in the high and site in the low 32 bits, so comparing them orders by counter first
+    private static long id(int counter, int site) {
+        return ((long) counter << 32) | (site & 0xFFFFFFFFL);
+    }
+
+    private static int counter(long id) {
+        return (int) (id >>> 32);
+    }
+
+    private static String encodeId(long id) {
+        return counter(id) + "." + (id & 0xFFFFFFFFL);
+    }
+
+    // Run of an operations message, with text for an insert and without for a delete
+    private static class RemoteOperation {
+        final long firstId;
+        long origin; // Character an insert follows
+        String text;
+        int length;
+
+        RemoteOperation(long firstId) {
+            this.firstId = firstId;
+        }
+    }
+
+    // Small cursor over the encoded format used by operations and states
+    private static class Reader {
+        private final String input;
+        private int pos;
+
+        Reader(String input) {
+            this.input = input;
+        }
+
+        boolean hasNext() {
+            return pos < input.length();
+        }
+
+        char next() {
+            return input.charAt(pos++);
+        }
+
+        void expect(char c) {
+            if (pos >= input.length() || input.charAt(pos) != c) {
+                throw new IllegalArgumentException("Expected '" + c + "' at position " + pos);
+            }
+            pos++;
+        }
+
+        // Reads a number from 0 to max, digits only so it is never negative
+        long readNumber(long max) {
+            int start = pos;
+            long value = 0;
+            while (pos < input.length() && input.charAt(pos) >= '0' && input.charAt(pos) <= '9') {
+                value = value * 10 + (input.charAt(pos) - '0');
+                if (value > max) {
+                    throw new IllegalArgumentException("Number at position " + start + " is larger than " + max);
+                }
+                pos++;
+            }
+            if (start == pos) {
+                throw new IllegalArgumentException("Expected a number at position " + pos);
+            }
+            return value;
+        }
+
+        // Reads the length of a run, which cannot be longer than what it is taken from
+        int readLength(long max) {
+            return (int) readNumber(Math.min(max, Integer.MAX_VALUE));
+        }
+
+        long readId() {
+            int counter = (int) readNumber(Integer.MAX_VALUE);
+            expect('.');
+            return id(counter, (int) readNumber(0xFFFFFFFFL));
+        }
+
+        String readText(int length) {
+            expect(':');
+            if (length > input.length() - pos) {
+                throw new IllegalArgumentException("Text at position " + pos + " is cut off");
+            }
+            String text = input.substring(pos, pos + length);
+            pos += length;
+            return text;
+        }
+
+        void skipSeparator() {
+            if (pos < input.length()) {
+                expect(';');
+            }
+        }
+    }
+}
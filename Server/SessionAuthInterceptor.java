@@ -0,0 +1,64 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.server.HandshakeInterceptor;
+
+import java.util.Map;
+
+/**
+ * SessionAuthInterceptor checks the credentials of a client before its
+ * WebSocket is opened, so a socket that is not allowed into the session is
+ * refused with 403 and never becomes a client of it. The role the client got
+ * is passed on to the handler as a session attribute. Sessions owned by
+ * another node are checked there, so their credentials are passed on instead.
+ */
+public class SessionAuthInterceptor implements HandshakeInterceptor {
+    public static final String ROLE_ATTRIBUTE = "role";
+    public static final String CREDENTIALS_ATTRIBUTE = "credentials";
+    public static final String RESUMED_CLIENT_ATTRIBUTE = "resumedClient"; // Previous connection of a client that resumes
+
+    private final SessionAuthenticator sessionAuthenticator;
+    private final ClusterRelay clusterRelay;
+
+    public SessionAuthInterceptor(SessionAuthenticator sessionAuthenticator, ClusterRelay clusterRelay) {
+        this.sessionAuthenticator = sessionAuthenticator;
+        this.clusterRelay = clusterRelay;
+    }
+
+    @Override
+    public boolean beforeHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler,
+            Map<String, Object> attributes) {
+        String path = request.getURI().getRawPath();
+        String sessionId = path.substring(path.lastIndexOf('/') + 1);
+        SessionCredentials credentials = SessionCredentials.fromHeaders(request.getHeaders());
+        if (!clusterRelay.isLocal(sessionId)) {
+            attributes.put(CREDENTIALS_ATTRIBUTE, credentials);
+            return true;
+        }
+        SessionAuthenticator.Role role;
+        try {
+            role = sessionAuthenticator.authenticate(sessionId, credentials, attributes);
+        } catch (IllegalStateException e) {
+            response.setStatusCode(HttpStatus.SERVICE_UNAVAILABLE); // No new sessions while the memory or session limit is reached
+            response.getHeaders().set(HttpHeaders.RETRY_AFTER, "30");
+            return false;
+        }
+        if (role == null) {
+            System.out.println("Refused a client of session " + sessionId + ": wrong password or token");
+            response.setStatusCode(HttpStatus.FORBIDDEN);
+            return false;
+        }
+        attributes.put(ROLE_ATTRIBUTE, role);
+        attributes.put(CREDENTIALS_ATTRIBUTE, credentials); // The handler needs the sequence of a client that resumes
+        return true;
+    }
+
+    @Override
+    public void afterHandshake(ServerHttpRequest request, ServerHttpResponse response, WebSocketHandler wsHandler,
+            Exception exception) {
+    }
+}
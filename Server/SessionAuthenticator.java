@@ -0,0 +1,132 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SessionAuthenticator decides whether a client may enter a session. A
+ * client either creates a session with a password, joins one with its
+ * password, or resumes with a token it was given when it last got in. A
+ * client that joins as a spectator may only watch, and resumes as one.
+ *
+ * Resume tokens are random, short-lived and can be used once; every client
+ * that gets in receives a new one. They are kept by the node that owns the
+ * session, so checking one is a map lookup instead of hashing a password.
+ * A token also tells which connection the client had, so the updates it
+ * missed can be replayed with its own edits acknowledged.
+ */
+public class SessionAuthenticator {
+    public enum Role {
+        CREATOR, // Created the session and starts from the empty document
+        MEMBER, // Joined or resumed and starts from a snapshot
+        SPECTATOR // Only receives the rendered document and cannot edit
+    }
+
+    private static final int TOKEN_BYTES = 24;
+    private static final int PURGE_INTERVAL = 256; // Tokens issued between removals of expired ones
+
+    // MessageDigest is not thread-safe, and getting a new one for every attempt is slow
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    });
+
+    private final SessionRegistry sessionRegistry;
+    private final long tokenTtlMillis;
+    private final SecureRandom random = new SecureRandom();
+    private final ConcurrentHashMap<String, ResumeToken> tokens = new ConcurrentHashMap<>();
+    private final AtomicInteger issuedSincePurge = new AtomicInteger();
+
+    public SessionAuthenticator(SessionRegistry sessionRegistry, long tokenTtlMillis) {
+        this.sessionRegistry = sessionRegistry;
+        this.tokenTtlMillis = tokenTtlMillis;
+    }
+
+    /**
+     * This method checks the credentials for the given session and returns
+     * the role the client gets in it, or null if they do not let it in. A
+     * client that creates a session which already has a password joins it
+     * instead if the password matches. Throws IllegalStateException if a new
+     * session cannot be created because the server memory limit is reached.
+     * A client that resumes gets the ID of its previous connection in the
+     * attributes.
+     */
+    public Role authenticate(String sessionId, SessionCredentials credentials, Map<String, Object> attributes) {
+        if (credentials.getResumeToken() != null) {
+            ResumeToken token = tokens.remove(credentials.getResumeToken()); // Used once
+            if (token != null && token.sessionId.equals(sessionId) && token.expiresAt > System.currentTimeMillis()
+                    && sessionRegistry.get(sessionId) != null) {
+                attributes.put(SessionAuthInterceptor.RESUMED_CLIENT_ATTRIBUTE, token.clientId);
+                return token.role;
+            }
+        }
+        if (credentials.getPassword() == null) {
+            return null;
+        }
+        String hashedPassword = hashPassword(credentials.getPassword());
+        if (credentials.getCreateEngine() != null
+                && sessionRegistry.createSession(sessionId, hashedPassword, "crdt".equals(credentials.getCreateEngine()))) {
+            return Role.CREATOR;
+        }
+        EditingSession editingSession = sessionRegistry.get(sessionId);
+        String storedPassword = editingSession != null ? editingSession.getPasswordHash() : null;
+        if (storedPassword != null && MessageDigest.isEqual(storedPassword.getBytes(StandardCharsets.UTF_8),
+                hashedPassword.getBytes(StandardCharsets.UTF_8))) {
+            return credentials.isSpectator() ? Role.SPECTATOR : Role.MEMBER;
+        }
+        return null;
+    }
+
+    // Issues a token that lets the client with the given connection ID back in once within the token lifetime, in
+    // the same role; a creator comes back as a member
+    public String issueToken(String sessionId, String clientId, Role role) {
+        if (issuedSincePurge.incrementAndGet() >= PURGE_INTERVAL) {
+            issuedSincePurge.set(0);
+            long now = System.currentTimeMillis();
+            tokens.values().removeIf(token -> token.expiresAt <= now);
+        }
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        tokens.put(token, new ResumeToken(sessionId, clientId, role == Role.SPECTATOR ? role : Role.MEMBER,
+                System.currentTimeMillis() + tokenTtlMillis));
+        return token;
+    }
+
+    public long getTokenTtlMillis() {
+        return tokenTtlMillis;
+    }
+
+    /**
+     * This method hashes the given password using SHA-256 and encodes it
+     * in Base64 format. It is used for securely storing passwords without
+     * exposing them in plain text.
+     */
+    public static String hashPassword(String password) {
+        byte[] hash = SHA_256.get().digest(password.getBytes(StandardCharsets.UTF_8)); // Generate the password hash
+        return Base64.getEncoder().encodeToString(hash); // Encode hash to a readable string
+    }
+
+    private static class ResumeToken {
+        final String sessionId;
+        final String clientId; // Connection the token was issued to
+        final Role role;
+        final long expiresAt;
+
+        ResumeToken(String sessionId, String clientId, Role role, long expiresAt) {
+            this.sessionId = sessionId;
+            this.clientId = clientId;
+            this.role = role;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import org.springframework.http.HttpHeaders;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * SessionCredentials are what a client presents in the WebSocket handshake
+ * to get into a session: the session password, together with the engine if
+ * it creates the session, or a resume token it was given on a previous
+ * connection together with the last sequence number it has seen. Any of
+ * them may be missing. A client that only wants to watch asks to spectate.
+ */
+public class SessionCredentials {
+    public static final String PASSWORD_HEADER = "X-Session-Password";
+    public static final String CREATE_HEADER = "X-Session-Create"; // Engine of a new session, "ot" or "crdt"
+    public static final String RESUME_TOKEN_HEADER = "X-Session-Resume-Token";
+    public static final String RESUME_SEQUENCE_HEADER = "X-Session-Resume-Sequence";
+    public static final String SPECTATE_HEADER = "X-Session-Spectate"; // "true" to join read-only
+
+    private final String password;
+    private final String createEngine;
+    private final String resumeToken;
+    private final String resumeSequence;
+    private final String spectate;
+
+    public SessionCredentials(String password, String createEngine, String resumeToken, String resumeSequence,
+            String spectate) {
+        this.password = password;
+        this.createEngine = createEngine;
+        this.resumeToken = resumeToken;
+        this.resumeSequence = resumeSequence;
+        this.spectate = spectate;
+    }
+
+    public static SessionCredentials fromHeaders(HttpHeaders headers) {
+        return new SessionCredentials(headers.getFirst(PASSWORD_HEADER), headers.getFirst(CREATE_HEADER),
+                headers.getFirst(RESUME_TOKEN_HEADER), headers.getFirst(RESUME_SEQUENCE_HEADER),
+                headers.getFirst(SPECTATE_HEADER));
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public String getCreateEngine() {
+        return createEngine;
+    }
+
+    public String getResumeToken() {
+        return resumeToken;
+    }
+
+    // Last sequence number the client has seen, or null if it did not send a valid one
+    public Long getResumeSequence() {
+        try {
+            return resumeSequence != null ? Long.parseLong(resumeSequence) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public boolean isSpectator() {
+        return "true".equalsIgnoreCase(spectate);
+    }
+
+    // Encodes the credentials without ':' for backplane messages, missing ones as "-"
+    public String encode() {
+        return encodeField(password) + "." + encodeField(createEngine) + "." + encodeField(resumeToken) + "."
+                + encodeField(resumeSequence) + "." + encodeField(spectate);
+    }
+
+    public static SessionCredentials decode(String encoded) {
+        String[] fields = encoded.split("\\.", -1);
+        if (fields.length != 5) {
+            throw new IllegalArgumentException("Malformed credentials");
+        }
+        return new SessionCredentials(decodeField(fields[0]), decodeField(fields[1]), decodeField(fields[2]),
+                decodeField(fields[3]), decodeField(fields[4]));
+    }
+
+    private static String encodeField(String field) {
+        return field == null ? "-" : Base64.getUrlEncoder().withoutPadding().encodeToString(field.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decodeField(String field) {
+        return "-".equals(field) ? null : new String(Base64.getUrlDecoder().decode(field), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,150 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SessionDocument holds the authoritative text of one collaborative session
+ * together with its version number. Every accepted operation increases the
+ * version by one and is kept in the history, so that operations a client
+ * made against an older version can be transformed before they are applied.
+ * Only the most recent operations are kept; a client that is further behind
+ * has to start over from a snapshot.
+ */
+public class SessionDocument {
+    private final StringBuilder text = new StringBuilder(); // Current document content
+    private int version = 0; // Number of operations applied so far
+    private final List<TextOperation> history = new ArrayList<>(); // history.get(v - historyStart) turns version v into v + 1
+    private int historyStart = 0; // Version the oldest kept operation applies to
+    private long historyBytes = 0; // Approximate heap used by the kept operations
+    private final int maxHistory; // Number of operations kept at most
+    private String snapshot; // Cached snapshot message, shared by all clients joining at the same version
+    private int snapshotVersion = -1; // Version the cached snapshot belongs to
+    private String checksum; // Cached hash of the text, compared with the documents of the clients
+    private int checksumVersion = -1; // Version the cached hash belongs to
+    private ByteBuffer offHeapText; // Text of an idle document while it is kept off the heap, then text is empty
+
+    public SessionDocument(int maxHistory) {
+        this.maxHistory = maxHistory;
+    }
+
+    /**
+     * This method applies an operation that a client made against the given
+     * base version. The operation is transformed against every operation the
+     * client had not seen yet, applied to the document, and returned so it
+     * can be forwarded to the other clients of the session.
+     */
+    public synchronized TextOperation applyOperation(int baseVersion, TextOperation operation) {
+        if (baseVersion < historyStart || baseVersion > version) {
+            throw new IllegalArgumentException("Unknown document version " + baseVersion);
+        }
+        for (int v = baseVersion; v < version; v++) {
+            operation = TextOperation.transform(operation, history.get(v - historyStart))[0]; // Rebase on the concurrent edit
+        }
+        operation.applyTo(text());
+        history.add(operation);
+        historyBytes += operation.estimateMemoryBytes();
+        version++;
+
+        // Drop the oldest half at once when the history is full, so trimming is not paid on every edit
+        if (history.size() > maxHistory) {
+            List<TextOperation> dropped = history.subList(0, history.size() - maxHistory / 2);
+            for (TextOperation old : dropped) {
+                historyBytes -= old.estimateMemoryBytes();
+            }
+            historyStart += dropped.size();
+            dropped.clear();
+        }
+        return operation;
+    }
+
+    /**
+     * This method returns the message that brings a joining client to the
+     * current version. It is built once per version, so many clients joining
+     * an unchanged document cost only one copy and one compression.
+     */
+    public synchronized String getSnapshot() {
+        if (snapshotVersion != version) {
+            snapshot = SnapshotCodec.encode("doc", version, text().toString());
+            snapshotVersion = version;
+        }
+        return snapshot;
+    }
+
+    // Hash of the text at the current version, computed once per version like the snapshot
+    public synchronized String getChecksum() {
+        if (checksumVersion != version) {
+            checksum = DocumentChecksum.hash(text());
+            checksumVersion = version;
+        }
+        return checksum;
+    }
+
+    // Replaces the document with a snapshot read back from the log, there is no history before it
+    public synchronized void restore(int version, String content) {
+        if (offHeapText != null) {
+            OffHeapStore.release(offHeapText);
+            offHeapText = null;
+        }
+        text.setLength(0);
+        text.append(content);
+        this.version = version;
+        history.clear();
+        historyStart = version;
+        historyBytes = 0;
+        snapshotVersion = -1;
+        checksumVersion = -1;
+    }
+
+    /**
+     * This method moves the text of an idle document off the heap and drops
+     * its history, so the document only keeps its version on the heap. The
+     * text is copied back on the next access. A client that still sends an
+     * edit against an older version gets a snapshot instead. Returns false if
+     * the text already was off the heap.
+     */
+    public synchronized boolean offload() {
+        if (offHeapText != null) {
+            return false;
+        }
+        offHeapText = OffHeapStore.store(text);
+        text.setLength(0);
+        text.trimToSize();
+        history.clear();
+        historyStart = version;
+        historyBytes = 0;
+        snapshot = null;
+        snapshotVersion = -1;
+        return true;
+    }
+
+    public synchronized boolean isOffloaded() {
+        return offHeapText != null;
+    }
+
+    private StringBuilder text() {
+        if (offHeapText != null) {
+            text.append(OffHeapStore.load(offHeapText));
+            offHeapText = null;
+        }
+        return text;
+    }
+
+    // Approximate heap used by the text and the kept operations
+    public synchronized long estimateMemoryBytes() {
+        return (long) text.capacity() * Character.BYTES + historyBytes;
+    }
+
+    public synchronized int getLength() {
+        return text().length();
+    }
+
+    public synchronized int getVersion() {
+        return version;
+    }
+
+    public synchronized String getText() {
+        return text().toString();
+    }
+}
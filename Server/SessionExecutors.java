@@ -0,0 +1,54 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * SessionExecutors runs the work of every session on one of a fixed number of
+ * single-threaded executors, chosen by hashing the session ID. All messages
+ * of a session are therefore handled one after another in arrival order by
+ * the same thread, while different sessions spread over all cores. The
+ * container thread that received a frame only hands it over and returns.
+ */
+public class SessionExecutors {
+    private final ExecutorService[] shards;
+
+    public SessionExecutors(int threads) {
+        shards = new ExecutorService[threads];
+        for (int i = 0; i < threads; i++) {
+            String name = "session-shard-" + i;
+            shards[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // Queues a task behind all earlier tasks of the same session
+    public void execute(String sessionId, Runnable task) {
+        shards[shardOf(sessionId)].execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace(); // One failing message must not stop the other sessions of the shard
+            }
+        });
+    }
+
+    private int shardOf(String sessionId) {
+        int hash = sessionId.hashCode();
+        hash ^= hash >>> 16; // Spread the high bits, session IDs often differ only in their last characters
+        return Math.floorMod(hash, shards.length);
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public void shutdown() {
+        for (ExecutorService shard : shards) {
+            shard.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,358 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * SessionLog is the append-only log of one session. Records are written into
+ * a memory-mapped segment file that is allocated at its full size up front,
+ * so an append is a copy into memory and never changes the file size. The
+ * WriteAheadLog forces the written pages to disk in the background; a record
+ * that is in the mapping already survives a crash of the server process.
+ *
+ * Every record is stored as its length, its CRC32 and its UTF-8 bytes. A zero
+ * length marks the end of a segment, and a record whose checksum does not
+ * match was torn by a crash and ends the log as well.
+ *
+ * A snapshot holds the records that rebuild the session up to the start of a
+ * segment and is named after it, e.g. "0000000000000007.snap". Once it is on
+ * disk the segments before it are deleted, so replaying a log only reads the
+ * newest snapshot and the segments from its number on.
+ */
+public class SessionLog {
+    private static final int HEADER_BYTES = 8; // Length and CRC32 of a record
+
+    private final WriteAheadLog writeAheadLog;
+    private final Path directory;
+    private final int segmentBytes;
+    private long segmentIndex; // Number of the segment appended to, also its file name
+    private MappedByteBuffer segment;
+    private int position; // End of the last record in the segment
+    private int syncedPosition; // End of the part of the segment that was forced to disk
+    private MappedByteBuffer retiredSegment; // Previous segment whose last records still have to be synced
+    private int retiredFrom;
+    private int retiredTo;
+    private boolean closed; // Set once the log is deleted or an append failed
+    private int recordsSinceSnapshot; // Records a replay would have to apply after the newest snapshot
+    private long lastSnapshotAt = System.currentTimeMillis();
+    private final Object snapshotLock = new Object(); // Serializes writing snapshots with deleting the log
+
+    SessionLog(WriteAheadLog writeAheadLog, Path directory, int segmentBytes) throws IOException {
+        this.writeAheadLog = writeAheadLog;
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        deleteTemporarySnapshots(); // Left behind by a crash while a snapshot was written
+        List<Path> segments = listSegments();
+        if (segments.isEmpty()) {
+            openSegment(0, segmentBytes);
+        } else {
+            // Continue behind the last complete record of the newest segment
+            Path last = segments.get(segments.size() - 1);
+            segmentIndex = parseIndex(last.getFileName().toString());
+            segment = map(last, Files.size(last));
+            position = scan(segment, null);
+            syncedPosition = position;
+        }
+    }
+
+    /**
+     * This method appends a record to the log. A failed append closes the
+     * log, because records behind a gap could not be replayed correctly; the
+     * session goes on in memory without being written to disk.
+     */
+    public synchronized void append(String record) {
+        if (closed) {
+            return;
+        }
+        long start = System.nanoTime();
+        byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+        try {
+            int needed = HEADER_BYTES + bytes.length;
+            if (position + needed > segment.capacity()) {
+                openSegment(segmentIndex + 1, Math.max(segmentBytes, needed + Integer.BYTES));
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            segment.put(position + HEADER_BYTES, bytes);
+            segment.putInt(position + Integer.BYTES, (int) crc.getValue());
+            segment.putInt(position, bytes.length); // Written last, so a torn record has no length or a wrong checksum
+            position += needed;
+            recordsSinceSnapshot++;
+            if (position + Integer.BYTES <= segment.capacity()) {
+                segment.putInt(position, 0); // End marker, in case a torn record of an earlier run is left behind it
+            }
+        } catch (IOException e) {
+            System.out.println("Stopped writing the log in " + directory + ": " + e.getMessage());
+            e.printStackTrace();
+            closed = true;
+            return;
+        }
+        writeAheadLog.recordAppend(bytes.length + HEADER_BYTES, System.nanoTime() - start);
+    }
+
+    /**
+     * This method feeds the newest snapshot and every record behind it to the
+     * consumer, oldest first, and returns the number of records behind the
+     * snapshot. It is called once, before anything is appended.
+     */
+    public int replay(Consumer<String> consumer) throws IOException {
+        long firstSegment = 0;
+        Path snapshot = newestSnapshot();
+        if (snapshot != null) {
+            firstSegment = parseIndex(snapshot.getFileName().toString());
+            scan(ByteBuffer.wrap(Files.readAllBytes(snapshot)), consumer);
+        }
+        int[] records = { 0 };
+        for (Path file : listSegments()) {
+            if (parseIndex(file.getFileName().toString()) >= firstSegment) {
+                scan(map(file, Files.size(file)), record -> {
+                    consumer.accept(record);
+                    records[0]++;
+                });
+            }
+        }
+        synchronized (this) {
+            recordsSinceSnapshot = records[0];
+        }
+        return records[0];
+    }
+
+    // A snapshot is due after the given number of records, or after the interval if anything was written
+    public synchronized boolean isSnapshotDue(int snapshotRecords, long snapshotIntervalMillis) {
+        return !closed && (recordsSinceSnapshot >= snapshotRecords
+                || (recordsSinceSnapshot > 0 && System.currentTimeMillis() - lastSnapshotAt >= snapshotIntervalMillis));
+    }
+
+    /**
+     * This method starts a snapshot: from now on records go to a new segment,
+     * whose number is returned and names the snapshot. The caller holds the
+     * lock that orders the changes of the session, so the state it captures
+     * contains exactly the records of the older segments. Nothing is written
+     * to disk here.
+     */
+    public synchronized long startSnapshot() throws IOException {
+        if (closed) {
+            throw new IOException("The log in " + directory + " is closed");
+        }
+        openSegment(segmentIndex + 1, segmentBytes);
+        recordsSinceSnapshot = 0;
+        lastSnapshotAt = System.currentTimeMillis();
+        return segmentIndex;
+    }
+
+    /**
+     * This method writes the snapshot started with startSnapshot() and then
+     * deletes the segments and snapshots it replaces. It goes to a temporary
+     * file that is renamed when complete, so a crash leaves either the old
+     * or the new snapshot. Returns the number of bytes written.
+     */
+    public long writeSnapshot(long index, List<String> records) throws IOException {
+        synchronized (snapshotLock) {
+            synchronized (this) {
+                if (closed) {
+                    return 0; // Deleted in the meantime
+                }
+            }
+            Path temporary = directory.resolve(String.format("%016d.snap.tmp", index));
+            long bytes = 0;
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (String record : records) {
+                    ByteBuffer frame = frame(record);
+                    bytes += frame.remaining();
+                    while (frame.hasRemaining()) {
+                        channel.write(frame);
+                    }
+                }
+                channel.force(true);
+            }
+            Files.move(temporary, directory.resolve(String.format("%016d.snap", index)), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    String name = file.getFileName().toString();
+                    // Snapshots are written one at a time, so any other temporary file is left from a crash
+                    if (((name.endsWith(".log") || name.endsWith(".snap")) && parseIndex(name) < index)
+                            || name.endsWith(".snap.tmp")) {
+                        Files.delete(file);
+                    }
+                }
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * This method forces the records appended since the last sync to disk,
+     * including the end of a segment that was replaced in the meantime. It
+     * is called by the background sync and runs outside the lock, so appends
+     * do not wait for the disk.
+     */
+    void sync() {
+        MappedByteBuffer buffer;
+        int from;
+        int to;
+        MappedByteBuffer retired;
+        int retiredStart;
+        int retiredEnd;
+        synchronized (this) {
+            if (closed || (position == syncedPosition && retiredSegment == null)) {
+                return;
+            }
+            buffer = segment;
+            from = syncedPosition;
+            to = position;
+            syncedPosition = position;
+            retired = retiredSegment;
+            retiredStart = retiredFrom;
+            retiredEnd = retiredTo;
+            retiredSegment = null;
+        }
+        if (retired != null) {
+            retired.force(retiredStart, retiredEnd - retiredStart);
+        }
+        buffer.force(from, to - from);
+    }
+
+    void delete() throws IOException {
+        synchronized (snapshotLock) {
+            synchronized (this) {
+                closed = true;
+                segment = null;
+                retiredSegment = null;
+            }
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    synchronized void close() {
+        if (!closed) {
+            if (retiredSegment != null) {
+                retiredSegment.force(retiredFrom, retiredTo - retiredFrom);
+                retiredSegment = null;
+            }
+            segment.force(syncedPosition, position - syncedPosition);
+            closed = true;
+        }
+    }
+
+    // Moves on to a new segment, the rest of the current one is synced by the next background sync
+    private void openSegment(long index, int size) throws IOException {
+        if (segment != null && position > syncedPosition) {
+            if (retiredSegment != null) {
+                retiredSegment.force(retiredFrom, retiredTo - retiredFrom); // Two segments in one interval, rare
+            }
+            retiredSegment = segment;
+            retiredFrom = syncedPosition;
+            retiredTo = position;
+        }
+        segmentIndex = index;
+        segment = map(directory.resolve(String.format("%016d.log", index)), size);
+        position = 0;
+        syncedPosition = 0;
+    }
+
+    // Maps a segment file, creating it with the given size if it does not exist
+    private static MappedByteBuffer map(Path file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            // The mapping stays valid after the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    // Length, CRC32 and UTF-8 bytes of a record, as written by append()
+    private static ByteBuffer frame(String record) {
+        byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_BYTES + bytes.length);
+        frame.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes).flip();
+        return frame;
+    }
+
+    // Reads the records of a segment or snapshot and returns where the last complete one ends
+    private static int scan(ByteBuffer buffer, Consumer<String> consumer) {
+        int offset = 0;
+        CRC32 crc = new CRC32();
+        while (offset + HEADER_BYTES <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || length > buffer.capacity() - offset - HEADER_BYTES) {
+                break;
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(offset + HEADER_BYTES, bytes);
+            crc.reset();
+            crc.update(bytes);
+            if ((int) crc.getValue() != buffer.getInt(offset + Integer.BYTES)) {
+                break;
+            }
+            if (consumer != null) {
+                consumer.accept(new String(bytes, StandardCharsets.UTF_8));
+            }
+            offset += HEADER_BYTES + length;
+        }
+        return offset;
+    }
+
+    private List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> file.getFileName().toString().endsWith(".log")).sorted().forEach(segments::add);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return segments;
+    }
+
+    private Path newestSnapshot() throws IOException {
+        Path newest = null;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (file.getFileName().toString().endsWith(".snap") && (newest == null || file.compareTo(newest) > 0)) {
+                    newest = file;
+                }
+            }
+        }
+        return newest;
+    }
+
+    // Removes snapshots that were not finished, so only complete ones are ever read
+    private void deleteTemporarySnapshots() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (file.getFileName().toString().endsWith(".snap.tmp")) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    // Number in the name of a segment or snapshot file
+    private static long parseIndex(String name) {
+        return Long.parseLong(name.substring(0, name.indexOf('.')));
+    }
+}
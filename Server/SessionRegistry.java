@@ -0,0 +1,302 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import org.springframework.web.socket.CloseStatus;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SessionRegistry keeps all active editing sessions of this server. Sessions
+ * live in a ConcurrentHashMap, whose per-bin locking lets WebSocket threads
+ * of different sessions work without blocking each other. Joining, leaving
+ * and eviction of a session go through compute() on its key, so a client can
+ * never be added to a session that is being evicted at the same moment.
+ *
+ * A background task evicts sessions that have been empty longer than the
+ * empty TTL and closes sessions without any message for the idle TTL. It also
+ * recomputes the memory used by all documents, which is used to enforce the
+ * per-session and global memory limits. Documents of sessions without a
+ * message for the offload time are moved off the heap, so idle sessions
+ * neither fill the heap nor lengthen garbage collection.
+ *
+ * Every session is written to the write-ahead log. On startup the registry
+ * replays the logs on disk, so the sessions of the last run are back before
+ * the first client connects. Eviction only frees the memory of a session:
+ * its log is kept, and the session is restored from it when a client asks
+ * for it again. Logs are deleted by the retention time of the log alone.
+ * A second background task writes snapshots of the sessions whose logs
+ * have grown enough, so edits in the sessions do not wait for them.
+ */
+public class SessionRegistry {
+    private final ConcurrentHashMap<String, EditingSession> sessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictionScheduler;
+    private final ScheduledExecutorService snapshotScheduler;
+    private final long emptySessionTtlMillis; // How long a session without clients is kept for reconnects
+    private final long idleSessionTtlMillis; // How long a session may go without any message
+    private final long offloadAfterMillis; // How long a session goes without a message before its document leaves the heap
+    private final long maxSessionMemoryBytes; // Memory one session document may use
+    private final long maxTotalMemoryBytes; // Memory all session documents together may use
+    private final int maxSessions; // Sessions this node may hold
+    private final int maxHistory; // Operations kept per session to transform late edits against
+    private final int replayCapacity; // Updates kept per session for clients that reconnect
+    private final AtomicLong totalMemoryBytes = new AtomicLong(); // Recomputed on every sweep, grown in between
+    private final WriteAheadLog writeAheadLog;
+
+    public SessionRegistry(long emptySessionTtlMillis, long idleSessionTtlMillis, long offloadAfterMillis,
+            long maxSessionMemoryBytes, long maxTotalMemoryBytes, int maxSessions, int maxHistory, int replayCapacity,
+            long sweepIntervalMillis, WriteAheadLog writeAheadLog) {
+        this.emptySessionTtlMillis = emptySessionTtlMillis;
+        this.idleSessionTtlMillis = idleSessionTtlMillis;
+        this.offloadAfterMillis = offloadAfterMillis;
+        this.maxSessionMemoryBytes = maxSessionMemoryBytes;
+        this.maxTotalMemoryBytes = maxTotalMemoryBytes;
+        this.maxSessions = maxSessions;
+        this.maxHistory = maxHistory;
+        this.replayCapacity = replayCapacity;
+        this.writeAheadLog = writeAheadLog;
+        recover();
+        this.evictionScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-eviction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        evictionScheduler.scheduleWithFixedDelay(this::sweep, sweepIntervalMillis, sweepIntervalMillis, TimeUnit.MILLISECONDS);
+        this.snapshotScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "session-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotScheduler.scheduleWithFixedDelay(this::snapshotSessions, 1, 1, TimeUnit.SECONDS);
+    }
+
+    // The session with the given ID, restored from its log if it was evicted, or null
+    public EditingSession get(String sessionId) {
+        EditingSession editingSession = sessions.get(sessionId);
+        if (editingSession != null || !writeAheadLog.exists(sessionId)) {
+            return editingSession;
+        }
+        return sessions.computeIfAbsent(sessionId, id -> {
+            if (sessions.size() >= maxSessions || totalMemoryBytes.get() >= maxTotalMemoryBytes) {
+                System.out.println("Cannot restore session " + id + ": server limit reached");
+                return null;
+            }
+            return restore(id);
+        });
+    }
+
+    /**
+     * This method creates the session with the given ID, protected by the
+     * given password hash, and returns false if the session already has a
+     * password. It throws IllegalStateException when a new session cannot be
+     * created because the global memory limit or the session limit is reached.
+     */
+    public boolean createSession(String sessionId, String passwordHash, boolean crdt) {
+        boolean[] created = { false };
+        sessions.compute(sessionId, (id, editingSession) -> {
+            if (editingSession == null) {
+                if (totalMemoryBytes.get() >= maxTotalMemoryBytes) {
+                    throw new IllegalStateException("Server memory limit reached");
+                }
+                if (sessions.size() >= maxSessions) {
+                    throw new IllegalStateException("Server session limit reached");
+                }
+                if (writeAheadLog.exists(id)) {
+                    editingSession = restore(id); // Evicted before, it keeps its content and password
+                } else {
+                    editingSession = new EditingSession(id, maxHistory, replayCapacity);
+                    editingSession.setLog(openLog(id));
+                }
+            }
+            if (editingSession.getPasswordHash() == null) {
+                // The engine is chosen before the password is set, which prevents switching it later
+                if (crdt && editingSession.enableCrdt()) {
+                    editingSession.log("engine:crdt");
+                }
+                editingSession.setPasswordHash(passwordHash);
+                editingSession.log("password:" + passwordHash);
+                created[0] = true;
+            }
+            editingSession.touch();
+            return editingSession;
+        });
+        return created[0];
+    }
+
+    // Adds an authenticated client, returns null if the session was evicted since the client got in
+    public EditingSession addClient(String sessionId, ClientConnection client) {
+        return sessions.computeIfPresent(sessionId, (id, editingSession) -> {
+            editingSession.getClients().add(client);
+            editingSession.touch();
+            return editingSession;
+        });
+    }
+
+    // Removes a client; the session itself stays until the empty TTL has passed
+    public EditingSession removeClient(String sessionId, ClientConnection client) {
+        return sessions.computeIfPresent(sessionId, (id, editingSession) -> {
+            editingSession.getClients().remove(client);
+            editingSession.touch();
+            return editingSession;
+        });
+    }
+
+    /**
+     * This method checks whether a session may grow by the given number of
+     * bytes without exceeding the per-session or the global memory limit. The
+     * growth is counted right away, so the global limit also holds between sweeps.
+     */
+    public boolean reserveMemory(EditingSession editingSession, long additionalBytes) {
+        if (additionalBytes <= 0) {
+            return true; // Shrinking edits are always allowed
+        }
+        if (editingSession.estimateMemoryBytes() + additionalBytes > maxSessionMemoryBytes
+                || totalMemoryBytes.get() + additionalBytes > maxTotalMemoryBytes) {
+            return false;
+        }
+        totalMemoryBytes.addAndGet(additionalBytes);
+        return true;
+    }
+
+    // Gives back a reservation of reserveMemory() for an edit that was rejected after all
+    public void releaseMemory(long reservedBytes) {
+        if (reservedBytes > 0) {
+            totalMemoryBytes.addAndGet(-reservedBytes);
+        }
+    }
+
+    // Rebuilds the sessions of the last run from their logs
+    private void recover() {
+        List<String> sessionIds;
+        try {
+            sessionIds = writeAheadLog.getSessionIds();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read the session logs", e);
+        }
+        long start = System.currentTimeMillis();
+        long[] replayed = { 0 };
+        for (String sessionId : sessionIds) {
+            sessions.put(sessionId, restore(sessionId, replayed));
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        writeAheadLog.recordRecovery(sessionIds.size(), replayed[0], elapsed);
+        System.out.println("Restored " + sessionIds.size() + " sessions from snapshots and " + replayed[0] + " log records in "
+                + elapsed + " ms");
+    }
+
+    private EditingSession restore(String sessionId) {
+        EditingSession editingSession = restore(sessionId, new long[1]);
+        System.out.println("Restored evicted session " + sessionId + " from its log");
+        return editingSession;
+    }
+
+    // Rebuilds one session from its log and adds the records replayed behind its snapshot to replayed[0]
+    private EditingSession restore(String sessionId, long[] replayed) {
+        EditingSession editingSession = new EditingSession(sessionId, maxHistory, replayCapacity);
+        try {
+            SessionLog log = writeAheadLog.open(sessionId);
+            replayed[0] += log.replay(editingSession::replay);
+            editingSession.setLog(log);
+            editingSession.offload(); // No client is connected yet, the first message loads it again
+        } catch (IOException | RuntimeException e) {
+            // Keep what could be replayed, but stop logging so the gap is not followed by newer edits
+            System.out.println("Could not fully restore session " + sessionId + ": " + e.getMessage());
+            e.printStackTrace();
+        }
+        editingSession.getReplayBuffer().clear(editingSession.getSequence()); // Updates before the restore are not kept
+        totalMemoryBytes.addAndGet(editingSession.estimateMemoryBytes());
+        return editingSession;
+    }
+
+    // Writes a snapshot of every session whose log has grown enough since its last one
+    private void snapshotSessions() {
+        for (EditingSession editingSession : sessions.values()) {
+            SessionLog log = editingSession.getLog();
+            if (log == null || !writeAheadLog.isSnapshotDue(log)) {
+                continue;
+            }
+            try {
+                long start = System.nanoTime();
+                long bytes = editingSession.snapshot();
+                writeAheadLog.recordSnapshot(bytes, System.nanoTime() - start);
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Could not write a snapshot of session " + editingSession.getId() + ": " + e.getMessage());
+                e.printStackTrace(); // Keep the scheduled task alive, the log still holds every record
+            }
+        }
+    }
+
+    private SessionLog openLog(String sessionId) {
+        try {
+            return writeAheadLog.open(sessionId);
+        } catch (IOException e) {
+            System.out.println("Session " + sessionId + " is not written to disk: " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public Collection<EditingSession> getSessions() {
+        return sessions.values();
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public long getTotalMemoryBytes() {
+        return totalMemoryBytes.get();
+    }
+
+    // Evicts empty and idle sessions and recomputes the memory used by all documents
+    private void sweep() {
+        try {
+            long now = System.currentTimeMillis();
+            long memory = 0;
+            List<EditingSession> idleSessions = new ArrayList<>();
+            for (String sessionId : sessions.keySet()) {
+                EditingSession kept = sessions.computeIfPresent(sessionId, (id, editingSession) -> {
+                    long idleFor = now - editingSession.getLastActivity();
+                    boolean empty = editingSession.getClients().isEmpty();
+                    if ((empty && idleFor > emptySessionTtlMillis) || idleFor > idleSessionTtlMillis) {
+                        idleSessions.add(editingSession);
+                        // Only the memory is freed; inside compute(), so the log is closed before the session is restored
+                        writeAheadLog.close(id);
+                        return null;
+                    }
+                    return editingSession;
+                });
+                if (kept != null) {
+                    if (now - kept.getLastActivity() > offloadAfterMillis && kept.offload()) {
+                        System.out.println("Moved the document of idle session " + sessionId + " off the heap");
+                    }
+                    memory += kept.estimateMemoryBytes();
+                }
+            }
+            totalMemoryBytes.set(memory);
+            writeAheadLog.deleteExpired();
+
+            // Connections are closed outside of compute(), which must not block on network I/O
+            for (EditingSession editingSession : idleSessions) {
+                System.out.println("Evicted session " + editingSession.getId());
+                for (ClientConnection client : editingSession.getClients()) {
+                    client.close(CloseStatus.GOING_AWAY.withReason("Session closed after being idle"));
+                }
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace(); // Keep the scheduled task alive
+        }
+    }
+
+    public void shutdown() {
+        evictionScheduler.shutdownNow();
+        snapshotScheduler.shutdownNow();
+    }
+}
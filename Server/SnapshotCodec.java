@@ -0,0 +1,63 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * SnapshotCodec builds the messages that carry a whole document to a joining
+ * client. Small documents are sent as plain text, larger ones are deflated
+ * and Base64 encoded, which makes Markdown snapshots a fraction of their size.
+ * Compressed messages have a "z" appended to their type, e.g. "docz:".
+ */
+public final class SnapshotCodec {
+    private static final int COMPRESSION_THRESHOLD = 1024; // Documents shorter than this are not worth compressing
+
+    private SnapshotCodec() {
+    }
+
+    // Builds "type:version:content" or "typez:version:compressedContent"
+    public static String encode(String type, long version, String content) {
+        if (content.length() < COMPRESSION_THRESHOLD) {
+            return type + ":" + version + ":" + content;
+        }
+        return type + "z:" + version + ":" + compress(content);
+    }
+
+    public static String compress(String content) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(content.getBytes(StandardCharsets.UTF_8));
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length() / 4);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return Base64.getEncoder().encodeToString(out.toByteArray());
+    }
+
+    public static String decompress(String compressed) {
+        Inflater inflater = new Inflater();
+        inflater.setInput(Base64.getDecoder().decode(compressed));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && inflater.needsInput()) {
+                    throw new IllegalArgumentException("Compressed snapshot is cut off");
+                }
+                out.write(buffer, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Compressed snapshot is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
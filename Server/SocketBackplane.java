@@ -0,0 +1,301 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SocketBackplane connects the nodes of a cluster over TCP. Every node
+ * listens on its backplane address and opens one connection to each node it
+ * sends to, so messages between two nodes stay in order. Broken connections
+ * are opened again with the next message.
+ *
+ * The nodes share a secret. A connection starts with the ID of the sending
+ * node and a nonce from each side; both then prove with an HMAC of the
+ * nonces that they know the secret, and derive a key for the connection from
+ * them. The messages that follow are length-prefixed UTF-8, encrypted and
+ * authenticated with AES-GCM under that key, since they carry the passwords
+ * of relayed clients. A frame longer than the configured limit closes the
+ * connection before it is read.
+ */
+public class SocketBackplane implements ClusterBackplane {
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000; // A peer that stalls the handshake is dropped
+    private static final int NONCE_BYTES = 16;
+    private static final int TAG_BITS = 128;
+
+    private final String localNodeId;
+    private final Map<String, InetSocketAddress> nodes; // Backplane address of every node, including this one
+    private final byte[] secret; // Shared by all nodes
+    private final int maxMessageBytes;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final ServerSocket serverSocket;
+    private volatile Listener listener;
+    private volatile boolean closed;
+
+    public SocketBackplane(String localNodeId, Map<String, InetSocketAddress> nodes, String secret, int maxMessageBytes)
+            throws IOException {
+        if (!nodes.containsKey(localNodeId)) {
+            throw new IllegalArgumentException("Node " + localNodeId + " is not part of the cluster " + nodes.keySet());
+        }
+        if (secret == null || secret.isBlank()) {
+            throw new IllegalArgumentException("The cluster needs a shared secret");
+        }
+        this.localNodeId = localNodeId;
+        this.nodes = nodes;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.maxMessageBytes = maxMessageBytes;
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(nodes.get(localNodeId)); // Only the address the other nodes know, not every interface
+        Thread acceptor = new Thread(this::acceptConnections, "backplane-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @Override
+    public String getLocalNodeId() {
+        return localNodeId;
+    }
+
+    @Override
+    public Collection<String> getNodeIds() {
+        return nodes.keySet();
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void send(String nodeId, String message) throws IOException {
+        InetSocketAddress address = nodes.get(nodeId);
+        if (address == null) {
+            throw new IOException("Unknown node " + nodeId);
+        }
+        peers.computeIfAbsent(nodeId, id -> new Peer(address)).send(message);
+    }
+
+    private void acceptConnections() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread reader = new Thread(() -> readMessages(socket), "backplane-reader");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * This method authenticates one incoming connection and delivers its
+     * messages until it is closed. A message the listener fails on is
+     * skipped, so one bad message does not end the connection.
+     */
+    private void readMessages(Socket socket) {
+        try (Socket connection = socket;
+                DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()))) {
+            connection.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            String fromNodeId = in.readUTF();
+            byte[] clientNonce = new byte[NONCE_BYTES];
+            in.readFully(clientNonce);
+            byte[] serverNonce = nonce();
+            out.write(serverNonce);
+            out.flush();
+            byte[] proof = new byte[32];
+            in.readFully(proof);
+            if (!nodes.containsKey(fromNodeId) || !MessageDigest.isEqual(proof,
+                    mac("connect", serverNonce, clientNonce, fromNodeId.getBytes(StandardCharsets.UTF_8)))) {
+                System.out.println("Rejected backplane connection from " + connection.getRemoteSocketAddress()
+                        + " claiming to be node " + fromNodeId);
+                return;
+            }
+            out.write(mac("accept", clientNonce, serverNonce));
+            out.flush();
+            connection.setSoTimeout(0);
+            FrameCipher cipher = new FrameCipher(Cipher.DECRYPT_MODE, mac("key", clientNonce, serverNonce));
+
+            while (!closed) {
+                int length = in.readInt();
+                if (length < TAG_BITS / 8 || length > maxMessageBytes + TAG_BITS / 8) {
+                    System.out.println("Closed backplane connection of node " + fromNodeId + ": frame of " + length + " bytes");
+                    return;
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                String message = new String(cipher.apply(frame), StandardCharsets.UTF_8);
+                Listener current = listener;
+                if (current == null) {
+                    continue;
+                }
+                try {
+                    current.onMessage(fromNodeId, message);
+                } catch (RuntimeException e) {
+                    System.out.println("Dropped backplane message from node " + fromNodeId + ": " + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Backplane connection closed: " + e.getMessage());
+        }
+    }
+
+    private byte[] nonce() {
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    // HMAC-SHA256 with the shared secret over a label and the given values
+    private byte[] mac(String label, byte[]... values) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            mac.update(label.getBytes(StandardCharsets.UTF_8));
+            for (byte[] value : values) {
+                mac.update(value);
+            }
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Peer peer : peers.values()) {
+            peer.disconnect();
+        }
+    }
+
+    // The outgoing connection to one node
+    private class Peer {
+        private final InetSocketAddress address;
+        private Socket socket;
+        private DataOutputStream out;
+        private FrameCipher cipher;
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        synchronized void send(String message) throws IOException {
+            byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > maxMessageBytes) {
+                throw new IOException("Message of " + bytes.length + " bytes is larger than the backplane limit of "
+                        + maxMessageBytes);
+            }
+            try {
+                if (out == null) {
+                    connect();
+                }
+                byte[] frame = cipher.apply(bytes);
+                out.writeInt(frame.length);
+                out.write(frame);
+                out.flush();
+            } catch (IOException e) {
+                disconnect(); // Reconnect with the next message
+                throw e;
+            }
+        }
+
+        // Opens the connection and runs the handshake, in which the other node proves it knows the secret as well
+        private void connect() throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            byte[] clientNonce = nonce();
+            out.writeUTF(localNodeId);
+            out.write(clientNonce);
+            out.flush();
+            byte[] serverNonce = new byte[NONCE_BYTES];
+            in.readFully(serverNonce);
+            out.write(mac("connect", serverNonce, clientNonce, localNodeId.getBytes(StandardCharsets.UTF_8)));
+            out.flush();
+            byte[] proof = new byte[32];
+            in.readFully(proof);
+            if (!MessageDigest.isEqual(proof, mac("accept", clientNonce, serverNonce))) {
+                throw new IOException("Node at " + address + " does not know the cluster secret");
+            }
+            socket.setSoTimeout(0);
+            cipher = new FrameCipher(Cipher.ENCRYPT_MODE, mac("key", clientNonce, serverNonce));
+        }
+
+        synchronized void disconnect() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            socket = null;
+            out = null;
+            cipher = null;
+        }
+    }
+
+    /**
+     * AES-GCM for the frames of one connection. Its key is used for this
+     * connection only, so the frame number is a unique IV, and a frame that
+     * was changed, dropped, repeated or reordered fails to decrypt.
+     */
+    private static class FrameCipher {
+        private final int mode;
+        private final SecretKeySpec key;
+        private final Cipher cipher;
+        private long frameNumber;
+
+        FrameCipher(int mode, byte[] key) {
+            this.mode = mode;
+            this.key = new SecretKeySpec(key, "AES");
+            try {
+                this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES/GCM is not available", e);
+            }
+        }
+
+        byte[] apply(byte[] input) throws IOException {
+            byte[] iv = ByteBuffer.allocate(12).putLong(4, frameNumber++).array();
+            try {
+                cipher.init(mode, key, new GCMParameterSpec(TAG_BITS, iv));
+                return cipher.doFinal(input);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Backplane frame failed to " + (mode == Cipher.ENCRYPT_MODE ? "encrypt" : "decrypt"), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * SpectatorFeed sends the rendered document of a session to its spectators,
+ * clients that only watch. The Markdown is rendered with commonmark once per
+ * version, on the render thread, and every spectator gets the same message,
+ * so hundreds of viewers cost one render and one encoding per change.
+ *
+ * The HTML is kept as one string per top-level block. A spectator that
+ * joins gets "htmldoc:version:blocks", afterwards only the blocks that
+ * changed are sent as "html:baseVersion:version:start:removed:blocks",
+ * which replaces removed blocks from start. Blocks are packed like a
+ * MessageBatch. Bursts of edits are rendered together, so the versions a
+ * spectator sees can skip.
+ */
+public class SpectatorFeed {
+    private final Set<ClientConnection> spectators = new HashSet<>(); // Have the rendered document, get changes
+    private final Set<ClientConnection> joining = new HashSet<>(); // Wait for the next render to get the document
+    private long renderedVersion = -1;
+    private List<String> blocks = List.of();
+    private long bytes; // Approximate heap used by the blocks
+    private boolean renderScheduled;
+    private boolean rendering; // A render thread is rendering the session, others leave it to that one
+    private boolean renderAgain; // The document changed while rendering, the running render goes again
+
+    // Adds a spectator, returns true if the caller has to schedule a render
+    public synchronized boolean add(ClientConnection spectator) {
+        joining.add(spectator);
+        return scheduleRender();
+    }
+
+    public synchronized void remove(ClientConnection spectator) {
+        spectators.remove(spectator);
+        joining.remove(spectator);
+        if (spectators.isEmpty() && joining.isEmpty()) {
+            renderedVersion = -1; // Nobody watches, the next spectator gets a fresh render
+            blocks = List.of();
+            bytes = 0;
+        }
+    }
+
+    // Called after the document changed, returns true if the caller has to schedule a render
+    public synchronized boolean changed() {
+        return (!spectators.isEmpty() || !joining.isEmpty()) && scheduleRender();
+    }
+
+    // The whole rendered document, for a spectator that joins or whose queue overflowed
+    public synchronized OutboundMessage getDocument() {
+        return new OutboundMessage("htmldoc:" + renderedVersion + ":" + MessageBatch.join(blocks));
+    }
+
+    public synchronized long estimateMemoryBytes() {
+        return bytes;
+    }
+
+    /**
+     * This method renders the document of the session if it changed since
+     * the last render and sends the changed blocks to the spectators. It
+     * runs on a render thread; the text is copied under the lock of the
+     * session and rendered outside of it, so editors never wait for it.
+     * Renders of one session never overlap: a render that finds another one
+     * running leaves it to render again once it is done, so an older result
+     * can neither replace a newer one nor leave the spectators behind.
+     */
+    public void render(EditingSession editingSession) {
+        synchronized (this) {
+            renderScheduled = false;
+            if (rendering) {
+                renderAgain = true;
+                return;
+            }
+            rendering = true;
+        }
+        boolean again = true;
+        try {
+            while (again) {
+                renderOnce(editingSession);
+                synchronized (this) {
+                    again = renderAgain;
+                    renderAgain = false;
+                    rendering = again;
+                }
+            }
+        } finally {
+            if (again) {
+                synchronized (this) {
+                    rendering = false; // Failed, the next change schedules a render again
+                }
+            }
+        }
+    }
+
+    private void renderOnce(EditingSession editingSession) {
+        long lastVersion;
+        synchronized (this) {
+            if (spectators.isEmpty() && joining.isEmpty()) {
+                return;
+            }
+            lastVersion = renderedVersion;
+        }
+        CrdtSession crdtSession = editingSession.getCrdtSession();
+        long version;
+        String text = null;
+        synchronized (crdtSession != null ? crdtSession : editingSession.getDocument()) {
+            version = editingSession.getSequence();
+            if (version != lastVersion) {
+                text = crdtSession != null ? crdtSession.getText() : editingSession.getDocument().getText();
+            }
+        }
+        List<String> rendered = text != null ? MarkdownRenderer.renderBlocks(text) : null;
+
+        synchronized (this) {
+            if (rendered != null && renderedVersion != lastVersion) {
+                // Everybody stopped watching meanwhile and the feed was reset, joining spectators get the next render
+                renderAgain = true;
+                return;
+            }
+            if (rendered != null) {
+                // Only the blocks between the unchanged ones at the start and the end are sent
+                int start = 0;
+                while (start < blocks.size() && start < rendered.size() && blocks.get(start).equals(rendered.get(start))) {
+                    start++;
+                }
+                int end = 0;
+                while (end < blocks.size() - start && end < rendered.size() - start
+                        && blocks.get(blocks.size() - 1 - end).equals(rendered.get(rendered.size() - 1 - end))) {
+                    end++;
+                }
+                if (!spectators.isEmpty()) {
+                    OutboundMessage patch = new OutboundMessage("html:" + renderedVersion + ":" + version + ":" + start + ":"
+                            + (blocks.size() - start - end) + ":" + MessageBatch.join(rendered.subList(start, rendered.size() - end)));
+                    for (ClientConnection spectator : spectators) {
+                        spectator.send(patch);
+                    }
+                }
+                renderedVersion = version;
+                blocks = rendered;
+                bytes = 0;
+                for (String block : rendered) {
+                    bytes += (long) block.length() * Character.BYTES + 48;
+                }
+            }
+            if (!joining.isEmpty()) {
+                OutboundMessage document = getDocument();
+                for (ClientConnection spectator : joining) {
+                    spectator.send(document);
+                }
+                spectators.addAll(joining);
+                joining.clear();
+            }
+        }
+    }
+
+    private boolean scheduleRender() {
+        if (renderScheduled) {
+            return false;
+        }
+        renderScheduled = true;
+        return true;
+    }
+}
@@ -0,0 +1,49 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * StorageMetricsController reports how much the write-ahead log is written,
+ * how long appends, background syncs and snapshots take, and how much had to
+ * be replayed when the sessions were restored at startup. It also compares the
+ * heap used by active documents with the memory of idle ones kept off the heap.
+ */
+@RestController
+public class StorageMetricsController {
+    private final WriteAheadLog writeAheadLog;
+    private final SessionRegistry sessionRegistry;
+
+    public StorageMetricsController(WriteAheadLog writeAheadLog, SessionRegistry sessionRegistry) {
+        this.writeAheadLog = writeAheadLog;
+        this.sessionRegistry = sessionRegistry;
+    }
+
+    @GetMapping("/metrics/storage")
+    public Map<String, Object> storage() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("sessions", sessionRegistry.getSessionCount());
+        metrics.put("documentHeapBytes", sessionRegistry.getTotalMemoryBytes());
+        metrics.put("offHeapDocuments", OffHeapStore.getStoredDocuments());
+        metrics.put("offHeapBytes", OffHeapStore.getStoredBytes());
+        metrics.put("openLogs", writeAheadLog.getOpenLogCount());
+        metrics.put("appendedRecords", writeAheadLog.getAppendedRecords());
+        metrics.put("appendedBytes", writeAheadLog.getAppendedBytes());
+        metrics.put("appendsPerSecond", writeAheadLog.getAppendsPerSecond());
+        metrics.put("averageAppendMicros", writeAheadLog.getAverageAppendMicros());
+        metrics.put("syncs", writeAheadLog.getSyncs());
+        metrics.put("averageSyncMicros", writeAheadLog.getAverageSyncMicros());
+        metrics.put("maxSyncMicros", writeAheadLog.getMaxSyncMicros());
+        metrics.put("snapshots", writeAheadLog.getSnapshots());
+        metrics.put("snapshotBytes", writeAheadLog.getSnapshotBytes());
+        metrics.put("averageSnapshotMillis", writeAheadLog.getAverageSnapshotMillis());
+        metrics.put("maxSnapshotMillis", writeAheadLog.getMaxSnapshotMillis());
+        metrics.put("recoveredSessions", writeAheadLog.getRecoveredSessions());
+        metrics.put("recoveredRecords", writeAheadLog.getRecoveredRecords());
+        metrics.put("recoveryMillis", writeAheadLog.getRecoveryMillis());
+        return metrics;
+    }
+}
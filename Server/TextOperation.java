@@ -0,0 +1,323 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A TextOperation describes a single edit of a document as a sequence of
+ * components that walk over the whole document: retain n characters,
+ * insert a string, or delete n characters. Operations can be applied,
+ * composed and transformed against concurrent operations, which is what
+ * allows the server to merge edits of several writers into one document.
+ */
+public class TextOperation {
+    // Components: positive Integer = retain, negative Integer = delete, String = insert
+    private final List<Object> ops = new ArrayList<>();
+    private int baseLength;   // Length of the document the operation applies to
+    private int targetLength; // Length of the document after the operation is applied
+
+    // Skips over the next n characters, leaving them unchanged
+    public TextOperation retain(int n) {
+        if (n <= 0) {
+            return this;
+        }
+        baseLength = add(baseLength, n);
+        targetLength = add(targetLength, n);
+        int last = ops.size() - 1;
+        if (last >= 0 && isRetain(ops.get(last))) {
+            ops.set(last, (Integer) ops.get(last) + n); // Merge with the previous retain
+        } else {
+            ops.add(n);
+        }
+        return this;
+    }
+
+    // Inserts the given text at the current position
+    public TextOperation insert(String str) {
+        if (str.isEmpty()) {
+            return this;
+        }
+        targetLength = add(targetLength, str.length());
+        int last = ops.size() - 1;
+        if (last >= 0 && isInsert(ops.get(last))) {
+            ops.set(last, ops.get(last) + str); // Merge with the previous insert
+        } else if (last >= 0 && isDelete(ops.get(last))) {
+            // Inserts are kept in front of deletes so equal edits always have the same form
+            if (last > 0 && isInsert(ops.get(last - 1))) {
+                ops.set(last - 1, ops.get(last - 1) + str);
+            } else {
+                ops.add(last, str);
+            }
+        } else {
+            ops.add(str);
+        }
+        return this;
+    }
+
+    // Deletes the next n characters
+    public TextOperation delete(int n) {
+        if (n <= 0) {
+            return this;
+        }
+        baseLength = add(baseLength, n);
+        int last = ops.size() - 1;
+        if (last >= 0 && isDelete(ops.get(last))) {
+            ops.set(last, (Integer) ops.get(last) - n); // Merge with the previous delete
+        } else {
+            ops.add(-n);
+        }
+        return this;
+    }
+
+    // Lengths are summed exactly, so a merged component or an operation longer than any document is rejected
+    // instead of wrapping around; every component then fits into the base length that applyTo checks first
+    private static int add(int length, int n) {
+        try {
+            return Math.addExact(length, n);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Operation is too long");
+        }
+    }
+
+    public int getBaseLength() {
+        return baseLength;
+    }
+
+    public int getTargetLength() {
+        return targetLength;
+    }
+
+    // Approximate heap used by the operation: a fixed overhead per component plus the inserted text
+    public long estimateMemoryBytes() {
+        long bytes = 48;
+        for (Object op : ops) {
+            bytes += 16;
+            if (isInsert(op)) {
+                bytes += 40 + (long) ((String) op).length() * Character.BYTES;
+            }
+        }
+        return bytes;
+    }
+
+    // An operation that only retains characters does not change the document
+    public boolean isNoop() {
+        return ops.isEmpty() || (ops.size() == 1 && isRetain(ops.get(0)));
+    }
+
+    /**
+     * This method applies the operation to the given document in place.
+     * Working on a StringBuilder avoids copying the whole document for
+     * every keystroke, which matters for large documents. Only the base
+     * length is checked before the document changes: the components were
+     * summed exactly, so they always walk the document without going past it.
+     */
+    public void applyTo(StringBuilder document) {
+        if (document.length() != baseLength) {
+            throw new IllegalArgumentException("Operation base length " + baseLength
+                    + " does not match document length " + document.length());
+        }
+        int index = 0;
+        for (Object op : ops) {
+            if (isRetain(op)) {
+                index += (Integer) op;
+            } else if (isInsert(op)) {
+                document.insert(index, (String) op);
+                index += ((String) op).length();
+            } else {
+                document.delete(index, index - (Integer) op);
+            }
+        }
+    }
+
+    /**
+     * This method combines this operation with a following one into a single
+     * operation that has the same effect as applying both in sequence. It is
+     * used to merge edits that are waiting to be sent.
+     */
+    public TextOperation compose(TextOperation other) {
+        if (targetLength != other.baseLength) {
+            throw new IllegalArgumentException("The base length of the second operation has to be the target length of the first");
+        }
+        TextOperation result = new TextOperation();
+        List<Object> ops1 = this.ops;
+        List<Object> ops2 = other.ops;
+        int i1 = 0;
+        int i2 = 0;
+        Object op1 = i1 < ops1.size() ? ops1.get(i1++) : null;
+        Object op2 = i2 < ops2.size() ? ops2.get(i2++) : null;
+        while (op1 != null || op2 != null) {
+            if (op1 != null && isDelete(op1)) {
+                result.delete(-(Integer) op1);
+                op1 = i1 < ops1.size() ? ops1.get(i1++) : null;
+                continue;
+            }
+            if (op2 != null && isInsert(op2)) {
+                result.insert((String) op2);
+                op2 = i2 < ops2.size() ? ops2.get(i2++) : null;
+                continue;
+            }
+            if (op1 == null || op2 == null) {
+                throw new IllegalArgumentException("Cannot compose operations: lengths do not match");
+            }
+
+            if (isRetain(op1) && isRetain(op2)) {
+                int n1 = (Integer) op1;
+                int n2 = (Integer) op2;
+                result.retain(Math.min(n1, n2));
+                op1 = n1 > n2 ? (Object) (n1 - n2) : (i1 < ops1.size() ? ops1.get(i1++) : null);
+                op2 = n2 > n1 ? (Object) (n2 - n1) : (i2 < ops2.size() ? ops2.get(i2++) : null);
+            } else if (isInsert(op1) && isDelete(op2)) {
+                String s1 = (String) op1;
+                int n2 = -(Integer) op2;
+                op1 = s1.length() > n2 ? s1.substring(n2) : (i1 < ops1.size() ? ops1.get(i1++) : null);
+                op2 = n2 > s1.length() ? (Object) (s1.length() - n2) : (i2 < ops2.size() ? ops2.get(i2++) : null);
+            } else if (isInsert(op1) && isRetain(op2)) {
+                String s1 = (String) op1;
+                int n2 = (Integer) op2;
+                result.insert(s1.length() > n2 ? s1.substring(0, n2) : s1);
+                op1 = s1.length() > n2 ? s1.substring(n2) : (i1 < ops1.size() ? ops1.get(i1++) : null);
+                op2 = n2 > s1.length() ? (Object) (n2 - s1.length()) : (i2 < ops2.size() ? ops2.get(i2++) : null);
+            } else if (isRetain(op1) && isDelete(op2)) {
+                int n1 = (Integer) op1;
+                int n2 = -(Integer) op2;
+                result.delete(Math.min(n1, n2));
+                op1 = n1 > n2 ? (Object) (n1 - n2) : (i1 < ops1.size() ? ops1.get(i1++) : null);
+                op2 = n2 > n1 ? (Object) (n1 - n2) : (i2 < ops2.size() ? ops2.get(i2++) : null);
+            } else {
+                throw new IllegalArgumentException("Cannot compose operations: invalid components");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * This method transforms two concurrent operations a and b that were made
+     * against the same document. It returns a pair [a', b'] such that applying
+     * a then b' gives the same document as applying b then a'. When both insert
+     * at the same position, the insert of a is placed first.
+     */
+    public static TextOperation[] transform(TextOperation a, TextOperation b) {
+        if (a.baseLength != b.baseLength) {
+            throw new IllegalArgumentException("Both operations have to have the same base length");
+        }
+        TextOperation aPrime = new TextOperation();
+        TextOperation bPrime = new TextOperation();
+        List<Object> ops1 = a.ops;
+        List<Object> ops2 = b.ops;
+        int i1 = 0;
+        int i2 = 0;
+        Object op1 = i1 < ops1.size() ? ops1.get(i1++) : null;
+        Object op2 = i2 < ops2.size() ? ops2.get(i2++) : null;
+        while (op1 != null || op2 != null) {
+            if (op1 != null && isInsert(op1)) {
+                aPrime.insert((String) op1);
+                bPrime.retain(((String) op1).length());
+                op1 = i1 < ops1.size() ? ops1.get(i1++) : null;
+                continue;
+            }
+            if (op2 != null && isInsert(op2)) {
+                aPrime.retain(((String) op2).length());
+                bPrime.insert((String) op2);
+                op2 = i2 < ops2.size() ? ops2.get(i2++) : null;
+                continue;
+            }
+            if (op1 == null || op2 == null) {
+                throw new IllegalArgumentException("Cannot transform operations: lengths do not match");
+            }
+
+            int n1 = Math.abs((Integer) op1);
+            int n2 = Math.abs((Integer) op2);
+            int min = Math.min(n1, n2);
+            if (isRetain(op1) && isRetain(op2)) {
+                aPrime.retain(min);
+                bPrime.retain(min);
+            } else if (isDelete(op1) && isRetain(op2)) {
+                aPrime.delete(min);
+            } else if (isRetain(op1) && isDelete(op2)) {
+                bPrime.delete(min);
+            }
+            // When both delete the same characters, neither side has to delete them again
+
+            op1 = n1 > min ? (Object) (Integer.signum((Integer) op1) * (n1 - min)) : (i1 < ops1.size() ? ops1.get(i1++) : null);
+            op2 = n2 > min ? (Object) (Integer.signum((Integer) op2) * (n2 - min)) : (i2 < ops2.size() ? ops2.get(i2++) : null);
+        }
+        return new TextOperation[] { aPrime, bPrime };
+    }
+
+    /**
+     * This method encodes the operation into its compact wire format, for
+     * example "r12,i5:hello,d3". Inserted text is length-prefixed so it never
+     * has to be escaped.
+     */
+    public String encode() {
+        StringBuilder sb = new StringBuilder();
+        for (Object op : ops) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            if (isRetain(op)) {
+                sb.append('r').append((int) (Integer) op);
+            } else if (isInsert(op)) {
+                String str = (String) op;
+                sb.append('i').append(str.length()).append(':').append(str);
+            } else {
+                sb.append('d').append(-(Integer) op);
+            }
+        }
+        return sb.toString();
+    }
+
+    // Parses an operation from the wire format produced by encode()
+    public static TextOperation decode(String encoded) {
+        TextOperation operation = new TextOperation();
+        int pos = 0;
+        while (pos < encoded.length()) {
+            char type = encoded.charAt(pos++);
+            int numberEnd = pos;
+            while (numberEnd < encoded.length() && Character.isDigit(encoded.charAt(numberEnd))) {
+                numberEnd++;
+            }
+            if (numberEnd == pos) {
+                throw new IllegalArgumentException("Malformed operation at position " + pos);
+            }
+            int n = Integer.parseInt(encoded.substring(pos, numberEnd));
+            pos = numberEnd;
+            switch (type) {
+                case 'r':
+                    operation.retain(n);
+                    break;
+                case 'd':
+                    operation.delete(n);
+                    break;
+                case 'i':
+                    if (pos >= encoded.length() || encoded.charAt(pos) != ':' || n > encoded.length() - pos - 1) {
+                        throw new IllegalArgumentException("Malformed insert at position " + pos);
+                    }
+                    operation.insert(encoded.substring(pos + 1, pos + 1 + n));
+                    pos += 1 + n;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown operation component '" + type + "'");
+            }
+            if (pos < encoded.length()) {
+                if (encoded.charAt(pos) != ',') {
+                    throw new IllegalArgumentException("Malformed operation at position " + pos);
+                }
+                pos++;
+            }
+        }
+        return operation;
+    }
+
+    private static boolean isRetain(Object op) {
+        return op instanceof Integer && (Integer) op > 0;
+    }
+
+    private static boolean isDelete(Object op) {
+        return op instanceof Integer && (Integer) op < 0;
+    }
+
+    private static boolean isInsert(Object op) {
+        return op instanceof String;
+    }
+}
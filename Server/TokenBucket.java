@@ -0,0 +1,34 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+/**
+ * TokenBucket limits how fast something may be done while allowing short
+ * bursts. The bucket holds up to its capacity in tokens and is refilled at
+ * a constant rate; every action takes tokens out and is refused when there
+ * are not enough left. Refilling is computed when tokens are taken, so an
+ * idle bucket costs nothing.
+ */
+public class TokenBucket {
+    private final long capacity;
+    private final long tokensPerSecond;
+    private double tokens;
+    private long refilledAt; // System.nanoTime() of the last refill
+
+    public TokenBucket(long tokensPerSecond, long capacity) {
+        this.tokensPerSecond = tokensPerSecond;
+        this.capacity = capacity;
+        this.tokens = capacity; // A new client may start with a burst, e.g. pasting its first text
+        this.refilledAt = System.nanoTime();
+    }
+
+    // Takes the given number of tokens, returns false and takes none if there are not enough
+    public synchronized boolean tryAcquire(long amount) {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerSecond / 1_000_000_000.0);
+        refilledAt = now;
+        if (tokens < amount) {
+            return false;
+        }
+        tokens -= amount;
+        return true;
+    }
+}
@@ -1,9 +1,24 @@
 package com.github.aboodRS.collaborative_markdown_editor;
 
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
+import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistration;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+import org.springframework.web.socket.server.standard.ServletServerContainerFactoryBean;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
 * This method is used to register WebSocket handlers with the specified URL pattern.
@@ -16,9 +31,274 @@ import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry
 @EnableWebSocket
 public class WebSocketConfig implements WebSocketConfigurer {
 
+    // Session limits, can be overridden with the properties below (e.g. as environment variables on Render)
+    @Value("${editor.session.empty-ttl-seconds:600}")
+    private long emptySessionTtlSeconds;
+    @Value("${editor.session.idle-ttl-seconds:86400}")
+    private long idleSessionTtlSeconds;
+    @Value("${editor.session.offload-after-seconds:300}")
+    private long offloadAfterSeconds; // Idle time after which a document is kept off the heap
+    @Value("${editor.session.max-memory-bytes:16777216}")
+    private long maxSessionMemoryBytes;
+    @Value("${editor.sessions.max-memory-bytes:536870912}")
+    private long maxTotalMemoryBytes;
+    @Value("${editor.session.max-history:1000}")
+    private int maxHistory;
+    @Value("${editor.session.replay-buffer:1024}")
+    private int replayCapacity; // Updates kept per session, clients that missed more get a snapshot
+    @Value("${editor.sessions.sweep-interval-seconds:30}")
+    private long sweepIntervalSeconds;
+
+    // Outbound queues, the policy is COALESCE (send the latest document instead) or DISCONNECT
+    @Value("${editor.connection.queue-capacity:1024}")
+    private int outboundQueueCapacity;
+    @Value("${editor.connection.slow-consumer-policy:COALESCE}")
+    private ClientConnection.SlowConsumerPolicy slowConsumerPolicy;
+    @Value("${editor.connection.batch-window-millis:15}")
+    private long batchWindowMillis; // 0 sends every message right away
+    @Value("${editor.connection.batch-max-chars:16384}")
+    private int maxBatchChars;
+    @Value("${editor.presence.interval-millis:50}")
+    private long presenceIntervalMillis; // Cursor positions are forwarded at most this often per client
+    @Value("${editor.spectator.render-interval-millis:100}")
+    private long spectatorRenderIntervalMillis; // Spectators see the document rendered at most this often
+    @Value("${editor.spectator.render-threads:1}")
+    private int spectatorRenderThreads;
+    @Value("${editor.outbound.threads:0}")
+    private int outboundThreads; // 0 uses two threads per processor
+    @Value("${editor.session.executor-threads:0}")
+    private int sessionExecutorThreads; // 0 uses one thread per processor
+
+    // Spring Boot's switch, which also makes Tomcat deliver the WebSocket frames on virtual threads
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+
+    // Cluster mode, e.g. nodes "a=10.0.0.1:7070,b=10.0.0.2:7070"; without nodes the server runs alone
+    @Value("${editor.cluster.node-id:local}")
+    private String clusterNodeId;
+    @Value("${editor.cluster.nodes:}")
+    private String clusterNodes;
+    @Value("${editor.cluster.virtual-nodes:128}")
+    private int clusterVirtualNodes; // Points per node on the hash ring
+    @Value("${editor.cluster.affinity:false}")
+    private boolean clusterAffinity; // Redirect clients to the node that owns their session
+    @Value("${editor.cluster.urls:}")
+    private String clusterUrls; // Public URL of every node for the redirects, e.g. "a=ws://10.0.0.1:8080"
+    @Value("${editor.cluster.secret:}")
+    private String clusterSecret; // Shared by all nodes, authenticates and encrypts the backplane
+    @Value("${editor.cluster.max-message-bytes:16777216}")
+    private int clusterMaxMessageBytes; // Largest backplane message, documents sent to relayed clients included
+
+    // Limits that keep one client or session from taking the whole node; rates are in message chars per second
+    @Value("${editor.limits.max-sessions:10000}")
+    private int maxSessions;
+    @Value("${editor.limits.max-connections:10000}")
+    private int maxConnections;
+    @Value("${editor.limits.max-connections-per-session:256}")
+    private int maxConnectionsPerSession;
+    @Value("${editor.limits.max-message-chars:1048576}")
+    private int maxMessageChars; // Also the largest frame the container accepts
+    @Value("${editor.limits.connection-chars-per-second:131072}")
+    private long connectionCharsPerSecond;
+    @Value("${editor.limits.connection-burst-chars:1048576}")
+    private long connectionBurstChars;
+    @Value("${editor.limits.session-chars-per-second:524288}")
+    private long sessionCharsPerSecond;
+    @Value("${editor.limits.session-burst-chars:4194304}")
+    private long sessionBurstChars;
+
+    // Lifetime of the tokens that let a client back into its session without the password
+    @Value("${editor.auth.resume-token-ttl-seconds:600}")
+    private long resumeTokenTtlSeconds;
+
+    // Rendered and encoded documents served by the export endpoint
+    @Value("${editor.export.cache-bytes:67108864}")
+    private long exportCacheBytes;
+    @Value("${editor.export.cache-entry-bytes:4194304}")
+    private long exportCacheEntryBytes; // Larger documents are rendered for every request and streamed
+
+    // Write-ahead log the sessions are restored from after a restart
+    @Value("${editor.wal.dir:data/wal}")
+    private String walDirectory;
+    @Value("${editor.wal.segment-bytes:1048576}")
+    private int walSegmentBytes;
+    @Value("${editor.wal.sync-interval-millis:10}")
+    private long walSyncIntervalMillis; // Edits of at most this interval are lost when the machine goes down
+    @Value("${editor.wal.snapshot-records:10000}")
+    private int walSnapshotRecords; // Log records after which a session gets a snapshot
+    @Value("${editor.wal.snapshot-interval-seconds:300}")
+    private long walSnapshotIntervalSeconds; // Time after which a session that changed gets a snapshot
+    @Value("${editor.wal.retention-hours:0}")
+    private long walRetentionHours; // Logs of sessions not in memory that were not written for this long are deleted, 0 keeps them
+
     @Override
     public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
-        registry.addHandler(new MyWebSocketHandler(), "/collaborate/{sessionId}")
+        if (slowConsumerPolicy == ClientConnection.SlowConsumerPolicy.DROP) {
+            // Dropping document messages would leave the client with a different document than everyone else
+            throw new IllegalArgumentException("editor.connection.slow-consumer-policy must be COALESCE or DISCONNECT");
+        }
+        ExecutorService sender = outboundSender();
+        ScheduledExecutorService flushTimer = outboundFlushTimer();
+        MyWebSocketHandler handler = new MyWebSocketHandler(sessionRegistry(), sessionExecutors(),
+                session -> new ClientConnection(session, sender, flushTimer, batchWindowMillis, maxBatchChars,
+                        outboundQueueCapacity, slowConsumerPolicy), clusterRelay(), sessionAuthenticator(),
+                flushTimer, presenceIntervalMillis, spectatorRenderer(), spectatorRenderIntervalMillis, admissionControl());
+        WebSocketHandlerRegistration registration = registry.addHandler(handler, "/collaborate/{sessionId}")
                 .setAllowedOrigins("*");
+        if (clusterAffinity) {
+            registration.addInterceptors(new ClusterAffinityInterceptor(clusterRelay(), parseNodeList(clusterUrls)));
+        }
+        // After the redirect, which sends the client to the node that can check its credentials
+        registration.addInterceptors(new AdmissionInterceptor(admissionControl(), sessionRegistry(), clusterRelay()));
+        registration.addInterceptors(new SessionAuthInterceptor(sessionAuthenticator(), clusterRelay()));
+    }
+
+    // Checks the credentials of the handshakes and keeps the resume tokens of the sessions owned here
+    @Bean
+    public SessionAuthenticator sessionAuthenticator() {
+        return new SessionAuthenticator(sessionRegistry(), resumeTokenTtlSeconds * 1000);
+    }
+
+    // Counts the connections of this node and keeps the rate limits of the clients and sessions
+    @Bean
+    public AdmissionControl admissionControl() {
+        return new AdmissionControl(maxConnections, maxConnectionsPerSession, maxMessageChars, connectionCharsPerSecond,
+                connectionBurstChars, sessionCharsPerSecond, sessionBurstChars);
+    }
+
+    // Frames larger than a message may be are refused by the container with 1009 before they are buffered
+    @Bean
+    public ServletServerContainerFactoryBean createWebSocketContainer() {
+        ServletServerContainerFactoryBean container = new ServletServerContainerFactoryBean();
+        container.setMaxTextMessageBufferSize(maxMessageChars);
+        container.setMaxBinaryMessageBufferSize(maxMessageChars);
+        return container;
+    }
+
+    /**
+     * This method creates the registry that holds all sessions of the server.
+     * It is a bean so that its eviction task is stopped when the application
+     * shuts down.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public SessionRegistry sessionRegistry() {
+        return new SessionRegistry(emptySessionTtlSeconds * 1000, idleSessionTtlSeconds * 1000, offloadAfterSeconds * 1000,
+                maxSessionMemoryBytes, maxTotalMemoryBytes, maxSessions, maxHistory, replayCapacity, sweepIntervalSeconds * 1000, writeAheadLog());
+    }
+
+    // Keeps the latest exported version of the polled documents
+    @Bean
+    public DocumentCache documentCache() {
+        return new DocumentCache(exportCacheBytes, exportCacheEntryBytes);
+    }
+
+    // Forces the session logs to disk in the background and once more when the application shuts down
+    @Bean(destroyMethod = "close")
+    public WriteAheadLog writeAheadLog() {
+        try {
+            return new WriteAheadLog(Paths.get(walDirectory), walSegmentBytes, walSyncIntervalMillis, walSnapshotRecords,
+                    walSnapshotIntervalSeconds * 1000, walRetentionHours * 3600 * 1000);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create the log directory " + walDirectory, e);
+        }
+    }
+
+    // Single-threaded executors the sessions are spread over by their ID
+    @Bean(destroyMethod = "shutdown")
+    public SessionExecutors sessionExecutors() {
+        return new SessionExecutors(sessionExecutorThreads > 0 ? sessionExecutorThreads : Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * This method creates the thread pool that writes the outbound queues of
+     * all clients. Handler threads only queue messages, so a client that reads
+     * slowly ties up at most one of these threads instead of a whole session.
+     * In virtual-thread mode every client that is being written to gets its
+     * own virtual thread, so blocking sends do not hold platform threads.
+     */
+    @Bean(destroyMethod = "shutdownNow")
+    public ExecutorService outboundSender() {
+        if (virtualThreads) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        int threads = outboundThreads > 0 ? outboundThreads : Runtime.getRuntime().availableProcessors() * 2;
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "outbound-sender-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Ends the batch windows of the outbound queues, the sending itself happens on the outbound sender
+    @Bean(destroyMethod = "shutdownNow")
+    public ScheduledExecutorService outboundFlushTimer() {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "outbound-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Renders the documents of sessions with spectators, away from the threads that handle edits
+    @Bean(destroyMethod = "shutdownNow")
+    public ScheduledExecutorService spectatorRenderer() {
+        AtomicInteger counter = new AtomicInteger();
+        return Executors.newScheduledThreadPool(spectatorRenderThreads, runnable -> {
+            Thread thread = new Thread(runnable, "spectator-render-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Connects this node to the other nodes of the cluster, or to none when it runs alone
+    @Bean(destroyMethod = "close")
+    public ClusterBackplane clusterBackplane() {
+        if (clusterNodes.isBlank()) {
+            return new LoopbackBackplane(clusterNodeId);
+        }
+        Map<String, InetSocketAddress> nodes = new LinkedHashMap<>();
+        for (Map.Entry<String, String> node : parseNodeList(clusterNodes).entrySet()) {
+            String address = node.getValue();
+            int colon = address.lastIndexOf(':');
+            nodes.put(node.getKey(), new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+        }
+        try {
+            return new SocketBackplane(clusterNodeId, nodes, clusterSecret, clusterMaxMessageBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot listen on the backplane address of node " + clusterNodeId, e);
+        }
+    }
+
+    /**
+     * This method creates the relay for clients of sessions owned by other
+     * nodes. Their replies already went through the batching of the owner,
+     * so they are written right away, and a client that cannot keep up is
+     * disconnected because only the owner has the document to resync it.
+     */
+    @Bean
+    public ClusterRelay clusterRelay() {
+        ClusterBackplane backplane = clusterBackplane();
+        ExecutorService sender = outboundSender();
+        ScheduledExecutorService flushTimer = outboundFlushTimer();
+        return new ClusterRelay(backplane, new ConsistentHashRing(backplane.getNodeIds(), clusterVirtualNodes),
+                session -> new ClientConnection(session, sender, flushTimer, 0, maxBatchChars, outboundQueueCapacity,
+                        ClientConnection.SlowConsumerPolicy.DISCONNECT));
+    }
+
+    // Parses "id=value,id=value" lists of the cluster properties
+    private static Map<String, String> parseNodeList(String list) {
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (String entry : list.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            int equals = entry.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Expected id=value in cluster property, got " + entry);
+            }
+            entries.put(entry.substring(0, equals).trim(), entry.substring(equals + 1).trim());
+        }
+        return entries;
     }
 }
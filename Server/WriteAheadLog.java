@@ -0,0 +1,286 @@
+package com.github.aboodRS.collaborative_markdown_editor;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * WriteAheadLog keeps one SessionLog per session in a directory of its own,
+ * so the server can rebuild its sessions after a restart. Appends only copy
+ * into memory-mapped files; a background task forces the pages of all logs
+ * written since its last run to disk together. One fsync therefore covers
+ * every edit of the sync interval, which is what loses at most that interval
+ * when the machine itself goes down.
+ *
+ * A log gets a snapshot after a number of records or, if it was written to,
+ * after an interval. The snapshot replaces the segments before it, so the
+ * time to restore a session and its disk use stay bounded.
+ *
+ * Logs outlive the sessions in memory: an evicted session only has its log
+ * closed, and is restored from it when a client comes back. Logs are only
+ * deleted once they have not been written for the retention time, if one
+ * is configured.
+ */
+public class WriteAheadLog {
+    private final Path directory;
+    private final int segmentBytes; // Size every segment file is allocated with
+    private final int snapshotRecords; // Records after which a log gets a snapshot
+    private final long snapshotIntervalMillis; // Time after which a log that was written to gets a snapshot
+    private final long retentionMillis; // Time a closed log is kept without being written, 0 keeps it forever
+    private final ConcurrentHashMap<String, SessionLog> logs = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService syncScheduler;
+
+    // Metrics, reported by StorageMetricsController
+    private final LongAdder appendedRecords = new LongAdder();
+    private final LongAdder appendedBytes = new LongAdder();
+    private final LongAdder appendNanos = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+    private final LongAdder syncNanos = new LongAdder();
+    private volatile long maxSyncNanos; // Only written by the sync thread
+    private final LongAdder snapshots = new LongAdder();
+    private final LongAdder snapshotNanos = new LongAdder();
+    private final LongAdder snapshotBytes = new LongAdder();
+    private volatile long maxSnapshotNanos; // Only written by the snapshot thread
+    private volatile int recoveredSessions;
+    private volatile long recoveredRecords; // Records replayed behind the snapshots at startup
+    private volatile long recoveryMillis;
+    private final long startedAt = System.nanoTime();
+
+    public WriteAheadLog(Path directory, int segmentBytes, long syncIntervalMillis, int snapshotRecords,
+            long snapshotIntervalMillis, long retentionMillis) throws IOException {
+        this.directory = directory;
+        this.retentionMillis = retentionMillis;
+        this.segmentBytes = segmentBytes;
+        this.snapshotRecords = snapshotRecords;
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+        Files.createDirectories(directory);
+        this.syncScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "wal-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncScheduler.scheduleWithFixedDelay(this::syncAll, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // IDs of all sessions that have a log on disk
+    public List<String> getSessionIds() throws IOException {
+        List<String> sessionIds = new ArrayList<>();
+        try (Stream<Path> directories = Files.list(directory)) {
+            for (Path sessionDirectory : (Iterable<Path>) directories::iterator) {
+                String name = sessionDirectory.getFileName().toString();
+                try {
+                    sessionIds.add(new String(Base64.getUrlDecoder().decode(name), StandardCharsets.UTF_8));
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Ignored unknown entry in the log directory: " + name);
+                }
+            }
+        }
+        return sessionIds;
+    }
+
+    /**
+     * This method opens the log of a session, creating it if the session has
+     * none yet. Opening a log that is already open returns the same log.
+     */
+    public SessionLog open(String sessionId) throws IOException {
+        SessionLog log = logs.get(sessionId);
+        if (log != null) {
+            return log;
+        }
+        synchronized (logs) {
+            log = logs.get(sessionId);
+            if (log == null) {
+                log = new SessionLog(this, sessionDirectory(sessionId), segmentBytes);
+                logs.put(sessionId, log);
+            }
+            return log;
+        }
+    }
+
+    // Whether the session has a log on disk, open or not
+    public boolean exists(String sessionId) {
+        return logs.containsKey(sessionId) || Files.isDirectory(sessionDirectory(sessionId));
+    }
+
+    // Forces and closes the log of a session that left memory, the log stays on disk to restore the session from
+    public void close(String sessionId) {
+        synchronized (logs) {
+            SessionLog log = logs.remove(sessionId);
+            if (log != null) {
+                log.close();
+            }
+        }
+    }
+
+    /**
+     * This method deletes the closed logs that were not written for the
+     * retention time, so their sessions are gone for good. Open logs belong
+     * to sessions in memory and are always kept. Nothing is deleted without
+     * a retention time.
+     */
+    public void deleteExpired() {
+        if (retentionMillis <= 0) {
+            return;
+        }
+        long expiredBefore = System.currentTimeMillis() - retentionMillis;
+        try {
+            for (String sessionId : getSessionIds()) {
+                synchronized (logs) {
+                    Path sessionDirectory = sessionDirectory(sessionId);
+                    if (logs.containsKey(sessionId) || lastWritten(sessionDirectory) >= expiredBefore) {
+                        continue;
+                    }
+                    try (Stream<Path> files = Files.list(sessionDirectory)) {
+                        for (Path file : (Iterable<Path>) files::iterator) {
+                            Files.delete(file);
+                        }
+                    }
+                    Files.delete(sessionDirectory);
+                    System.out.println("Deleted the log of session " + sessionId + " after its retention time");
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace(); // Tried again with the next sweep
+        }
+    }
+
+    // Time the newest file of a log was written
+    private static long lastWritten(Path sessionDirectory) throws IOException {
+        long newest = Files.getLastModifiedTime(sessionDirectory).toMillis();
+        try (Stream<Path> files = Files.list(sessionDirectory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                FileTime modified = Files.getLastModifiedTime(file);
+                newest = Math.max(newest, modified.toMillis());
+            }
+        }
+        return newest;
+    }
+
+    // Group commit: one pass forces everything appended to any log since the last pass
+    private void syncAll() {
+        try {
+            long start = System.nanoTime();
+            for (SessionLog log : logs.values()) {
+                log.sync();
+            }
+            long elapsed = System.nanoTime() - start;
+            syncs.increment();
+            syncNanos.add(elapsed);
+            maxSyncNanos = Math.max(maxSyncNanos, elapsed);
+        } catch (RuntimeException e) {
+            e.printStackTrace(); // Keep the scheduled task alive
+        }
+    }
+
+    public boolean isSnapshotDue(SessionLog log) {
+        return log.isSnapshotDue(snapshotRecords, snapshotIntervalMillis);
+    }
+
+    void recordSnapshot(long bytes, long nanos) {
+        snapshots.increment();
+        snapshotBytes.add(bytes);
+        snapshotNanos.add(nanos);
+        maxSnapshotNanos = Math.max(maxSnapshotNanos, nanos);
+    }
+
+    void recordRecovery(int sessions, long records, long millis) {
+        recoveredSessions = sessions;
+        recoveredRecords = records;
+        recoveryMillis = millis;
+    }
+
+    void recordAppend(int bytes, long nanos) {
+        appendedRecords.increment();
+        appendedBytes.add(bytes);
+        appendNanos.add(nanos);
+    }
+
+    private Path sessionDirectory(String sessionId) {
+        // Session IDs come from URLs, the encoding keeps them to characters that are safe in file names
+        return directory.resolve(Base64.getUrlEncoder().withoutPadding().encodeToString(sessionId.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public int getOpenLogCount() {
+        return logs.size();
+    }
+
+    public long getAppendedRecords() {
+        return appendedRecords.sum();
+    }
+
+    public long getAppendedBytes() {
+        return appendedBytes.sum();
+    }
+
+    // Records appended per second since the server started
+    public double getAppendsPerSecond() {
+        double seconds = (System.nanoTime() - startedAt) / 1e9;
+        return seconds > 0 ? appendedRecords.sum() / seconds : 0;
+    }
+
+    public double getAverageAppendMicros() {
+        long records = appendedRecords.sum();
+        return records > 0 ? appendNanos.sum() / 1000.0 / records : 0;
+    }
+
+    public long getSyncs() {
+        return syncs.sum();
+    }
+
+    public double getAverageSyncMicros() {
+        long count = syncs.sum();
+        return count > 0 ? syncNanos.sum() / 1000.0 / count : 0;
+    }
+
+    public long getMaxSyncMicros() {
+        return maxSyncNanos / 1000;
+    }
+
+    public long getSnapshots() {
+        return snapshots.sum();
+    }
+
+    public long getSnapshotBytes() {
+        return snapshotBytes.sum();
+    }
+
+    public double getAverageSnapshotMillis() {
+        long count = snapshots.sum();
+        return count > 0 ? snapshotNanos.sum() / 1e6 / count : 0;
+    }
+
+    public double getMaxSnapshotMillis() {
+        return maxSnapshotNanos / 1e6;
+    }
+
+    public int getRecoveredSessions() {
+        return recoveredSessions;
+    }
+
+    public long getRecoveredRecords() {
+        return recoveredRecords;
+    }
+
+    public long getRecoveryMillis() {
+        return recoveryMillis;
+    }
+
+    // Stops the background sync and forces what is left, called when the application shuts down
+    public void close() {
+        syncScheduler.shutdownNow();
+        for (SessionLog log : logs.values()) {
+            log.close();
+        }
+    }
+}